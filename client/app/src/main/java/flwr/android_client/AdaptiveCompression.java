@@ -0,0 +1,252 @@
+package flwr.android_client;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.CallOptions;
+import io.grpc.Channel;
+import io.grpc.ClientCall;
+import io.grpc.ClientInterceptor;
+import io.grpc.ClientStreamTracer;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Decides, message by message, whether gzip is worth its CPU time, and measures what it gives.
+ *
+ * <p>Parameters compress poorly when they are fresh float32 weights and well when they are sparse
+ * or quantized. Before a message is sent, windows spread over its tensors are compressed as a
+ * sample: gzip is used if the sample shrinks to at most {@link #MAX_GZIP_RATIO} of its size, and
+ * compressing the whole message is expected to fit in the CPU budget. Calls must be made with gzip
+ * as their compressor, e.g. through {@code withCompression("gzip")}, for the choice to apply.
+ *
+ * <p>Whether incoming messages are compressed is up to the server; the client accepts gzip, and
+ * the stream tracer installed by {@link #interceptor()} measures the outcome both ways.
+ */
+public final class AdaptiveCompression {
+
+    /** Config entry forcing "gzip" or "identity", instead of the default "adaptive". */
+    public static final String MODE_KEY = "compression";
+    /** Config entry holding the CPU time that compressing one message may take, in ms. */
+    public static final String CPU_BUDGET_KEY = "compression_cpu_budget_ms";
+    public static final long DEFAULT_CPU_BUDGET_MS = 1000;
+
+    public static final String GZIP = "gzip";
+    public static final String IDENTITY = "identity";
+    private static final String ADAPTIVE = "adaptive";
+
+    // Largest compressed to raw size ratio for which gzip is used.
+    private static final double MAX_GZIP_RATIO = 0.9;
+    // Messages smaller than this are sent as they are: the sample would cost more than it saves.
+    private static final long MIN_GZIP_BYTES = 16 * 1024;
+    private static final int SAMPLE_WINDOW_BYTES = 4 * 1024;
+    private static final int MAX_SAMPLE_WINDOWS = 16;
+
+    private String mode = ADAPTIVE;
+    private long cpuBudgetMs = DEFAULT_CPU_BUDGET_MS;
+
+    // Outcome of the last decision.
+    private boolean compress = false;
+    private double sampleRatio = 1;
+    private double projectedCpuMs = 0;
+
+    // Time the last message took to be serialized, compressed if so, and handed to the transport.
+    private double lastSendMs = 0;
+
+    // Sizes of every message of the traced calls, as counted by the transport.
+    private final AtomicLong outboundWireBytes = new AtomicLong();
+    private final AtomicLong outboundUncompressedBytes = new AtomicLong();
+    private final AtomicLong inboundWireBytes = new AtomicLong();
+    private final AtomicLong inboundUncompressedBytes = new AtomicLong();
+
+    // Sizes of the last message received, which is counted before it is handled.
+    private volatile long lastInboundWireBytes = 0;
+    private volatile long lastInboundUncompressedBytes = 0;
+
+    // Counters when the current round started, subtracted from them in the metrics.
+    private long roundOutboundWireBytes = 0;
+    private long roundOutboundUncompressedBytes = 0;
+    private long roundInboundWireBytes = 0;
+    private long roundInboundUncompressedBytes = 0;
+
+    /** Takes the mode and CPU budget from [config], keeping the current ones if absent. */
+    public void configure(Map<String, Scalar> config) {
+        if (config.containsKey(MODE_KEY)) {
+            String requested = config.get(MODE_KEY).getString();
+            mode = GZIP.equals(requested) || IDENTITY.equals(requested) ? requested : ADAPTIVE;
+        }
+        if (config.containsKey(CPU_BUDGET_KEY)) {
+            cpuBudgetMs = Math.max(0, config.get(CPU_BUDGET_KEY).getSint64());
+        }
+    }
+
+    /**
+     * Starts a round with the message being handled, e.g. a FitIns: the metrics only count what
+     * was sent and received from this message on.
+     */
+    public void startRound() {
+        roundOutboundWireBytes = outboundWireBytes.get();
+        roundOutboundUncompressedBytes = outboundUncompressedBytes.get();
+        roundInboundWireBytes = inboundWireBytes.get() - lastInboundWireBytes;
+        roundInboundUncompressedBytes =
+                inboundUncompressedBytes.get() - lastInboundUncompressedBytes;
+    }
+
+    /** Decides how to send a message holding [tensors]; see {@link #shouldCompress()}. */
+    public void decide(List<ByteString> tensors) {
+        sampleRatio = 1;
+        projectedCpuMs = 0;
+        if (!ADAPTIVE.equals(mode)) {
+            compress = GZIP.equals(mode);
+            return;
+        }
+
+        long totalBytes = 0;
+        for (ByteString tensor : tensors) {
+            totalBytes += tensor.size();
+        }
+        if (totalBytes < MIN_GZIP_BYTES) {
+            compress = false;
+            return;
+        }
+
+        byte[] sample = sample(tensors, totalBytes);
+        long startNanos = System.nanoTime();
+        Deflater deflater = new Deflater();
+        long compressedBytes = 0;
+        try {
+            deflater.setInput(sample);
+            deflater.finish();
+            byte[] output = new byte[SAMPLE_WINDOW_BYTES];
+            while (!deflater.finished()) {
+                compressedBytes += deflater.deflate(output);
+            }
+        } finally {
+            deflater.end();
+        }
+        long sampleNanos = System.nanoTime() - startNanos;
+
+        sampleRatio = (double) compressedBytes / sample.length;
+        projectedCpuMs = sampleNanos / 1e6 * totalBytes / sample.length;
+        compress = sampleRatio <= MAX_GZIP_RATIO && projectedCpuMs <= cpuBudgetMs;
+    }
+
+    /** Decides how to send a message without tensors. */
+    public void decideWithoutTensors() {
+        decide(Collections.<ByteString>emptyList());
+    }
+
+    /** Whether the message of the last decision should be compressed. */
+    public boolean shouldCompress() {
+        return compress;
+    }
+
+    /** Records how long sending the last message took, compression included. */
+    public void recordSend(long nanos) {
+        lastSendMs = nanos / 1e6;
+    }
+
+    /**
+     * Stores the last decision, and what the transport sent and received since the round started,
+     * in [metrics]. Messages are counted once the transport has handled them, so the message that
+     * carries the metrics is not counted in them yet; the time its compression takes is projected
+     * from the sample, while the time the previous message took to be sent is measured.
+     */
+    public void putMetrics(Map<String, Scalar> metrics) {
+        metrics.put(MODE_KEY, Scalar.newBuilder().setString(compress ? GZIP : IDENTITY).build());
+        metrics.put("compression_sample_ratio",
+                Scalar.newBuilder().setDouble(sampleRatio).build());
+        metrics.put("compression_cpu_ms_estimate",
+                Scalar.newBuilder().setDouble(projectedCpuMs).build());
+        metrics.put("last_send_ms", Scalar.newBuilder().setDouble(lastSendMs).build());
+        putRoundBytes(metrics, "outbound", outboundWireBytes.get() - roundOutboundWireBytes,
+                outboundUncompressedBytes.get() - roundOutboundUncompressedBytes);
+        putRoundBytes(metrics, "inbound", inboundWireBytes.get() - roundInboundWireBytes,
+                inboundUncompressedBytes.get() - roundInboundUncompressedBytes);
+    }
+
+    /** Returns an interceptor that counts the wire and uncompressed size of every message. */
+    public ClientInterceptor interceptor() {
+        ClientStreamTracer.Factory tracerFactory = new ClientStreamTracer.Factory() {
+            @Override
+            public ClientStreamTracer newClientStreamTracer(
+                    ClientStreamTracer.StreamInfo info, Metadata headers) {
+                return new SizeTracer();
+            }
+        };
+        return new ClientInterceptor() {
+            @Override
+            public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(
+                    MethodDescriptor<ReqT, RespT> method, CallOptions callOptions, Channel next) {
+                return next.newCall(method, callOptions.withStreamTracerFactory(tracerFactory));
+            }
+        };
+    }
+
+    // Copies windows spread evenly over the concatenation of [tensors].
+    private static byte[] sample(List<ByteString> tensors, long totalBytes) {
+        int numWindows = (int) Math.min(
+                MAX_SAMPLE_WINDOWS, (totalBytes + SAMPLE_WINDOW_BYTES - 1) / SAMPLE_WINDOW_BYTES);
+        byte[] sample = new byte[numWindows * SAMPLE_WINDOW_BYTES];
+        int sampleBytes = 0;
+        int tensorIdx = 0;
+        long tensorStart = 0;
+        for (int window = 0; window < numWindows; window++) {
+            long offset = totalBytes * window / numWindows;
+            while (offset >= tensorStart + tensors.get(tensorIdx).size()) {
+                tensorStart += tensors.get(tensorIdx).size();
+                tensorIdx++;
+            }
+            ByteString tensor = tensors.get(tensorIdx);
+            int start = (int) (offset - tensorStart);
+            int end = Math.min(tensor.size(), start + SAMPLE_WINDOW_BYTES);
+            tensor.substring(start, end).copyTo(sample, sampleBytes);
+            sampleBytes += end - start;
+        }
+        if (sampleBytes == sample.length) {
+            return sample;
+        }
+        byte[] trimmed = new byte[sampleBytes];
+        System.arraycopy(sample, 0, trimmed, 0, sampleBytes);
+        return trimmed;
+    }
+
+    // Stores the bytes of the round in one direction, and their wire to uncompressed size ratio.
+    private static void putRoundBytes(Map<String, Scalar> metrics, String direction,
+                                      long wireBytes, long uncompressedBytes) {
+        metrics.put(direction + "_wire_bytes", Scalar.newBuilder().setSint64(wireBytes).build());
+        metrics.put(direction + "_uncompressed_bytes",
+                Scalar.newBuilder().setSint64(uncompressedBytes).build());
+        double ratio = uncompressedBytes > 0 ? (double) wireBytes / uncompressedBytes : 1;
+        metrics.put(direction + "_compression_ratio", Scalar.newBuilder().setDouble(ratio).build());
+    }
+
+    private final class SizeTracer extends ClientStreamTracer {
+        @Override
+        public void outboundWireSize(long bytes) {
+            outboundWireBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public void outboundUncompressedSize(long bytes) {
+            outboundUncompressedBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public void inboundWireSize(long bytes) {
+            lastInboundWireBytes = bytes;
+            inboundWireBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public void inboundUncompressedSize(long bytes) {
+            lastInboundUncompressedBytes = bytes;
+            inboundUncompressedBytes.addAndGet(bytes);
+        }
+    }
+}
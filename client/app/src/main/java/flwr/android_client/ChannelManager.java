@@ -0,0 +1,212 @@
+package flwr.android_client;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import io.grpc.ConnectivityState;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide cache of gRPC channels, one per server address.
+ *
+ * <p>Workers run every few minutes; reusing the channel of the previous run saves the TCP and
+ * HTTP/2 handshakes while its connection is still up, and avoids leaking a channel per run.
+ * Channels drop their connection after {@link #IDLE_TIMEOUT_MINUTES} without calls, and keep
+ * it alive with HTTP/2 pings while a call is open. Channels nobody leased for
+ * {@link #EVICT_AFTER_MINUTES} are shut down, whether or not a worker runs again, and every
+ * channel is shut down when the work is stopped.
+ */
+public final class ChannelManager {
+
+    private static final String TAG = "ChannelManager";
+    private static final int MAX_INBOUND_MESSAGE_BYTES = 10 * 1024 * 1024;
+    private static final long IDLE_TIMEOUT_MINUTES = 5;
+    // Servers default to refusing pings more often than every 5 minutes without data, and close
+    // connections that do it repeatedly, so pings stay above that.
+    private static final long KEEPALIVE_TIME_MINUTES = 6;
+    private static final long KEEPALIVE_TIMEOUT_SECONDS = 20;
+    private static final long EVICT_AFTER_MINUTES = 60;
+
+    private static final Map<String, Entry> channels = new HashMap<>();
+
+    // Checks for unused channels once the last lease of one may have expired.
+    private static final ScheduledExecutorService evictor =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ChannelManager-evict");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private ChannelManager() {}
+
+    /**
+     * Returns a lease on the channel to [host]:[port], creating it if there is none. The lease
+     * must be released once the caller is done with the channel; the channel itself stays cached.
+     */
+    public static synchronized Lease acquire(String host, int port) {
+        evictUnused();
+        String address = host + ":" + port;
+        Entry entry = channels.get(address);
+        boolean reused = entry != null && !entry.channel.isShutdown();
+        if (!reused) {
+            ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port)
+                    .maxInboundMessageSize(MAX_INBOUND_MESSAGE_BYTES)
+                    .idleTimeout(IDLE_TIMEOUT_MINUTES, TimeUnit.MINUTES)
+                    .keepAliveTime(KEEPALIVE_TIME_MINUTES, TimeUnit.MINUTES)
+                    .keepAliveTimeout(KEEPALIVE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                    .usePlaintext()
+                    .build();
+            entry = new Entry(channel);
+            channels.put(address, entry);
+        }
+        entry.numLeases++;
+        return new Lease(entry, reused);
+    }
+
+    /**
+     * Shuts down every cached channel, leased or not. Called when the periodic work is stopped,
+     * since no later run would reuse the channels.
+     */
+    public static synchronized void shutdownAll() {
+        for (Entry entry : channels.values()) {
+            entry.channel.shutdown();
+        }
+        channels.clear();
+    }
+
+    private static synchronized void release(Entry entry) {
+        entry.numLeases--;
+        entry.lastReleaseMillis = SystemClock.elapsedRealtime();
+        if (entry.numLeases == 0) {
+            evictor.schedule(ChannelManager::evictUnused, EVICT_AFTER_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    private static synchronized void evictUnused() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Entry>> it = channels.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> cached = it.next();
+            Entry entry = cached.getValue();
+            boolean unused = entry.numLeases == 0
+                    && now - entry.lastReleaseMillis >= TimeUnit.MINUTES.toMillis(EVICT_AFTER_MINUTES);
+            if (unused || entry.channel.isShutdown()) {
+                Log.d(TAG, "Shutting down the channel to " + cached.getKey());
+                entry.channel.shutdown();
+                it.remove();
+            }
+        }
+    }
+
+    private static final class Entry {
+        final ManagedChannel channel;
+        int numLeases = 0;
+        long lastReleaseMillis = SystemClock.elapsedRealtime();
+
+        Entry(ManagedChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    /** Use of a cached channel, from {@link #acquire} until {@link #release}. */
+    public static final class Lease {
+        private final Entry entry;
+        private final boolean reused;
+        private boolean released = false;
+
+        private Lease(Entry entry, boolean reused) {
+            this.entry = entry;
+            this.reused = reused;
+        }
+
+        public ManagedChannel getChannel() {
+            return entry.channel;
+        }
+
+        /** Whether the channel was already cached, possibly with its connection still up. */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Connects the channel if it is not, and waits until it is ready.
+         *
+         * @return time it took to be ready in ms, or -1 if it was not ready within [timeoutMs].
+         */
+        public long awaitReady(long timeoutMs) throws InterruptedException {
+            ManagedChannel channel = entry.channel;
+            long startMillis = SystemClock.elapsedRealtime();
+            while (true) {
+                ConnectivityState state = channel.getState(true);
+                long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+                if (state == ConnectivityState.READY) {
+                    return elapsedMillis;
+                }
+                if (state == ConnectivityState.SHUTDOWN || elapsedMillis >= timeoutMs) {
+                    return -1;
+                }
+                CountDownLatch changed = new CountDownLatch(1);
+                channel.notifyWhenStateChanged(state, changed::countDown);
+                changed.await(timeoutMs - elapsedMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /** Gives the channel back to the cache. Releasing again has no effect. */
+        public void release() {
+            synchronized (ChannelManager.class) {
+                if (!released) {
+                    released = true;
+                    ChannelManager.release(entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delays between attempts to rejoin the server: exponential, with random jitter so that
+     * clients dropped together do not all come back at once.
+     */
+    public static final class Backoff {
+        private static final long INITIAL_DELAY_MILLIS = 1000;
+        private static final long MAX_DELAY_MILLIS = 120 * 1000;
+        private static final double MULTIPLIER = 1.6;
+        private static final double JITTER = 0.2;
+
+        private final int maxAttempts;
+        private int numAttempts = 0;
+        private long nextDelayMillis = INITIAL_DELAY_MILLIS;
+
+        public Backoff(int maxAttempts) {
+            this.maxAttempts = maxAttempts;
+        }
+
+        public boolean hasAttemptsLeft() {
+            return numAttempts < maxAttempts;
+        }
+
+        /** Returns how long to wait before the next attempt, and counts it. */
+        public long nextDelayMillis() {
+            numAttempts++;
+            long delayMillis = nextDelayMillis;
+            nextDelayMillis = Math.min(MAX_DELAY_MILLIS, (long) (nextDelayMillis * MULTIPLIER));
+            double jitter = ThreadLocalRandom.current().nextDouble(-JITTER, JITTER);
+            return (long) (delayMillis * (1 + jitter));
+        }
+
+        /** Starts over after a successful attempt. */
+        public void reset() {
+            numAttempts = 0;
+            nextDelayMillis = INITIAL_DELAY_MILLIS;
+        }
+    }
+}
@@ -1,9 +1,7 @@
 package flwr.android_client;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+import android.content.pm.PackageManager;
 import android.os.ConditionVariable;
 import android.util.Log;
 import android.util.Pair;
@@ -16,33 +14,88 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutionException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tensorflow.lite.examples.transfer.api.ParameterBinder;
+import org.tensorflow.lite.examples.transfer.api.ParameterSnapshot;
 
 public class FlowerClient {
 
     private TransferLearningModelWrapper tlModel;
-    private static final int LOWER_BYTE_MASK = 0xFF;
     private MutableLiveData<Float> lastLoss = new MutableLiveData<>();
     private Context context;
     private final ConditionVariable isTraining = new ConditionVariable();
     private static String TAG = "Flower";
     private int local_epochs = 1;
 
+    // Number of images decoded before they are handed to the model in one bulk call.
+    private static final int LOAD_BATCH_SIZE = 64;
+    private static final int NUM_DECODE_WORKERS =
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    private static final String BOTTLENECK_CACHE_PREFIX = "bottlenecks-";
+
+    // Local training progress is saved every few batches, so that a round interrupted by the
+    // system resumes where it stopped once the worker runs again.
+    private static final String RESUME_CHECKPOINT_FILE = "training-resume.bin";
+    public static final int DEFAULT_CHECKPOINT_BATCHES = 10;
+
     public FlowerClient(Context context) {
         this.tlModel = new TransferLearningModelWrapper(context);
         this.context = context;
+        openBottleneckCache();
     }
 
-    public ByteBuffer[] getWeights() {
-        return tlModel.getParameters();
+    // Bottlenecks of the partition images are kept across worker runs. Asset images can only
+    // change with an app update, so the cache file is namespaced by the app update time.
+    private void openBottleneckCache() {
+        try {
+            long updateTime = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+            String fileName = BOTTLENECK_CACHE_PREFIX + updateTime + ".bin";
+            File[] staleFiles = context.getCacheDir().listFiles(
+                    (dir, name) -> name.startsWith(BOTTLENECK_CACHE_PREFIX) && !name.equals(fileName));
+            if (staleFiles != null) {
+                for (File staleFile : staleFiles) {
+                    staleFile.delete();
+                }
+            }
+            tlModel.openBottleneckCache(new File(context.getCacheDir(), fileName));
+        } catch (IOException | PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Bottleneck cache is not available", e);
+        }
     }
 
-    public Pair<ByteBuffer[], Integer> fit(ByteBuffer[] weights, int epochs) {
+    /** Returns the model-owned buffers that incoming weights are decoded into. */
+    public ParameterBinder getParameterBinder() {
+        return tlModel.getParameterBinder();
+    }
+
+    /** Returns the current weights without copying them; the caller closes the snapshot. */
+    public ParameterSnapshot getWeights() {
+        return tlModel.snapshotParameters();
+    }
+
+    /**
+     * Trains on the local data, starting from the given weights.
+     *
+     * @param roundId identifies the round; a round already partly trained before the worker was
+     *     stopped goes on from its last checkpoint.
+     * @param checkpointBatches number of batches between two checkpoints of the round.
+     */
+    public Pair<ParameterSnapshot, Integer> fit(
+            ByteBuffer[] weights, int epochs, long roundId, int checkpointBatches) {
 
         this.local_epochs = epochs;
         tlModel.updateParameters(weights);
+        tlModel.enableResumeCheckpoints(
+                new File(context.getFilesDir(), RESUME_CHECKPOINT_FILE), checkpointBatches);
         isTraining.close();
-        tlModel.train(this.local_epochs);
+        tlModel.train(this.local_epochs, roundId, () -> {
+            tlModel.disableTraining();
+            isTraining.open();
+        });
         tlModel.enableTraining((epoch, loss) -> setLastLoss(epoch, loss));
         Log.e(TAG ,  "Training enabled. Local Epochs = " + this.local_epochs);
         isTraining.block();
@@ -55,6 +108,10 @@ public class FlowerClient {
         return Pair.create(tlModel.calculateTestStatistics(), tlModel.getSize_Testing());
     }
 
+    public int getBottleneckPoolSize() {
+        return tlModel.getBottleneckPoolSize();
+    }
+
     public void setLastLoss(int epoch, float newLoss) {
         if (epoch == this.local_epochs - 1) {
             Log.e(TAG, "Training finished after epoch = " + epoch);
@@ -65,49 +122,60 @@ public class FlowerClient {
     }
 
     public void loadData(int device_id) {
+        ImageLoadPipeline pipeline = new ImageLoadPipeline(
+                this.context.getAssets(), tlModel, TransferLearningModelWrapper.IMAGE_SIZE,
+                LOAD_BATCH_SIZE, NUM_DECODE_WORKERS);
         try {
             Log.d("FLOWERCLIENT_LOAD", "loadData: ");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(this.context.getAssets().open("data/partition_" + (device_id - 1) + "_train.txt")));
-            String line;
-            int i = 0;
-            while ((line = reader.readLine()) != null) {
-                i++;
-                Log.e(TAG, i + "th training image loaded");
-                addSample("data/" + line, true);
-            }
-            reader.close();
-
-            i = 0;
-            reader = new BufferedReader(new InputStreamReader(this.context.getAssets().open("data/partition_" +  (device_id - 1)  + "_test.txt")));
-            while ((line = reader.readLine()) != null) {
-                i++;
-                Log.e(TAG, i + "th test image loaded");
-                addSample("data/" + line, false);
-            }
-            reader.close();
-
+            loadPartition(pipeline, "data/partition_" + (device_id - 1) + "_train.txt", true);
+            loadPartition(pipeline, "data/partition_" + (device_id - 1) + "_test.txt", false);
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            pipeline.close();
         }
     }
 
-    private void addSample(String photoPath, Boolean isTraining) throws IOException {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-        Bitmap bitmap =  BitmapFactory.decodeStream(this.context.getAssets().open(photoPath), null, options);
-        String sampleClass = get_class(photoPath);
-
-        // get rgb equivalent and class
-        float[] rgbImage = prepareImage(bitmap);
+    private void loadPartition(ImageLoadPipeline pipeline, String listPath, Boolean isTraining)
+            throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(this.context.getAssets().open(listPath)));
+        List<String> photoPaths = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            photoPaths.add("data/" + line);
+        }
+        reader.close();
+
+        int numCached = 0;
+        for (int first = 0; first < photoPaths.size(); first += LOAD_BATCH_SIZE) {
+            List<String> batchPaths =
+                    photoPaths.subList(first, Math.min(first + LOAD_BATCH_SIZE, photoPaths.size()));
+            String[] cacheKeys = batchPaths.toArray(new String[0]);
+            String[] classNames = new String[cacheKeys.length];
+            for (int idx = 0; idx < cacheKeys.length; idx++) {
+                classNames[idx] = get_class(cacheKeys[idx]);
+            }
 
-        // add to the list.
-        try {
-            this.tlModel.addSample(rgbImage, sampleClass, isTraining).get();
-        } catch (ExecutionException e) {
-            throw new RuntimeException("Failed to add sample to model", e.getCause());
-        } catch (InterruptedException e) {
-            // no-op
+            // Only images whose bottlenecks are not cached yet need to be decoded.
+            boolean[] cached = tlModel.addCachedSamples(cacheKeys, classNames, isTraining);
+            List<String> missingKeys = new ArrayList<>();
+            List<String> missingClasses = new ArrayList<>();
+            for (int idx = 0; idx < cacheKeys.length; idx++) {
+                if (cached[idx]) {
+                    numCached++;
+                    continue;
+                }
+                missingKeys.add(cacheKeys[idx]);
+                missingClasses.add(classNames[idx]);
+            }
+            // Photo paths double as cache keys.
+            String[] missingPaths = missingKeys.toArray(new String[0]);
+            pipeline.submit(missingPaths, missingClasses.toArray(new String[0]), missingPaths,
+                    isTraining);
+            Log.e(TAG, (first + cacheKeys.length) + (isTraining ? " training" : " test")
+                    + " images submitted, " + numCached + " from cache");
         }
+        pipeline.finish();
     }
 
     public String get_class(String path) {
@@ -115,32 +183,6 @@ public class FlowerClient {
         return label;
     }
 
-    /**
-     * Normalizes a camera image to [0; 1], cropping it
-     * to size expected by the model and adjusting for camera rotation.
-     */
-    private static float[] prepareImage(Bitmap bitmap)  {
-        int modelImageSize = TransferLearningModelWrapper.IMAGE_SIZE;
-
-        float[] normalizedRgb = new float[modelImageSize * modelImageSize * 3];
-        int nextIdx = 0;
-        for (int y = 0; y < modelImageSize; y++) {
-            for (int x = 0; x < modelImageSize; x++) {
-                int rgb = bitmap.getPixel(x, y);
-
-                float r = ((rgb >> 16) & LOWER_BYTE_MASK) * (1 / 255.0f);
-                float g = ((rgb >> 8) & LOWER_BYTE_MASK) * (1 / 255.0f);
-                float b = (rgb & LOWER_BYTE_MASK) * (1 / 255.0f);
-
-                normalizedRgb[nextIdx++] = r;
-                normalizedRgb[nextIdx++] = g;
-                normalizedRgb[nextIdx++] = b;
-            }
-        }
-
-        return normalizedRgb;
-    }
-
     // function to write to a file :
 
     public void writeStringToFile( Context context , String fileName, String content) {
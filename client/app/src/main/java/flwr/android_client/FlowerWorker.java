@@ -15,9 +15,10 @@ import androidx.annotation.RequiresApi;
 import android.util.Log;
 import android.util.Pair;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import  flwr.android_client.FlowerServiceGrpc.FlowerServiceStub;
 import com.google.protobuf.ByteString;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import java.io.File;
 import java.io.FileWriter;
@@ -25,14 +26,15 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.HashMap;
 import java.util.Map;
 import androidx.core.app.NotificationCompat;
@@ -41,13 +43,23 @@ import androidx.work.ForegroundInfo;
 import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
+import org.tensorflow.lite.examples.transfer.api.ParameterSnapshot;
+import org.tensorflow.lite.examples.transfer.api.TransferLearningModel;
 
 public class FlowerWorker extends Worker {
 
     private ManagedChannel channel;
+    private ChannelManager.Lease channelLease;
+    // Counted down when the worker is stopped, to cut short the wait before rejoining.
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
     public FlowerClient fc;
     private StreamObserver<ClientMessage> UniversalRequestObserver;
     private static final String TAG = "Flower";
+    // What sparse delta uploads left out so far, see SparseDeltaCodec.
+    private static final String UPLOAD_RESIDUAL_FILE = "upload-residual.bin";
+    private static final long CONNECT_TIMEOUT_MS = 20 * 1000;
+    // Attempts to rejoin after the connection failed, before the worker gives up.
+    private static final int MAX_JOIN_RETRIES = 8;
     String serverIp = "00:00:00";
     String serverPort = "0000";
     String dataslice = "1";
@@ -100,7 +112,14 @@ public class FlowerWorker extends Worker {
             {
                 loadData();
                 CompletableFuture<Void> grpcFuture = runGrpc();
-                grpcFuture.get();
+                try {
+                    grpcFuture.get();
+                } catch (ExecutionException e) {
+                    // No join went through before the retries ran out.
+                    workerEndReason = "GRPC Connection failed";
+                    Log.e(TAG, "Could not join the server: " + e.getCause().getMessage());
+                    return Result.failure();
+                }
                 return Result.success();
             }
             else
@@ -115,12 +134,17 @@ public class FlowerWorker extends Worker {
             workerEndReason = "Unknown Error occured in main try catch";
             Log.e(TAG, "Error executing flower code: " + e.getMessage(), e);
             return Result.failure();
+        } finally {
+            if (channelLease != null) {
+                channelLease.release();
+            }
         }
     }
 
     @Override
     public void onStopped() {
         super.onStopped();
+        stopSignal.countDown();
         // Worker is canceled, stopping the global requestObserver if it's not null
         Throwable cancellationCause = new Throwable("Worker canceled");
         if (UniversalRequestObserver != null) {
@@ -131,12 +155,11 @@ public class FlowerWorker extends Worker {
     public boolean connect() {
         int port = Integer.parseInt(serverPort);
         try {
-            channel = ManagedChannelBuilder.forAddress(serverIp, port)
-                    .maxInboundMessageSize(10 * 1024 * 1024)
-                    .usePlaintext()
-                    .build();
-            fc.writeStringToFile(getApplicationContext(), "FlowerResults.txt" , "Connection : Successful with " + serverIp + " : " + serverPort + " : " + dataslice);
-            return true; // connection is successful
+            // The channel of the previous run is reused, and connects when the worker joins:
+            // runGrpc reports whether the connection succeeded.
+            channelLease = ChannelManager.acquire(serverIp, port);
+            channel = channelLease.getChannel();
+            return true; // channel is available
         } catch (Exception e) {
             Log.e(TAG, "Failed to connect to the server: " + e.getMessage(), e);
             fc.writeStringToFile(getApplicationContext(), "FlowerResults.txt" , "Connection : Failed with " + serverIp + " : " + serverPort + " : " + dataslice);
@@ -171,12 +194,58 @@ public class FlowerWorker extends Worker {
             @Override
             public void run() {
                 try {
-                    CountDownLatch latch = new CountDownLatch(1);
-
-                    (new FlowerServiceRunnable()).run(FlowerServiceGrpc.newStub(channel), worker, latch , progressUpdater , getApplicationContext());
-
-                    latch.await(); // Wait for the latch to count down
-                    future.complete(null); // Complete the future when the latch is counted down
+                    ChannelManager.Backoff backoff = new ChannelManager.Backoff(MAX_JOIN_RETRIES);
+                    // Whether a join got through: a message was handled, or the server ended
+                    // the stream cleanly.
+                    boolean joined = false;
+                    while (true) {
+                        FlowerServiceRunnable runnable = new FlowerServiceRunnable();
+                        runnable.connectionSetupMs = channelLease.awaitReady(CONNECT_TIMEOUT_MS);
+                        if (runnable.connectionSetupMs >= 0) {
+                            Log.i(TAG, "Connected in " + runnable.connectionSetupMs + " ms");
+                            CountDownLatch latch = new CountDownLatch(1);
+                            runnable.run(FlowerServiceGrpc.newStub(channel), worker, latch , progressUpdater , getApplicationContext());
+                            latch.await(); // Wait for the latch to count down
+                            if (!joined && (runnable.numHandled > 0 || runnable.failed == null)) {
+                                joined = true;
+                                fc.writeStringToFile(getApplicationContext(), "FlowerResults.txt" , "Connection : Successful with " + serverIp + " : " + serverPort + " : " + dataslice);
+                            }
+                        } else {
+                            workerEndReason = "GRPC Connection failed";
+                        }
+
+                        // The server asks to come back later, or the connection failed: rejoin
+                        // after the requested time, or after a backoff that grows while no
+                        // message gets through.
+                        long delayMillis;
+                        if (isStopped()) {
+                            break;
+                        } else if (runnable.reconnectSeconds > 0) {
+                            backoff.reset();
+                            delayMillis = runnable.reconnectSeconds * 1000;
+                        } else if (runnable.connectionSetupMs < 0 || runnable.failed != null) {
+                            if (runnable.numHandled > 0) {
+                                backoff.reset();
+                            }
+                            if (!backoff.hasAttemptsLeft()) {
+                                break;
+                            }
+                            delayMillis = backoff.nextDelayMillis();
+                        } else {
+                            break;
+                        }
+                        Log.i(TAG, "Rejoining the server in " + delayMillis + " ms");
+                        if (stopSignal.await(delayMillis, TimeUnit.MILLISECONDS)) {
+                            break;
+                        }
+                    }
+                    if (joined) {
+                        future.complete(null); // Complete the future once the worker is done with the server
+                    } else {
+                        fc.writeStringToFile(getApplicationContext(), "FlowerResults.txt" , "Connection : Failed with " + serverIp + " : " + serverPort + " : " + dataslice);
+                        future.completeExceptionally(new IOException(
+                                "No join succeeded with " + serverIp + ":" + serverPort));
+                    }
 
                     Log.d("GRPC", "inside GRPC");
                 } catch (Exception e) {
@@ -186,6 +255,8 @@ public class FlowerWorker extends Worker {
                     pw.flush();
                     Log.e("GRPC", "Failed to connect to the FL server \n" + sw);
                     future.completeExceptionally(e); // Complete the future with an exception
+                } finally {
+                    executor.shutdown();
                 }
             }
         });
@@ -247,8 +318,20 @@ public class FlowerWorker extends Worker {
 
     private static class FlowerServiceRunnable{
         protected Throwable failed;
+        // Picks gzip or identity for every message sent, and counts what the transport sends.
+        private final AdaptiveCompression compression = new AdaptiveCompression();
+        private ClientCallStreamObserver<ClientMessage> requestStream;
+        // Time the channel took to be ready before joining, sent along with the FitRes metrics.
+        long connectionSetupMs;
+        // Set by a ReconnectIns: seconds to wait before rejoining, 0 to stay away.
+        long reconnectSeconds = -1;
+        int numHandled = 0;
+
         public void run(FlowerServiceStub asyncStub, FlowerWorker worker ,  CountDownLatch latch , ProgressUpdater progressUpdater , Context context) {
-            join(asyncStub, worker , latch , progressUpdater , context);
+            FlowerServiceStub compressingStub = asyncStub
+                    .withCompression(AdaptiveCompression.GZIP)
+                    .withInterceptors(compression.interceptor());
+            join(compressingStub, worker , latch , progressUpdater , context);
         }
 
         public void writeStringToFile( Context context , String fileName, String content) {
@@ -285,7 +368,12 @@ public class FlowerWorker extends Worker {
                 throws RuntimeException {
             final CountDownLatch finishLatch = new CountDownLatch(1);
 
-            worker.UniversalRequestObserver = asyncStub.join(new StreamObserver<ServerMessage>() {
+            worker.UniversalRequestObserver = asyncStub.join(new ClientResponseObserver<ClientMessage, ServerMessage>() {
+                @Override
+                public void beforeStart(ClientCallStreamObserver<ClientMessage> stream) {
+                    requestStream = stream;
+                }
+
                 @Override
                 public void onNext(ServerMessage msg) {
                     handleMessage(msg, worker , progressUpdater , context);
@@ -322,15 +410,24 @@ public class FlowerWorker extends Worker {
 
         private void handleMessage(ServerMessage message, FlowerWorker worker , ProgressUpdater progressUpdater , Context context) {
 
+            // Uploaded tensors wrap the buffers of this snapshot, which must stay unchanged until
+            // the message is serialized by onNext.
+            ParameterSnapshot uploadSnapshot = null;
+            // Set for sparse delta uploads, whose residual is stored once the upload is sent.
+            SparseDeltaCodec deltaCodec = null;
+            numHandled++;
             try {
-                ByteBuffer[] weights;
                 ClientMessage c = null;
+                boolean disconnect = false;
 
                 if (message.hasGetParametersIns()) {
                     Log.e(TAG, "Handling GetParameters");
 
-                    weights = worker.fc.getWeights();
-                    c = weightsAsProto(weights);
+                    Map<String, Scalar> config = message.getGetParametersIns().getConfigMap();
+                    TensorCodec codec = TensorCodec.fromConfig(config, TensorCodec.FLOAT32);
+                    uploadSnapshot = worker.fc.getWeights();
+                    c = weightsAsProto(uploadSnapshot.getBuffers(), codec,
+                            TensorChunks.chunkBytesFromConfig(config), compression);
                 } else if (message.hasFitIns()) {
 
                     SimpleDateFormat sdf = null;
@@ -357,21 +454,44 @@ public class FlowerWorker extends Worker {
 
                     assert epoch_config != null;
                     int local_epochs = (int) epoch_config.getSint64();
+                    int checkpointBatches = FlowerClient.DEFAULT_CHECKPOINT_BATCHES;
+                    if (message.getFitIns().getConfigMap().containsKey("checkpoint_batches")) {
+                        checkpointBatches = Math.max(1, (int) message.getFitIns().getConfigMap()
+                                .get("checkpoint_batches").getSint64());
+                    }
 
-                    // Our model has 10 layers
-                    ByteBuffer[] newWeights = new ByteBuffer[10] ;
-                    for (int i = 0; i < 10; i++) {
-                        newWeights[i] = ByteBuffer.wrap(layers.get(i).toByteArray());
+                    Map<String, Scalar> fitConfig = message.getFitIns().getConfigMap();
+                    compression.configure(fitConfig);
+                    compression.startRound();
+                    TensorCodec uploadCodec = TensorCodec.FLOAT32;
+                    if (SparseDeltaCodec.isRequested(fitConfig)) {
+                        deltaCodec = new SparseDeltaCodec(
+                                new File(context.getFilesDir(), UPLOAD_RESIDUAL_FILE),
+                                SparseDeltaCodec.fractionFromConfig(fitConfig));
+                    } else {
+                        uploadCodec = TensorCodec.fromConfig(fitConfig, TensorCodec.FLOAT32);
                     }
 
-                    Pair<ByteBuffer[], Integer> outputs = worker.fc.fit(newWeights, local_epochs);
+                    TensorCodec.Stats downloadStats = new TensorCodec.Stats();
+                    ByteBuffer[] newWeights = TensorCodec.decodeAll(
+                            message.getFitIns().getParameters(),
+                            worker.fc.getParameterBinder(), downloadStats);
+                    Log.i(TAG, "Decoded FitIns parameters: " + downloadStats);
+
+                    Pair<ParameterSnapshot, Integer> outputs = worker.fc.fit(
+                            newWeights, local_epochs, fitRoundId(layers, local_epochs),
+                            checkpointBatches);
                     currentDate = new Date();
                     // Format the date and time using the SimpleDateFormat object
                     if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
                         end_time = sdf.format(currentDate);
                     }
                     Log.d("FIT-RESPONSE", "ABOUT TO SEND FIT RESPONSE");
-                    c = fitResAsProto(outputs.first, outputs.second);
+                    uploadSnapshot = outputs.first;
+                    c = fitResAsProto(uploadSnapshot.getBuffers(), newWeights, outputs.second,
+                            worker.fc.getBottleneckPoolSize(), uploadCodec, deltaCodec,
+                            TensorChunks.chunkBytesFromConfig(fitConfig), downloadStats,
+                            compression, connectionSetupMs);
                 } else if (message.hasEvaluateIns()) {
                     Log.e(TAG, "Handling EvaluateIns");
 
@@ -384,12 +504,11 @@ public class FlowerWorker extends Worker {
                     if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.N) {
                         start_time = sdf.format(currentDate);
                     }
-                    List<ByteString> layers = message.getEvaluateIns().getParameters().getTensorsList();
-                    // Our model has 10 layers
-                    ByteBuffer[] newWeights = new ByteBuffer[10] ;
-                    for (int i = 0; i < 10; i++) {
-                        newWeights[i] = ByteBuffer.wrap(layers.get(i).toByteArray());
-                    }
+                    TensorCodec.Stats downloadStats = new TensorCodec.Stats();
+                    ByteBuffer[] newWeights = TensorCodec.decodeAll(
+                            message.getEvaluateIns().getParameters(),
+                            worker.fc.getParameterBinder(), downloadStats);
+                    Log.i(TAG, "Decoded EvaluateIns parameters: " + downloadStats);
                     Pair<Pair<Float, Float>, Integer> inference = worker.fc.evaluate(newWeights);
                     float loss = inference.first.first;
                     float accuracy = inference.first.second;
@@ -404,41 +523,103 @@ public class FlowerWorker extends Worker {
                     writeStringToFile( context ,"FlowerResults.txt", newMessage);
                     progressUpdater.setProgress();
                     c = evaluateResAsProto(loss , accuracy , test_size);
+                    compression.decideWithoutTensors();
+                } else if (message.hasReconnectIns()) {
+                    reconnectSeconds = message.getReconnectIns().getSeconds();
+                    Log.e(TAG, "Handling ReconnectIns: " + reconnectSeconds + " s");
+                    Reason reason = reconnectSeconds > 0 ? Reason.RECONNECT : Reason.ACK;
+                    ClientMessage.DisconnectRes res = ClientMessage.DisconnectRes.newBuilder()
+                            .setReason(reason).build();
+                    c = ClientMessage.newBuilder().setDisconnectRes(res).build();
+                    compression.decideWithoutTensors();
+                    disconnect = true;
                 }
+                requestStream.setMessageCompression(compression.shouldCompress());
+                long sendStartNanos = System.nanoTime();
                 worker.UniversalRequestObserver.onNext(c);
+                compression.recordSend(System.nanoTime() - sendStartNanos);
+                if (deltaCodec != null) {
+                    deltaCodec.commitResidual();
+                }
+                if (disconnect) {
+                    // The server closes the stream in turn, which ends this join.
+                    worker.UniversalRequestObserver.onCompleted();
+                }
             }
             catch (Exception e){
                 Log.e("Exception","Exception occured in GRPC Connection");
                 Log.e(TAG, e.getMessage());
+            } finally {
+                if (uploadSnapshot != null) {
+                    uploadSnapshot.close();
+                }
             }
         }
     }
 
-    private static ClientMessage weightsAsProto(ByteBuffer[] weights){
-        List<ByteString> layers = new ArrayList<>();
-        for (ByteBuffer weight : weights) {
-            layers.add(ByteString.copyFrom(weight));
+    // Identifies a round by what the server sent for it, so that the same FitIns received again
+    // after a restart resumes the local training of the first attempt.
+    private static long fitRoundId(List<ByteString> layers, int localEpochs) {
+        long roundId = localEpochs;
+        for (ByteString layer : layers) {
+            roundId = roundId * 1000003 + layer.hashCode();
         }
-        Parameters p = Parameters.newBuilder().addAllTensors(layers).setTensorType("ND").build();
+        return roundId == TransferLearningModel.NO_RUN_ID ? 1 : roundId;
+    }
+
+    static ClientMessage weightsAsProto(ByteBuffer[] weights, TensorCodec codec, int chunkBytes,
+                                        AdaptiveCompression compression){
+        TensorCodec.Stats uploadStats = new TensorCodec.Stats();
+        List<ByteString> layers = codec.encodeAll(weights, uploadStats);
+        Log.i(TAG, "Encoded parameters as " + codec.getConfigName() + ": " + uploadStats);
+        compression.decide(layers);
+        Parameters p = TensorChunks.toParameters(layers, codec.getTensorType(), chunkBytes);
         ClientMessage.GetParametersRes res = ClientMessage.GetParametersRes.newBuilder().setParameters(p).build();
         return ClientMessage.newBuilder().setGetParametersRes(res).build();
     }
 
-    private static ClientMessage fitResAsProto(ByteBuffer[] weights, int training_size){
-        List<ByteString> layers = new ArrayList<>();
-        for (ByteBuffer weight : weights) {
-            layers.add(ByteString.copyFrom(weight));
+    // Uploads [weights] as a sparse delta from [globalWeights] if [deltaCodec] is set, and
+    // encoded with [codec] otherwise, in chunks of [chunkBytes] if it is positive. Like
+    // weightsAsProto, visible to tests, which check that it does not copy the parameters.
+    static ClientMessage fitResAsProto(ByteBuffer[] weights, ByteBuffer[] globalWeights,
+                                       int training_size, int bottleneck_pool_size,
+                                       TensorCodec codec, SparseDeltaCodec deltaCodec,
+                                       int chunkBytes, TensorCodec.Stats downloadStats,
+                                       AdaptiveCompression compression,
+                                       long connectionSetupMs) {
+        // An example portraying how to upload data to the server via FLower Server side GRPC
+        Map<String, Scalar> metrics = new HashMap<>();
+
+        TensorCodec.Stats uploadStats = new TensorCodec.Stats();
+        List<ByteString> layers;
+        String encoding;
+        String tensorType;
+        if (deltaCodec != null) {
+            layers = deltaCodec.encodeAll(weights, globalWeights, uploadStats);
+            encoding = SparseDeltaCodec.CONFIG_NAME;
+            tensorType = SparseDeltaCodec.TENSOR_TYPE;
+            deltaCodec.putMetrics(metrics);
+        } else {
+            layers = codec.encodeAll(weights, uploadStats);
+            encoding = codec.getConfigName();
+            tensorType = codec.getTensorType();
         }
+        Log.i(TAG, "Encoded FitRes parameters as " + encoding + ": " + uploadStats);
 
         Log.d("ENDTIME", end_time);
         Log.d("STARTTIME", start_time);
 
-        // An example portraying how to upload data to the server via FLower Server side GRPC
-        Map<String, Scalar> metrics = new HashMap<>();
-
         metrics.put("start_time", Scalar.newBuilder().setString(start_time).build());
         metrics.put("end_time", Scalar.newBuilder().setString(end_time).build());
-        Parameters p = Parameters.newBuilder().addAllTensors(layers).setTensorType("ND").build();
+        metrics.put("bottleneck_pool_size", Scalar.newBuilder().setSint64(bottleneck_pool_size).build());
+        // Lets the server weigh the bytes saved per round against the time spent encoding them.
+        metrics.put(TensorCodec.CONFIG_KEY, Scalar.newBuilder().setString(encoding).build());
+        uploadStats.putMetrics(metrics, "upload");
+        downloadStats.putMetrics(metrics, "download");
+        compression.decide(layers);
+        compression.putMetrics(metrics);
+        metrics.put("connection_setup_ms", Scalar.newBuilder().setSint64(connectionSetupMs).build());
+        Parameters p = TensorChunks.toParameters(layers, tensorType, chunkBytes);
         ClientMessage.FitRes res = ClientMessage.FitRes.newBuilder().setParameters(p).setNumExamples(training_size).putAllMetrics(metrics).build();
         return ClientMessage.newBuilder().setFitRes(res).build();
     }
@@ -0,0 +1,195 @@
+package flwr.android_client;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes asset images and hands them to the model in batches.
+ *
+ * <p>Images of a batch are decoded by parallel workers and normalized straight into a direct
+ * buffer, which the model reads while the next batch is decoded. Only {@link #NUM_BUFFERS}
+ * batches are in flight at once: before a buffer is reused, the pipeline waits for the model to
+ * be done with it.
+ */
+public class ImageLoadPipeline {
+
+    private static final String TAG = "ImageLoadPipeline";
+    private static final int LOWER_BYTE_MASK = 0xFF;
+    private static final int NUM_CHANNELS = 3;
+    private static final int FLOAT_BYTES = 4;
+    private static final int NUM_BUFFERS = 2;
+
+    private final AssetManager assets;
+    private final TransferLearningModelWrapper tlModel;
+    private final int imageSize;
+    private final int batchSize;
+    private final ExecutorService decodeExecutor;
+    private final int numWorkers;
+
+    private final ByteBuffer[] buffers = new ByteBuffer[NUM_BUFFERS];
+    private final Future<?>[] pending = new Future<?>[NUM_BUFFERS];
+    private int nextBuffer = 0;
+
+    // Pixels of one image row and their normalized values, one pair per decode worker.
+    private final int[][] rowPixels;
+    private final float[][] rowValues;
+
+    private int numImages = 0;
+    private long decodeNanos = 0;
+    private long startMillis = -1;
+
+    public ImageLoadPipeline(
+            AssetManager assets, TransferLearningModelWrapper tlModel, int imageSize,
+            int batchSize, int numWorkers) {
+        this.assets = assets;
+        this.tlModel = tlModel;
+        this.imageSize = imageSize;
+        this.batchSize = batchSize;
+        this.numWorkers = numWorkers;
+        this.decodeExecutor = Executors.newFixedThreadPool(numWorkers);
+        this.rowPixels = new int[numWorkers][imageSize];
+        this.rowValues = new float[numWorkers][imageSize * NUM_CHANNELS];
+
+        int imageBytes = imageSize * imageSize * NUM_CHANNELS * FLOAT_BYTES;
+        for (int bufferIdx = 0; bufferIdx < NUM_BUFFERS; bufferIdx++) {
+            buffers[bufferIdx] = ByteBuffer.allocateDirect(batchSize * imageBytes)
+                    .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Decodes a batch of images and submits them to the model. Returns once the images are
+     * decoded; bottlenecks are generated in the background, until {@link #finish()} is called.
+     */
+    public void submit(String[] photoPaths, String[] classNames, String[] cacheKeys,
+                       Boolean isTraining) throws IOException {
+        if (photoPaths.length > batchSize) {
+            throw new IllegalArgumentException(String.format(
+                    "Got %d images, but batches hold at most %d", photoPaths.length, batchSize));
+        }
+        if (photoPaths.length == 0) {
+            return;
+        }
+        if (startMillis < 0) {
+            startMillis = SystemClock.elapsedRealtime();
+        }
+
+        int bufferIdx = nextBuffer;
+        nextBuffer = (nextBuffer + 1) % NUM_BUFFERS;
+        await(pending[bufferIdx]);
+        pending[bufferIdx] = null;
+
+        long startNanos = System.nanoTime();
+        ByteBuffer buffer = buffers[bufferIdx];
+        List<Future<Void>> workers = new ArrayList<>();
+        for (int worker = 0; worker < numWorkers; worker++) {
+            int workerIdx = worker;
+            workers.add(decodeExecutor.submit(() -> {
+                FloatBuffer values =
+                        buffer.duplicate().order(ByteOrder.nativeOrder()).asFloatBuffer();
+                for (int idx = workerIdx; idx < photoPaths.length; idx += numWorkers) {
+                    values.position(idx * imageSize * imageSize * NUM_CHANNELS);
+                    decodeInto(photoPaths[idx], values, rowPixels[workerIdx], rowValues[workerIdx]);
+                }
+                return null;
+            }));
+        }
+        // Every worker must be done with the buffer before a failure is reported.
+        IOException failure = null;
+        for (Future<Void> worker : workers) {
+            try {
+                await(worker);
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        decodeNanos += System.nanoTime() - startNanos;
+        numImages += photoPaths.length;
+
+        buffer.rewind();
+        pending[bufferIdx] =
+                tlModel.addSamples(buffer, photoPaths.length, classNames, isTraining, cacheKeys);
+    }
+
+    /** Waits until every submitted image is added to the model, and logs the throughput. */
+    public void finish() throws IOException {
+        for (int bufferIdx = 0; bufferIdx < NUM_BUFFERS; bufferIdx++) {
+            await(pending[bufferIdx]);
+            pending[bufferIdx] = null;
+        }
+        if (numImages > 0) {
+            long elapsedMillis = Math.max(1, SystemClock.elapsedRealtime() - startMillis);
+            Log.i(TAG, String.format("%d images in %d ms: %.1f images/s, decoding took %d ms",
+                    numImages, elapsedMillis, numImages * 1000f / elapsedMillis,
+                    decodeNanos / 1000000));
+        }
+        numImages = 0;
+        decodeNanos = 0;
+        startMillis = -1;
+    }
+
+    public void close() {
+        decodeExecutor.shutdownNow();
+    }
+
+    // Decodes an image and writes its top-left [imageSize] square, normalized to [0; 1].
+    private void decodeInto(String photoPath, FloatBuffer values, int[] pixels, float[] row)
+            throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap;
+        try (InputStream stream = assets.open(photoPath)) {
+            bitmap = BitmapFactory.decodeStream(stream, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Could not decode " + photoPath);
+        }
+
+        for (int y = 0; y < imageSize; y++) {
+            bitmap.getPixels(pixels, 0, imageSize, 0, y, imageSize, 1);
+            int nextIdx = 0;
+            for (int rgb : pixels) {
+                row[nextIdx++] = ((rgb >> 16) & LOWER_BYTE_MASK) * (1 / 255.0f);
+                row[nextIdx++] = ((rgb >> 8) & LOWER_BYTE_MASK) * (1 / 255.0f);
+                row[nextIdx++] = (rgb & LOWER_BYTE_MASK) * (1 / 255.0f);
+            }
+            values.put(row);
+        }
+        bitmap.recycle();
+    }
+
+    private static void await(Future<?> future) throws IOException {
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Failed to load images", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading images", e);
+        }
+    }
+}
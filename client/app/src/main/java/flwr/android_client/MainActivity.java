@@ -192,6 +192,8 @@ public class MainActivity extends AppCompatActivity {
     public void stopWorker(View view) {
         // Cancel the worker
         WorkManager.getInstance(getApplicationContext()).cancelAllWork();
+        // No run will reuse the cached gRPC channels any more.
+        ChannelManager.shutdownAll();
         // Providing user feedback again, e.g., a toast message
         Toast.makeText(this, "Worker stopped!", Toast.LENGTH_SHORT).show();
     }
@@ -13,7 +13,6 @@ import androidx.annotation.RequiresApi;
 import android.util.Log;
 import android.util.Pair;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import flwr.android_client.FlowerServiceGrpc.FlowerServiceStub;
 import com.google.protobuf.ByteString;
 import io.grpc.stub.StreamObserver;
@@ -28,9 +27,12 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.HashMap;
 import java.util.Map;
 import androidx.core.app.NotificationCompat;
@@ -43,9 +45,14 @@ import androidx.work.WorkerParameters;
 public class RecommendationFlowerWorker extends Worker {
 
     private ManagedChannel channel;
+    private ChannelManager.Lease channelLease;
+    // Counted down when the worker is stopped, to cut short the wait before rejoining.
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
     public RecommendationFlowerClient rfc;
     private StreamObserver<ClientMessage> UniversalRequestObserver;
     private static final String TAG = "RecommendationFlower";
+    private static final long CONNECT_TIMEOUT_MS = 20 * 1000;
+    private static final int MAX_JOIN_RETRIES = 8;
     String serverIp = "00:00:00";
     String serverPort = "0000";
     String dataslice = "1";
@@ -89,10 +96,18 @@ public class RecommendationFlowerWorker extends Worker {
             workerStartTime = getTime();
             boolean resultConnect = connect();
             if(resultConnect) {
-                Log.d(TAG, "Connected to server successfully");
+                Log.d(TAG, "Channel to the server acquired");
                 loadData();
                 CompletableFuture<Void> future = runGrpc();
-                future.get();
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // No join went through before the retries ran out.
+                    Log.e(TAG, "Could not join the server: " + e.getCause().getMessage());
+                    workerEndTime = getTime();
+                    workerEndReason = "connection failed";
+                    return Result.failure();
+                }
                 workerEndTime = getTime();
                 workerEndReason = "worker completed successfully";
                 return Result.success();
@@ -107,15 +122,18 @@ public class RecommendationFlowerWorker extends Worker {
             workerEndTime = getTime();
             workerEndReason = "error: " + e.getMessage();
             return Result.failure();
+        } finally {
+            if (channelLease != null) {
+                channelLease.release();
+            }
         }
     }
 
     @Override
     public void onStopped() {
         super.onStopped();
-        if (channel != null) {
-            channel.shutdown();
-        }
+        // The channel is shared with later runs, doWork gives it back to the ChannelManager.
+        stopSignal.countDown();
         if (rfc != null) {
             rfc.cleanup();
         }
@@ -123,9 +141,8 @@ public class RecommendationFlowerWorker extends Worker {
 
     public boolean connect() {
         try {
-            channel = ManagedChannelBuilder.forAddress(serverIp, Integer.parseInt(serverPort))
-                    .usePlaintext()
-                    .build();
+            channelLease = ChannelManager.acquire(serverIp, Integer.parseInt(serverPort));
+            channel = channelLease.getChannel();
             return true;
         } catch (Exception e) {
             Log.e(TAG, "Connection error: " + e.getMessage());
@@ -146,15 +163,54 @@ public class RecommendationFlowerWorker extends Worker {
         return CompletableFuture.runAsync(() -> {
             try {
                 FlowerServiceStub asyncStub = FlowerServiceGrpc.newStub(channel);
-                CountDownLatch latch = new CountDownLatch(1);
                 ProgressUpdater progressUpdater = new ProgressUpdater();
-                
-                FlowerServiceRunnable runnable = new FlowerServiceRunnable();
-                runnable.run(asyncStub, this, latch, progressUpdater, getApplicationContext());
-                
-                latch.await();
+                ChannelManager.Backoff backoff = new ChannelManager.Backoff(MAX_JOIN_RETRIES);
+                // Whether a join got through: a message was handled, or the server ended the
+                // stream cleanly.
+                boolean joined = false;
+                while (true) {
+                    FlowerServiceRunnable runnable = new FlowerServiceRunnable();
+                    long setupMs = channelLease.awaitReady(CONNECT_TIMEOUT_MS);
+                    if (setupMs >= 0) {
+                        Log.d(TAG, "Connected in " + setupMs + " ms");
+                        CountDownLatch latch = new CountDownLatch(1);
+                        runnable.run(asyncStub, this, latch, progressUpdater, getApplicationContext());
+                        latch.await();
+                        joined |= runnable.numHandled > 0 || runnable.failed == null;
+                    }
+
+                    // Rejoin when the server asked to, or with backoff when the connection failed.
+                    long delayMillis;
+                    if (isStopped()) {
+                        break;
+                    } else if (runnable.reconnectSeconds > 0) {
+                        backoff.reset();
+                        delayMillis = runnable.reconnectSeconds * 1000;
+                    } else if (setupMs < 0 || runnable.failed != null) {
+                        if (runnable.numHandled > 0) {
+                            backoff.reset();
+                        }
+                        if (!backoff.hasAttemptsLeft()) {
+                            break;
+                        }
+                        delayMillis = backoff.nextDelayMillis();
+                    } else {
+                        break;
+                    }
+                    Log.d(TAG, "Rejoining the server in " + delayMillis + " ms");
+                    if (stopSignal.await(delayMillis, TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                }
+                if (!joined) {
+                    throw new CompletionException(new IOException(
+                            "No join succeeded with " + serverIp + ":" + serverPort));
+                }
+            } catch (CompletionException e) {
+                throw e;
             } catch (Exception e) {
                 Log.e(TAG, "gRPC error: " + e.getMessage());
+                throw new CompletionException(e);
             }
         });
     }
@@ -200,6 +256,9 @@ public class RecommendationFlowerWorker extends Worker {
 
     private static class FlowerServiceRunnable {
         protected Throwable failed;
+        // Set by a ReconnectIns: seconds to wait before rejoining, 0 to stay away.
+        long reconnectSeconds = -1;
+        int numHandled = 0;
 
         public void run(FlowerServiceStub asyncStub, RecommendationFlowerWorker worker, CountDownLatch latch, ProgressUpdater progressUpdater, Context context) {
             try {
@@ -223,7 +282,8 @@ public class RecommendationFlowerWorker extends Worker {
         }
 
         private void join(FlowerServiceStub asyncStub, RecommendationFlowerWorker worker, CountDownLatch latch, ProgressUpdater progressUpdater, Context context) {
-            asyncStub.join(ClientMessage.newBuilder().build(), new StreamObserver<ServerMessage>() {
+            // Join is a bidirectional stream: replies to the server go through the request observer.
+            worker.UniversalRequestObserver = asyncStub.join(new StreamObserver<ServerMessage>() {
                 @Override
                 public void onNext(ServerMessage msg) {
                     try {
@@ -236,6 +296,7 @@ public class RecommendationFlowerWorker extends Worker {
                 @Override
                 public void onError(Throwable t) {
                     Log.e(TAG, "gRPC error: " + t.getMessage());
+                    failed = t;
                     latch.countDown();
                 }
 
@@ -248,6 +309,7 @@ public class RecommendationFlowerWorker extends Worker {
         }
 
         private void handleMessage(ServerMessage message, RecommendationFlowerWorker worker, ProgressUpdater progressUpdater, Context context) {
+            numHandled++;
             try {
                 if (message.hasJoinIns()) {
                     Log.d(TAG, "Received join instruction");
@@ -259,8 +321,15 @@ public class RecommendationFlowerWorker extends Worker {
                     Log.d(TAG, "Received evaluate instruction");
                     handleEvaluateInstruction(message.getEvaluateIns(), worker, context);
                 } else if (message.hasReconnectIns()) {
-                    Log.d(TAG, "Received reconnect instruction");
-                    // Handle reconnect
+                    reconnectSeconds = message.getReconnectIns().getSeconds();
+                    Log.d(TAG, "Received reconnect instruction: " + reconnectSeconds + " s");
+                    Reason reason = reconnectSeconds > 0 ? Reason.RECONNECT : Reason.ACK;
+                    ClientMessage.DisconnectRes res = ClientMessage.DisconnectRes.newBuilder()
+                            .setReason(reason).build();
+                    worker.UniversalRequestObserver.onNext(
+                            ClientMessage.newBuilder().setDisconnectRes(res).build());
+                    // The server closes the stream in turn, which ends this join.
+                    worker.UniversalRequestObserver.onCompleted();
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error handling message: " + e.getMessage());
@@ -3,14 +3,19 @@ package flwr.android_client;
 import android.content.Context;
 import android.util.Log;
 import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.examples.transfer.api.InterpreterAutotuner;
+import org.tensorflow.lite.examples.transfer.api.InterpreterProfile;
 import org.tensorflow.lite.Tensor;
 import org.tensorflow.lite.support.common.FileUtil;
 import org.tensorflow.lite.support.common.TensorOperator;
 import org.tensorflow.lite.support.tensorbuffer.TensorBuffer;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
@@ -48,9 +53,15 @@ public class RecommendationModelWrapper {
                 FileUtil.copyAsset(context, MODEL_PATH, modelFile);
             }
             
-            Interpreter.Options options = new Interpreter.Options();
-            options.setNumThreads(4);
-            tflite = new Interpreter(modelFile, options);
+            MappedByteBuffer model;
+            try (RandomAccessFile file = new RandomAccessFile(modelFile, "r")) {
+                model = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            }
+            InterpreterProfile profile = new InterpreterAutotuner(context).tune(
+                    MODEL_PATH,
+                    model,
+                    new InterpreterProfile().setNumThreads(InterpreterProfile.AUTOTUNE_THREADS));
+            tflite = new Interpreter(model, profile.toOptions());
             
             Log.d(TAG, "Model loaded successfully");
         } catch (IOException e) {
@@ -0,0 +1,296 @@
+package flwr.android_client;
+
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Uploads only the largest changes a round made to the parameters.
+ *
+ * <p>The delta of every tensor from the global parameters of the round is sparsified to its
+ * [fraction] of largest magnitudes. What is left out is not lost: it accumulates in a residual,
+ * added to the delta of the next round, so that small but steady changes are eventually sent.
+ * The residual is kept in a file, which carries it over to the next run of the worker. It is only
+ * replaced once the upload is sent, see {@link #commitResidual()}, so that a round whose upload
+ * failed starts over from the same residual when it is run again.
+ *
+ * <p>Each tensor is sent little endian, as its int32 number of values and int32 number of sent
+ * entries {@code k}, then {@code k} int32 indices and {@code k} float32 deltas.
+ */
+public final class SparseDeltaCodec {
+
+    /** Value of {@link TensorCodec#CONFIG_KEY} that asks for sparse delta uploads. */
+    public static final String CONFIG_NAME = "topk_delta";
+    public static final String TENSOR_TYPE = "SPARSE_DELTA";
+    /** Config entry holding the fraction of values sent per tensor. */
+    public static final String FRACTION_KEY = "topk_fraction";
+    public static final double DEFAULT_FRACTION = 0.01;
+
+    private static final String TAG = "SparseDeltaCodec";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int INT_BYTES = 4;
+    private static final int FLOAT_BYTES = 4;
+    private static final int HEADER_BYTES = 2 * INT_BYTES;
+
+    private final File residualPath;
+    private final double fraction;
+
+    // Residual left by the last encoding, until it is committed.
+    private float[][] pendingResidual;
+
+    // Squared L2 norms of the last encoded deltas, of their sent part and of the new residual.
+    private double deltaEnergy = 0;
+    private double sentEnergy = 0;
+    private double residualEnergy = 0;
+
+    public SparseDeltaCodec(File residualPath, double fraction) {
+        if (!(fraction > 0 && fraction <= 1)) {
+            throw new IllegalArgumentException(String.format(
+                    "Fraction of sent values must be in (0; 1], but got %f", fraction));
+        }
+        this.residualPath = residualPath;
+        this.fraction = fraction;
+    }
+
+    /** Returns whether [config] asks for sparse delta uploads. */
+    public static boolean isRequested(Map<String, Scalar> config) {
+        return config.containsKey(TensorCodec.CONFIG_KEY)
+                && CONFIG_NAME.equals(config.get(TensorCodec.CONFIG_KEY).getString());
+    }
+
+    /** Returns the fraction of values to send, as set by [config]. */
+    public static double fractionFromConfig(Map<String, Scalar> config) {
+        if (!config.containsKey(FRACTION_KEY)) {
+            return DEFAULT_FRACTION;
+        }
+        return config.get(FRACTION_KEY).getDouble();
+    }
+
+    /**
+     * Encodes the change from [reference] to [weights] plus the stored residual. The part left
+     * out becomes the new residual once {@link #commitResidual()} is called. Both arrays hold raw
+     * float32 values in native order.
+     */
+    public List<ByteString> encodeAll(
+            ByteBuffer[] weights, ByteBuffer[] reference, TensorCodec.Stats stats) {
+        if (weights.length != reference.length) {
+            throw new IllegalArgumentException(String.format(
+                    "Got %d parameter tensors, but %d reference tensors",
+                    weights.length, reference.length));
+        }
+        long startNanos = System.nanoTime();
+        float[][] residual = loadResidual(weights);
+        deltaEnergy = 0;
+        sentEnergy = 0;
+        residualEnergy = 0;
+
+        List<ByteString> encoded = new ArrayList<>(weights.length);
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        for (int tensorIdx = 0; tensorIdx < weights.length; tensorIdx++) {
+            float[] delta = residual[tensorIdx];
+            FloatBuffer current = floats(weights[tensorIdx]);
+            FloatBuffer previous = floats(reference[tensorIdx]);
+            if (previous.remaining() != delta.length) {
+                throw new IllegalArgumentException(String.format(
+                        "Parameter %d has %d values, but its reference has %d",
+                        tensorIdx, delta.length, previous.remaining()));
+            }
+            for (int idx = 0; idx < delta.length; idx++) {
+                delta[idx] += current.get(idx) - previous.get(idx);
+            }
+
+            ByteString data = encodeTopK(delta);
+            rawBytes += (long) delta.length * FLOAT_BYTES;
+            encodedBytes += data.size();
+            encoded.add(data);
+        }
+        pendingResidual = residual;
+        stats.add(rawBytes, encodedBytes, System.nanoTime() - startNanos);
+        Log.i(TAG, String.format("Sent %.1f%% of the delta energy, residual norm %.4g",
+                getSentEnergyFraction() * 100, Math.sqrt(residualEnergy)));
+        return encoded;
+    }
+
+    /**
+     * Stores the residual of the last encoding, once the message holding it has been sent.
+     * Committing twice, or before encoding, has no effect.
+     */
+    public void commitResidual() throws IOException {
+        if (pendingResidual == null) {
+            return;
+        }
+        storeResidual(pendingResidual);
+        pendingResidual = null;
+    }
+
+    /** Fraction of the squared norm of the last deltas that was sent. */
+    public double getSentEnergyFraction() {
+        return deltaEnergy == 0 ? 1 : sentEnergy / deltaEnergy;
+    }
+
+    /** Stores the accuracy side of the tradeoff, next to the upload bytes, in [metrics]. */
+    public void putMetrics(Map<String, Scalar> metrics) {
+        metrics.put(FRACTION_KEY, Scalar.newBuilder().setDouble(fraction).build());
+        metrics.put("topk_sent_energy",
+                Scalar.newBuilder().setDouble(getSentEnergyFraction()).build());
+        metrics.put("topk_residual_norm",
+                Scalar.newBuilder().setDouble(Math.sqrt(residualEnergy)).build());
+    }
+
+    // Sends the largest magnitudes of [delta] and zeroes them, leaving the residual behind.
+    private ByteString encodeTopK(float[] delta) {
+        int numValues = delta.length;
+        int k = (int) Math.min(numValues, Math.ceil(numValues * fraction));
+        float[] magnitudes = new float[numValues];
+        for (int idx = 0; idx < numValues; idx++) {
+            magnitudes[idx] = Math.abs(delta[idx]);
+            deltaEnergy += (double) delta[idx] * delta[idx];
+        }
+        float threshold = k == 0 ? Float.POSITIVE_INFINITY : select(magnitudes, numValues - k);
+
+        ByteBuffer target = ByteBuffer.allocate(HEADER_BYTES + k * (INT_BYTES + FLOAT_BYTES))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        target.putInt(numValues);
+        target.putInt(k);
+        int valuesOffset = HEADER_BYTES + k * INT_BYTES;
+        // Values above the threshold always fit in k entries; ties take whatever room is left.
+        int numAbove = 0;
+        for (int idx = 0; idx < numValues; idx++) {
+            if (Math.abs(delta[idx]) > threshold) {
+                numAbove++;
+            }
+        }
+        int tiesLeft = k - numAbove;
+        int numSent = 0;
+        for (int idx = 0; idx < numValues && numSent < k; idx++) {
+            float magnitude = Math.abs(delta[idx]);
+            if (magnitude > threshold || (magnitude == threshold && tiesLeft-- > 0)) {
+                target.putInt(HEADER_BYTES + numSent * INT_BYTES, idx);
+                target.putFloat(valuesOffset + numSent * FLOAT_BYTES, delta[idx]);
+                sentEnergy += (double) delta[idx] * delta[idx];
+                delta[idx] = 0;
+                numSent++;
+            }
+        }
+        for (float value : delta) {
+            residualEnergy += (double) value * value;
+        }
+        return UnsafeByteOperations.unsafeWrap(target.array());
+    }
+
+    // Partially sorts [values] and returns the one that would be at [rank] in sorted order.
+    private static float select(float[] values, int rank) {
+        int left = 0;
+        int right = values.length - 1;
+        while (left < right) {
+            float pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) {
+                    i++;
+                }
+                while (values[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    float swap = values[i];
+                    values[i] = values[j];
+                    values[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (rank <= j) {
+                right = j;
+            } else if (rank >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return values[rank];
+    }
+
+    // Reads the residual of the previous round, or starts from zero if it does not fit [shapes].
+    private float[][] loadResidual(ByteBuffer[] shapes) {
+        float[][] residual = new float[shapes.length][];
+        long totalBytes = 0;
+        for (int tensorIdx = 0; tensorIdx < shapes.length; tensorIdx++) {
+            residual[tensorIdx] = new float[shapes[tensorIdx].capacity() / FLOAT_BYTES];
+            totalBytes += shapes[tensorIdx].capacity();
+        }
+        if (!residualPath.exists()) {
+            return residual;
+        }
+        if (residualPath.length() != totalBytes) {
+            Log.w(TAG, String.format("Ignoring residual of %d bytes, the model has %d",
+                    residualPath.length(), totalBytes));
+            return residual;
+        }
+
+        try (RandomAccessFile file = new RandomAccessFile(residualPath, "r")) {
+            FileChannel channel = file.getChannel();
+            for (float[] tensor : residual) {
+                ByteBuffer bytes = ByteBuffer.allocate(tensor.length * FLOAT_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                while (bytes.hasRemaining()) {
+                    if (channel.read(bytes) < 0) {
+                        throw new IOException("Residual ended early");
+                    }
+                }
+                bytes.flip();
+                bytes.asFloatBuffer().get(tensor);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read residual, starting from zero", e);
+            for (float[] tensor : residual) {
+                Arrays.fill(tensor, 0);
+            }
+        }
+        return residual;
+    }
+
+    // Replaces the stored residual as a whole, so that a crash never leaves half of one behind.
+    private void storeResidual(float[][] residual) throws IOException {
+        File tempPath = new File(residualPath.getPath() + TEMP_SUFFIX);
+        try (RandomAccessFile file = new RandomAccessFile(tempPath, "rw")) {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            for (float[] tensor : residual) {
+                ByteBuffer bytes = ByteBuffer.allocate(tensor.length * FLOAT_BYTES)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                bytes.asFloatBuffer().put(tensor);
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+            }
+            channel.force(true);
+        }
+        if (!tempPath.renameTo(residualPath)) {
+            tempPath.delete();
+            throw new IOException(
+                    String.format("Could not rename %s to %s", tempPath, residualPath));
+        }
+    }
+
+    private static FloatBuffer floats(ByteBuffer tensor) {
+        ByteBuffer source = tensor.duplicate();
+        source.rewind();
+        return source.order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+}
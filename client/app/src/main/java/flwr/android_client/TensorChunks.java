@@ -0,0 +1,114 @@
+package flwr.android_client;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Splits the tensors of a {@link Parameters} message into chunks of bounded size.
+ *
+ * <p>Flower answers every instruction with a single message, so a parameter set cannot be spread
+ * over several messages. Chunks still keep every contiguous allocation of the message, on the
+ * wire and when parsing it, within the chunk size rather than the size of the largest tensor, and
+ * let the receiver decode them one by one straight into place.
+ *
+ * <p>Each chunk is one entry of {@code Parameters.tensors}, in tensor order. The tensor type of
+ * chunked parameters is the one of their encoding, followed by {@link #MARKER} and the number of
+ * chunks of every tensor: {@code "ND;chunks=3,1,2"}. Chunk sizes are multiples of
+ * {@link #ALIGNMENT} bytes, so that chunks never split an encoded value or header.
+ */
+public final class TensorChunks {
+
+    /** Config entry holding the maximum size of a chunk, in bytes. Chunking is off without it. */
+    public static final String CONFIG_KEY = "chunk_bytes";
+    public static final String MARKER = ";chunks=";
+    public static final int ALIGNMENT = 8;
+
+    private TensorChunks() {}
+
+    /** Returns the chunk size requested by [config], or 0 if parameters are sent whole. */
+    public static int chunkBytesFromConfig(Map<String, Scalar> config) {
+        if (!config.containsKey(CONFIG_KEY)) {
+            return 0;
+        }
+        long chunkBytes = config.get(CONFIG_KEY).getSint64();
+        if (chunkBytes <= 0) {
+            return 0;
+        }
+        chunkBytes = Math.min(chunkBytes, Integer.MAX_VALUE) / ALIGNMENT * ALIGNMENT;
+        return (int) Math.max(ALIGNMENT, chunkBytes);
+    }
+
+    /**
+     * Builds the parameters of [tensors], encoded as [tensorType], split into chunks of at most
+     * [chunkBytes] if it is positive. Chunks share the bytes of the tensors, nothing is copied.
+     */
+    public static Parameters toParameters(
+            List<ByteString> tensors, String tensorType, int chunkBytes) {
+        Parameters.Builder parameters = Parameters.newBuilder();
+        if (chunkBytes <= 0) {
+            return parameters.addAllTensors(tensors).setTensorType(tensorType).build();
+        }
+
+        StringBuilder type = new StringBuilder(tensorType).append(MARKER);
+        for (int tensorIdx = 0; tensorIdx < tensors.size(); tensorIdx++) {
+            ByteString tensor = tensors.get(tensorIdx);
+            int numChunks = 0;
+            // An empty tensor still takes one chunk, so that every tensor can be told apart.
+            for (int start = 0; start < tensor.size() || numChunks == 0; start += chunkBytes) {
+                parameters.addTensors(
+                        tensor.substring(start, Math.min(tensor.size(), start + chunkBytes)));
+                numChunks++;
+            }
+            type.append(tensorIdx == 0 ? "" : ",").append(numChunks);
+        }
+        return parameters.setTensorType(type.toString()).build();
+    }
+
+    /** Returns the tensor type of the encoding of [parameters], without the chunk layout. */
+    public static String encodingOf(Parameters parameters) {
+        String tensorType = parameters.getTensorType();
+        int markerIdx = tensorType.indexOf(MARKER);
+        return markerIdx < 0 ? tensorType : tensorType.substring(0, markerIdx);
+    }
+
+    /**
+     * Returns the number of chunks of every tensor of [parameters]: 1 each if they are not
+     * chunked.
+     */
+    public static int[] chunkCounts(Parameters parameters) {
+        String tensorType = parameters.getTensorType();
+        int markerIdx = tensorType.indexOf(MARKER);
+        if (markerIdx < 0) {
+            int[] counts = new int[parameters.getTensorsCount()];
+            Arrays.fill(counts, 1);
+            return counts;
+        }
+
+        String[] fields = tensorType.substring(markerIdx + MARKER.length()).split(",");
+        int[] counts = new int[fields.length];
+        int numChunks = 0;
+        for (int tensorIdx = 0; tensorIdx < fields.length; tensorIdx++) {
+            try {
+                counts[tensorIdx] = Integer.parseInt(fields[tensorIdx]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(
+                        String.format("Invalid chunk layout \"%s\"", tensorType), e);
+            }
+            if (counts[tensorIdx] < 1) {
+                throw new IllegalArgumentException(String.format(
+                        "Tensor %d has %d chunks in \"%s\"",
+                        tensorIdx, counts[tensorIdx], tensorType));
+            }
+            numChunks += counts[tensorIdx];
+        }
+        if (numChunks != parameters.getTensorsCount()) {
+            throw new IllegalArgumentException(String.format(
+                    "Chunk layout \"%s\" has %d chunks, but got %d",
+                    tensorType, numChunks, parameters.getTensorsCount()));
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,372 @@
+package flwr.android_client;
+
+import android.util.Log;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import org.tensorflow.lite.examples.transfer.api.ParameterBinder;
+
+/**
+ * Encodings of parameter tensors on the wire, named by {@code Parameters.tensor_type}.
+ *
+ * <p>{@link #FLOAT32} sends the raw values, which is what the server expects unless told
+ * otherwise. The other encodings trade precision for upload size, and are only used when the
+ * server asks for one through the {@link #CONFIG_KEY} entry of its config. Encoded tensors are
+ * little endian:
+ * <ul>
+ *   <li>{@link #FLOAT16}: one IEEE half-precision value per parameter.</li>
+ *   <li>{@link #INT8}: the float32 scale and int32 zero point of the tensor, then one signed byte
+ *       {@code q} per parameter, standing for {@code (q - zeroPoint) * scale}.</li>
+ *   <li>{@link #INT8_STOCHASTIC}: the layout of {@link #INT8}, but each value is rounded up or
+ *       down at random, with the odds of its distance to either level, so that rounding errors
+ *       average out over clients instead of biasing the aggregate.</li>
+ * </ul>
+ */
+public enum TensorCodec {
+    FLOAT32("ND", "float32"),
+    FLOAT16("ND_FP16", "fp16"),
+    INT8("ND_INT8", "int8"),
+    INT8_STOCHASTIC("ND_INT8_SR", "int8_stochastic");
+
+    /** Config entry through which the server picks the encoding of uploaded parameters. */
+    public static final String CONFIG_KEY = "transport_encoding";
+
+    private static final String TAG = "TensorCodec";
+    // Tensor type of the raw float32 tensors sent by the server's FedAvgAndroid strategy.
+    private static final String FED_AVG_ANDROID_TENSOR_TYPE = "numpy.nda";
+    private static final int FLOAT_BYTES = 4;
+    private static final int HALF_BYTES = 2;
+    private static final int INT8_HEADER_BYTES = 8;
+    private static final int INT8_LEVELS = 255;
+
+    private final String tensorType;
+    private final String configName;
+
+    TensorCodec(String tensorType, String configName) {
+        this.tensorType = tensorType;
+        this.configName = configName;
+    }
+
+    public String getTensorType() {
+        return tensorType;
+    }
+
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * Returns the encoding named by [tensorType], which tells how a tensor was encoded. The
+     * "numpy.nda" type of FedAvgAndroid is raw float32 too.
+     *
+     * @throws IllegalArgumentException if [tensorType] names no encoding this client can read.
+     */
+    public static TensorCodec fromTensorType(String tensorType) {
+        if (FED_AVG_ANDROID_TENSOR_TYPE.equals(tensorType)) {
+            return FLOAT32;
+        }
+        for (TensorCodec codec : values()) {
+            if (codec.tensorType.equals(tensorType)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException(
+                String.format("Unknown tensor type \"%s\"", tensorType));
+    }
+
+    /**
+     * Returns the encoding requested by [config], or [fallback] if there is none. An encoding
+     * this client does not know falls back to {@link #FLOAT32}, which every server can read.
+     */
+    public static TensorCodec fromConfig(Map<String, Scalar> config, TensorCodec fallback) {
+        if (!config.containsKey(CONFIG_KEY)) {
+            return fallback;
+        }
+        String name = config.get(CONFIG_KEY).getString();
+        for (TensorCodec codec : values()) {
+            if (codec.configName.equals(name)) {
+                return codec;
+            }
+        }
+        Log.w(TAG, String.format("Unknown %s \"%s\", sending float32", CONFIG_KEY, name));
+        return FLOAT32;
+    }
+
+    /**
+     * Encodes every tensor of [tensors], which hold raw float32 values in native order.
+     *
+     * <p>{@link #FLOAT32} tensors are wrapped, not copied: [tensors] must stay unchanged until
+     * the message holding them is serialized, which parameter snapshots guarantee.
+     */
+    public List<ByteString> encodeAll(ByteBuffer[] tensors, Stats stats) {
+        long startNanos = System.nanoTime();
+        List<ByteString> encoded = new ArrayList<>(tensors.length);
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        for (ByteBuffer tensor : tensors) {
+            ByteString data = encode(tensor);
+            rawBytes += tensor.capacity();
+            encodedBytes += data.size();
+            encoded.add(data);
+        }
+        stats.add(rawBytes, encodedBytes, System.nanoTime() - startNanos);
+        return encoded;
+    }
+
+    /**
+     * Decodes every tensor of [parameters], in the encoding named by their tensor type, into the
+     * buffers of [binder], so that each value is copied once, from the message to the model.
+     * Tensors split by {@link TensorChunks} are decoded chunk after chunk.
+     *
+     * @return the filled buffers, for {@link TransferLearningModelWrapper#updateParameters}.
+     */
+    public static ByteBuffer[] decodeAll(
+            Parameters parameters, ParameterBinder binder, Stats stats) {
+        int[] chunkCounts = TensorChunks.chunkCounts(parameters);
+        if (chunkCounts.length != binder.getNumParameters()) {
+            throw new IllegalArgumentException(String.format(
+                    "Model expected %d parameter tensors, but got %d",
+                    binder.getNumParameters(), chunkCounts.length));
+        }
+        long startNanos = System.nanoTime();
+        TensorCodec codec = fromTensorType(TensorChunks.encodingOf(parameters));
+        List<ByteString> entries = parameters.getTensorsList();
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        int firstChunk = 0;
+        for (int tensorIdx = 0; tensorIdx < binder.getNumParameters(); tensorIdx++) {
+            List<ByteString> chunks =
+                    entries.subList(firstChunk, firstChunk + chunkCounts[tensorIdx]);
+            firstChunk += chunkCounts[tensorIdx];
+            encodedBytes += codec.decode(chunks, tensorIdx, binder.target(tensorIdx));
+            rawBytes += binder.getParameterBytes(tensorIdx);
+        }
+        ByteBuffer[] decoded = binder.bind();
+        stats.add(rawBytes, encodedBytes, System.nanoTime() - startNanos);
+        return decoded;
+    }
+
+    ByteString encode(ByteBuffer tensor) {
+        ByteBuffer source = tensor.duplicate();
+        source.rewind();
+        if (this == FLOAT32) {
+            return UnsafeByteOperations.unsafeWrap(source);
+        }
+
+        FloatBuffer values = source.order(ByteOrder.nativeOrder()).asFloatBuffer();
+        int numValues = values.remaining();
+        ByteBuffer target;
+        if (this == FLOAT16) {
+            target = ByteBuffer.allocate(numValues * HALF_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int idx = 0; idx < numValues; idx++) {
+                target.putShort(toHalf(values.get(idx)));
+            }
+        } else {
+            target = ByteBuffer.allocate(INT8_HEADER_BYTES + numValues)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            encodeInt8(values, this == INT8_STOCHASTIC, target);
+        }
+        // Nothing else refers to the array, so it can be handed over as it is.
+        return UnsafeByteOperations.unsafeWrap(target.array());
+    }
+
+    /**
+     * Fills [target] with the raw float32 values of tensor [tensorIdx], encoded in [chunks], and
+     * returns the number of encoded bytes. Only whole values may be split across chunks.
+     */
+    int decode(List<ByteString> chunks, int tensorIdx, ByteBuffer target) {
+        int numValues = target.remaining() / FLOAT_BYTES;
+        int dataBytes = 0;
+        for (ByteString chunk : chunks) {
+            dataBytes += chunk.size();
+        }
+        if (this == FLOAT32) {
+            checkSize(tensorIdx, dataBytes, numValues * FLOAT_BYTES);
+            for (ByteString chunk : chunks) {
+                chunk.copyTo(target);
+            }
+            return dataBytes;
+        }
+
+        checkSize(tensorIdx, dataBytes,
+                this == FLOAT16 ? numValues * HALF_BYTES : INT8_HEADER_BYTES + numValues);
+        boolean headerRead = this == FLOAT16;
+        float scale = 0;
+        int zeroPoint = 0;
+        for (ByteString chunk : chunks) {
+            ByteBuffer source = chunk.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            if (this == FLOAT16) {
+                if (source.remaining() % HALF_BYTES != 0) {
+                    throw new IllegalArgumentException(String.format(
+                            "Parameter %d has a chunk of %d bytes, which splits a value",
+                            tensorIdx, source.remaining()));
+                }
+                while (source.hasRemaining()) {
+                    target.putFloat(toFloat(source.getShort()));
+                }
+                continue;
+            }
+            if (!headerRead) {
+                if (source.remaining() < INT8_HEADER_BYTES) {
+                    throw new IllegalArgumentException(String.format(
+                            "Parameter %d has a first chunk of %d bytes, which splits its header",
+                            tensorIdx, source.remaining()));
+                }
+                scale = source.getFloat();
+                zeroPoint = source.getInt();
+                headerRead = true;
+            }
+            while (source.hasRemaining()) {
+                target.putFloat((source.get() - zeroPoint) * scale);
+            }
+        }
+        return dataBytes;
+    }
+
+    private void checkSize(int tensorIdx, int actualBytes, int expectedBytes) {
+        if (actualBytes != expectedBytes) {
+            throw new IllegalArgumentException(String.format(
+                    "Parameter %d in %s expected %d bytes, but got %d",
+                    tensorIdx, configName, expectedBytes, actualBytes));
+        }
+    }
+
+    // Maps the range of [values], widened to hold zero exactly, onto the 256 int8 levels.
+    private static void encodeInt8(FloatBuffer values, boolean stochastic, ByteBuffer target) {
+        int numValues = values.remaining();
+        float min = 0;
+        float max = 0;
+        for (int idx = 0; idx < numValues; idx++) {
+            float value = values.get(idx);
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        float scale = (max - min) / INT8_LEVELS;
+        int zeroPoint = scale > 0 ? Math.round(Byte.MIN_VALUE - min / scale) : 0;
+        zeroPoint = Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, zeroPoint));
+        target.putFloat(scale);
+        target.putInt(zeroPoint);
+        if (scale == 0) {
+            for (int idx = 0; idx < numValues; idx++) {
+                target.put((byte) zeroPoint);
+            }
+            return;
+        }
+
+        float inverseScale = 1 / scale;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int idx = 0; idx < numValues; idx++) {
+            float level = values.get(idx) * inverseScale + zeroPoint;
+            int quantized = (int) Math.floor(level + (stochastic ? random.nextFloat() : 0.5f));
+            target.put((byte) Math.max(Byte.MIN_VALUE, Math.min(Byte.MAX_VALUE, quantized)));
+        }
+    }
+
+    // Rounds [value] to the nearest half-precision value, ties to even.
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int mantissa = bits & 0x7fffff;
+
+        if (exponent == 0xff - 127 + 15) {
+            // Infinity keeps a zero mantissa, NaN gets a quiet one.
+            return (short) (sign | 0x7c00 | (mantissa != 0 ? 0x200 : 0));
+        }
+        if (exponent >= 0x1f) {
+            return (short) (sign | 0x7c00);
+        }
+        if (exponent <= 0) {
+            if (exponent < -10) {
+                return (short) sign;
+            }
+            // Subnormal: the implicit leading bit becomes part of the mantissa.
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            return (short) (sign | roundToEven(mantissa, shift));
+        }
+        // A carry out of the mantissa correctly bumps the exponent, up to infinity.
+        return (short) (sign | roundToEven((exponent << 23) | mantissa, 13));
+    }
+
+    static float toFloat(short half) {
+        int bits = half & 0xffff;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1f;
+        int mantissa = bits & 0x3ff;
+
+        if (exponent == 0x1f) {
+            return Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+        }
+        if (exponent == 0) {
+            // Zero or subnormal, in units of 2^-24.
+            float magnitude = mantissa * 0x1p-24f;
+            return sign != 0 ? -magnitude : magnitude;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+
+    private static int roundToEven(int value, int shift) {
+        int truncated = value >>> shift;
+        int rest = value & ((1 << shift) - 1);
+        int halfway = 1 << (shift - 1);
+        if (rest > halfway || (rest == halfway && (truncated & 1) != 0)) {
+            truncated++;
+        }
+        return truncated;
+    }
+
+    /** Bytes and time spent encoding or decoding the tensors of one or more messages. */
+    public static final class Stats {
+        private long rawBytes = 0;
+        private long encodedBytes = 0;
+        private long nanos = 0;
+
+        void add(long rawBytes, long encodedBytes, long nanos) {
+            this.rawBytes += rawBytes;
+            this.encodedBytes += encodedBytes;
+            this.nanos += nanos;
+        }
+
+        public long getRawBytes() {
+            return rawBytes;
+        }
+
+        public long getEncodedBytes() {
+            return encodedBytes;
+        }
+
+        public double getMillis() {
+            return nanos / 1e6;
+        }
+
+        /** Throughput in megabytes of float32 values per second. */
+        public double getMegabytesPerSecond() {
+            return nanos == 0 ? 0 : rawBytes * 1e3 / nanos;
+        }
+
+        /** Stores the statistics in [metrics], under keys starting with [prefix]. */
+        public void putMetrics(Map<String, Scalar> metrics, String prefix) {
+            metrics.put(prefix + "_raw_bytes", Scalar.newBuilder().setSint64(rawBytes).build());
+            metrics.put(prefix + "_encoded_bytes",
+                    Scalar.newBuilder().setSint64(encodedBytes).build());
+            metrics.put(prefix + "_ms", Scalar.newBuilder().setDouble(getMillis()).build());
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d bytes as %d (%d saved) in %.1f ms, %.1f MB/s",
+                    rawBytes, encodedBytes, rawBytes - encodedBytes, getMillis(),
+                    getMegabytesPerSecond());
+        }
+    }
+}
@@ -16,6 +16,10 @@ import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import org.tensorflow.lite.examples.transfer.api.AssetModelLoader;
+import org.tensorflow.lite.examples.transfer.api.InterpreterProfile;
+import org.tensorflow.lite.examples.transfer.api.ModelRole;
+import org.tensorflow.lite.examples.transfer.api.ParameterBinder;
+import org.tensorflow.lite.examples.transfer.api.ParameterSnapshot;
 import org.tensorflow.lite.examples.transfer.api.TransferLearningModel;
 import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.LossConsumer;
 import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.Prediction;
@@ -42,32 +46,85 @@ public class TransferLearningModelWrapper implements Closeable {
     TransferLearningModelWrapper(Context context) {
         model =
                 new TransferLearningModel(
-                        new AssetModelLoader(context, "model"),
+                        createModelLoader(context),
                         Arrays.asList("cat", "dog", "truck", "bird",
                                 "airplane", "ship", "frog", "horse", "deer",
                                 "automobile"));
         this.context = context;
     }
 
+    private static AssetModelLoader createModelLoader(Context context) {
+        AssetModelLoader loader = new AssetModelLoader(context, "model");
+        // Bottlenecks are generated for several samples in parallel, so each interpreter gets a
+        // single thread. Training runs one step at a time and can use the cores itself.
+        loader.setInterpreterProfile(
+                ModelRole.BOTTLENECK, new InterpreterProfile().setNumThreads(1));
+        InterpreterProfile training =
+                new InterpreterProfile().setNumThreads(InterpreterProfile.AUTOTUNE_THREADS);
+        loader.setInterpreterProfile(ModelRole.TRAIN_HEAD, training);
+        loader.setInterpreterProfile(ModelRole.OPTIMIZER, training);
+        loader.setInterpreterProfile(ModelRole.TRAIN_STEP, training);
+        return loader;
+    }
 
     public void train(int epochs){
+        train(epochs, TransferLearningModel.NO_RUN_ID, null);
+    }
+
+    /**
+     * Trains in the background once training is enabled, resuming an earlier attempt of the same
+     * run if resume checkpoints are enabled.
+     *
+     * @param onFinished called once training stops, whether it succeeded or not; may be null.
+     */
+    public void train(int epochs, long runId, Runnable onFinished) {
         new Thread(() -> {
                 shouldTrain.block();
                 try {
-                    model.train(epochs, lossConsumer).get();
+                    model.train(epochs, lossConsumer, runId).get();
                 } catch (ExecutionException e) {
                     throw new RuntimeException("Exception occurred during model training", e.getCause());
                 } catch (InterruptedException e) {
                     // no-op
+                } finally {
+                    if (onFinished != null) {
+                        onFinished.run();
+                    }
                 }
         }).start();
     }
 
+    /** Saves the progress of resumable runs every [batchInterval] batches. */
+    public void enableResumeCheckpoints(File path, int batchInterval) {
+        model.enableResumeCheckpoints(path, batchInterval);
+    }
+
     // This method is thread-safe.
     public Future<Void> addSample(float[] image, String className, Boolean isTraining) {
         return model.addSample(image, className, isTraining);
     }
 
+    // This method is thread-safe.
+    public Future<Void> addSamples(
+            float[][] images, String[] classNames, Boolean isTraining, String[] cacheKeys) {
+        return model.addSamples(images, classNames, isTraining, cacheKeys);
+    }
+
+    // This method is thread-safe. [images] must not be modified until the future is resolved.
+    public Future<Void> addSamples(
+            ByteBuffer images, int numImages, String[] classNames, Boolean isTraining,
+            String[] cacheKeys) {
+        return model.addSamples(images, numImages, classNames, isTraining, cacheKeys);
+    }
+
+    public boolean[] addCachedSamples(String[] cacheKeys, String[] classNames, Boolean isTraining) {
+        return model.addCachedSamples(cacheKeys, classNames, isTraining);
+    }
+
+    public void openBottleneckCache(File path) throws IOException {
+        model.openBottleneckCache(path);
+    }
+
     public Pair<Float, Float> calculateTestStatistics(){
         return model.getTestStatistics();
     }
@@ -115,14 +172,38 @@ public class TransferLearningModelWrapper implements Closeable {
 
     public int getSize_Testing() { return model.getSize_Testing(); }
 
+    public int getBottleneckPoolSize() {
+        return model.getBottleneckPoolSize();
+    }
+
     public ByteBuffer[] getParameters()  {
         return model.getParameters();
     }
 
+    /** Pins the current parameters without copying them; close the snapshot when done. */
+    public ParameterSnapshot snapshotParameters() {
+        return model.snapshotParameters();
+    }
+
+    /** Returns the model-owned buffers to receive new parameters into. */
+    public ParameterBinder getParameterBinder() {
+        return model.getParameterBinder();
+    }
+
     public void updateParameters(ByteBuffer[] newParams) {
         model.updateParameters(newParams);
     }
 
+    /** Writes the parameters and the optimizer state to a checkpoint file. */
+    public void saveCheckpoint(File path) throws IOException {
+        model.saveCheckpoint(path);
+    }
+
+    /** Restores the parameters and the optimizer state written by {@link #saveCheckpoint}. */
+    public long loadCheckpoint(File path) throws IOException {
+        return model.loadCheckpoint(path);
+    }
+
     /**
      * Stops training the model.
      */
@@ -0,0 +1,120 @@
+package flwr.android_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that building the upload messages of {@link FlowerWorker} wraps the parameters instead of
+ * copying them, whatever the size of the model: encoding, chunking and the compression decision
+ * included.
+ */
+public class FlowerWorkerUploadTest {
+    private static final int FLOAT_BYTES = 4;
+    private static final int NUM_TENSORS = 10;
+
+    private static final int SMALL_MODEL_BYTES = 1 << 20;
+    private static final int LARGE_MODEL_BYTES = 32 << 20;
+    private static final int CHUNK_BYTES = 1 << 20;
+    // Allowance for the message objects and the compression sample, far below either model size.
+    private static final long MAX_UPLOAD_OVERHEAD_BYTES = 256 << 10;
+
+    @Before
+    public void setUp() {
+        FlowerWorker.start_time = "2024-01-01 00:00:00";
+        FlowerWorker.end_time = "2024-01-01 00:01:00";
+    }
+
+    @Test
+    public void fitResShouldNotCopyParameters() {
+        // Warms up class loading and the message builders.
+        buildFitRes(parameters(SMALL_MODEL_BYTES));
+
+        long smallModelBytes = allocatedWhileBuildingFitRes(parameters(SMALL_MODEL_BYTES));
+        long largeModelBytes = allocatedWhileBuildingFitRes(parameters(LARGE_MODEL_BYTES));
+
+        assertTrue("Allocated " + smallModelBytes + " bytes",
+                smallModelBytes < MAX_UPLOAD_OVERHEAD_BYTES);
+        assertTrue("Allocated " + largeModelBytes + " bytes",
+                largeModelBytes < MAX_UPLOAD_OVERHEAD_BYTES);
+    }
+
+    @Test
+    public void getParametersResShouldNotCopyParameters() {
+        buildGetParametersRes(parameters(SMALL_MODEL_BYTES));
+
+        long smallModelBytes =
+                allocatedWhileBuildingGetParametersRes(parameters(SMALL_MODEL_BYTES));
+        long largeModelBytes =
+                allocatedWhileBuildingGetParametersRes(parameters(LARGE_MODEL_BYTES));
+
+        assertTrue("Allocated " + smallModelBytes + " bytes",
+                smallModelBytes < MAX_UPLOAD_OVERHEAD_BYTES);
+        assertTrue("Allocated " + largeModelBytes + " bytes",
+                largeModelBytes < MAX_UPLOAD_OVERHEAD_BYTES);
+    }
+
+    @Test
+    public void fitResShouldHoldEveryChunk() {
+        ByteBuffer[] tensors = parameters(SMALL_MODEL_BYTES);
+
+        Parameters upload = buildFitRes(tensors).getFitRes().getParameters();
+
+        int[] chunkCounts = TensorChunks.chunkCounts(upload);
+        assertEquals(NUM_TENSORS, chunkCounts.length);
+        long uploadedBytes = 0;
+        for (int chunkIdx = 0; chunkIdx < upload.getTensorsCount(); chunkIdx++) {
+            assertTrue(upload.getTensors(chunkIdx).size() <= CHUNK_BYTES);
+            uploadedBytes += upload.getTensors(chunkIdx).size();
+        }
+        assertEquals(SMALL_MODEL_BYTES / NUM_TENSORS * NUM_TENSORS, uploadedBytes);
+    }
+
+    private static long allocatedWhileBuildingFitRes(ByteBuffer[] tensors) {
+        long before = allocatedBytes();
+        buildFitRes(tensors);
+        return allocatedBytes() - before;
+    }
+
+    private static long allocatedWhileBuildingGetParametersRes(ByteBuffer[] tensors) {
+        long before = allocatedBytes();
+        buildGetParametersRes(tensors);
+        return allocatedBytes() - before;
+    }
+
+    private static ClientMessage buildFitRes(ByteBuffer[] tensors) {
+        return FlowerWorker.fitResAsProto(tensors, tensors, 100, 0, TensorCodec.FLOAT32, null,
+                CHUNK_BYTES, new TensorCodec.Stats(), new AdaptiveCompression(), 0);
+    }
+
+    private static ClientMessage buildGetParametersRes(ByteBuffer[] tensors) {
+        return FlowerWorker.weightsAsProto(tensors, TensorCodec.FLOAT32, CHUNK_BYTES,
+                new AdaptiveCompression());
+    }
+
+    // Read-only direct buffers, like the views of a parameter snapshot.
+    private static ByteBuffer[] parameters(int modelBytes) {
+        ByteBuffer[] tensors = new ByteBuffer[NUM_TENSORS];
+        for (int tensorIdx = 0; tensorIdx < NUM_TENSORS; tensorIdx++) {
+            ByteBuffer tensor = ByteBuffer.allocateDirect(modelBytes / NUM_TENSORS)
+                    .order(ByteOrder.nativeOrder());
+            while (tensor.remaining() >= FLOAT_BYTES) {
+                tensor.putFloat(tensorIdx + tensor.position());
+            }
+            tensor.rewind();
+            tensors[tensorIdx] = tensor.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+        return tensors;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
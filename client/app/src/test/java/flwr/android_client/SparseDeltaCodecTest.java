@@ -0,0 +1,161 @@
+package flwr.android_client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Unit tests for {@link SparseDeltaCodec}. */
+public class SparseDeltaCodecTest {
+    private static final int FLOAT_BYTES = 4;
+    private static final int INT_BYTES = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void shouldSendLargestMagnitudes() throws Exception {
+        Random random = new Random(7);
+        for (int numValues : new int[] {1, 2, 17, 1000, 4099}) {
+            float[] delta = new float[numValues];
+            for (int idx = 0; idx < numValues; idx++) {
+                delta[idx] = (float) random.nextGaussian();
+            }
+            SparseDeltaCodec codec = new SparseDeltaCodec(residualPath(), 0.05);
+
+            Sparse sent = encode(codec, delta);
+
+            int k = (int) Math.ceil(numValues * 0.05);
+            assertEquals(numValues, sent.numValues);
+            assertEquals(k, sent.indices.length);
+            float[] magnitudes = new float[numValues];
+            for (int idx = 0; idx < numValues; idx++) {
+                magnitudes[idx] = Math.abs(delta[idx]);
+            }
+            Arrays.sort(magnitudes);
+            float threshold = magnitudes[numValues - k];
+            for (int entry = 0; entry < k; entry++) {
+                assertTrue(Math.abs(delta[sent.indices[entry]]) >= threshold);
+                assertEquals(delta[sent.indices[entry]], sent.values[entry], 0);
+            }
+        }
+    }
+
+    @Test
+    public void tiesShouldFillExactlyK() throws Exception {
+        float[] delta = new float[100];
+        for (int idx = 0; idx < delta.length; idx++) {
+            delta[idx] = idx % 2 == 0 ? 1 : -1;
+        }
+        SparseDeltaCodec codec = new SparseDeltaCodec(residualPath(), 0.1);
+
+        Sparse sent = encode(codec, delta);
+
+        assertEquals(10, sent.indices.length);
+        for (int entry = 1; entry < sent.indices.length; entry++) {
+            assertTrue(sent.indices[entry - 1] < sent.indices[entry]);
+        }
+        codec.commitResidual();
+        // The residual holds every value that was not sent, and nothing else.
+        Sparse rest = encode(new SparseDeltaCodec(residualPath(), 1), new float[delta.length]);
+        assertEquals(delta.length, rest.indices.length);
+        for (int entry = 0; entry < rest.indices.length; entry++) {
+            int idx = rest.indices[entry];
+            boolean wasSent = Arrays.binarySearch(sent.indices, idx) >= 0;
+            assertEquals(wasSent ? 0 : delta[idx], rest.values[entry], 0);
+        }
+    }
+
+    @Test
+    public void committedResidualShouldCarryOverToTheNextRound() throws Exception {
+        float[] delta = {0.5f, -4, 0.25f, 3, -0.125f, 2};
+        SparseDeltaCodec codec = new SparseDeltaCodec(residualPath(), 0.5);
+
+        float[] received = new float[delta.length];
+        accumulate(received, encode(codec, delta));
+        codec.commitResidual();
+        // Later rounds with no change of their own send what was left out.
+        for (int round = 0; round < 3; round++) {
+            codec = new SparseDeltaCodec(residualPath(), 0.5);
+            accumulate(received, encode(codec, new float[delta.length]));
+            codec.commitResidual();
+        }
+
+        assertArrayEquals(delta, received, 0);
+    }
+
+    @Test
+    public void uncommittedRoundShouldStartOverFromTheSameResidual() throws Exception {
+        float[] previous = {1, 0, 0, 0.5f};
+        SparseDeltaCodec codec = new SparseDeltaCodec(residualPath(), 0.25);
+        encode(codec, previous);
+        codec.commitResidual();
+
+        float[] delta = {0, 0.3f, 0.25f, 0};
+        Sparse failed = encode(new SparseDeltaCodec(residualPath(), 0.25), delta);
+        // The upload of [failed] was never sent, so the round is run again.
+        Sparse replayed = encode(new SparseDeltaCodec(residualPath(), 0.25), delta);
+
+        assertArrayEquals(new int[] {3}, failed.indices);
+        assertArrayEquals(failed.indices, replayed.indices);
+        assertArrayEquals(failed.values, replayed.values, 0);
+    }
+
+    private File residualPath() {
+        return new File(folder.getRoot(), "residual.bin");
+    }
+
+    // Encodes a single tensor that changed by [delta] from zero.
+    private static Sparse encode(SparseDeltaCodec codec, float[] delta) {
+        ByteBuffer weights = ByteBuffer.allocateDirect(delta.length * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        weights.asFloatBuffer().put(delta);
+        ByteBuffer reference = ByteBuffer.allocateDirect(delta.length * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        List<ByteString> encoded = codec.encodeAll(
+                new ByteBuffer[] {weights}, new ByteBuffer[] {reference},
+                new TensorCodec.Stats());
+        assertEquals(1, encoded.size());
+        return new Sparse(encoded.get(0));
+    }
+
+    private static void accumulate(float[] target, Sparse sent) {
+        for (int entry = 0; entry < sent.indices.length; entry++) {
+            target[sent.indices[entry]] += sent.values[entry];
+        }
+    }
+
+    // A tensor as sent: number of values, then k indices and k values.
+    private static final class Sparse {
+        final int numValues;
+        final int[] indices;
+        final float[] values;
+
+        Sparse(ByteString data) {
+            ByteBuffer buffer = data.asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            numValues = buffer.getInt();
+            int k = buffer.getInt();
+            assertEquals(2 * INT_BYTES + k * (INT_BYTES + FLOAT_BYTES), data.size());
+            indices = new int[k];
+            values = new float[k];
+            for (int entry = 0; entry < k; entry++) {
+                indices[entry] = buffer.getInt();
+            }
+            for (int entry = 0; entry < k; entry++) {
+                values[entry] = buffer.getFloat();
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package flwr.android_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Encode and decode throughput of every {@link TensorCodec}, and the bytes each one saves per
+ * round, on a model of realistic size. Rates are printed rather than asserted, since they depend
+ * on the machine running the test.
+ */
+public class TensorCodecBenchmarkTest {
+    private static final int FLOAT_BYTES = 4;
+    // Sizes of the trainable tensors of a small two-layer classification head.
+    private static final int[] TENSOR_VALUES = {1280 * 256, 256, 256 * 10, 10};
+    private static final int NUM_WARMUP_ROUNDS = 3;
+    private static final int NUM_ROUNDS = 10;
+
+    @Test
+    public void benchmarkEncodeAndDecode() {
+        ByteBuffer[] tensors = parameters();
+        ByteBuffer[] decoded = new ByteBuffer[tensors.length];
+        long rawBytes = 0;
+        for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+            decoded[tensorIdx] = ByteBuffer.allocateDirect(tensors[tensorIdx].capacity())
+                    .order(ByteOrder.nativeOrder());
+            rawBytes += tensors[tensorIdx].capacity();
+        }
+
+        for (TensorCodec codec : TensorCodec.values()) {
+            for (int round = 0; round < NUM_WARMUP_ROUNDS; round++) {
+                runRound(codec, tensors, decoded, new TensorCodec.Stats(), new TensorCodec.Stats());
+            }
+            TensorCodec.Stats encodeStats = new TensorCodec.Stats();
+            TensorCodec.Stats decodeStats = new TensorCodec.Stats();
+            for (int round = 0; round < NUM_ROUNDS; round++) {
+                runRound(codec, tensors, decoded, encodeStats, decodeStats);
+            }
+
+            long encodedBytesPerRound = encodeStats.getEncodedBytes() / NUM_ROUNDS;
+            System.out.println(String.format(Locale.ROOT,
+                    "%-16s encode %8.1f MB/s, decode %8.1f MB/s, %9d of %9d bytes per round"
+                            + " (%.1f%% saved)",
+                    codec.getConfigName(),
+                    encodeStats.getMegabytesPerSecond(),
+                    decodeStats.getMegabytesPerSecond(),
+                    encodedBytesPerRound,
+                    rawBytes,
+                    100.0 * (rawBytes - encodedBytesPerRound) / rawBytes));
+
+            assertEquals(codec.getConfigName(), rawBytes * NUM_ROUNDS, encodeStats.getRawBytes());
+            assertTrue(codec.getConfigName(), encodedBytesPerRound <= rawBytes);
+        }
+    }
+
+    private static void runRound(TensorCodec codec, ByteBuffer[] tensors, ByteBuffer[] decoded,
+                                 TensorCodec.Stats encodeStats, TensorCodec.Stats decodeStats) {
+        List<ByteString> encoded = codec.encodeAll(tensors, encodeStats);
+        long startNanos = System.nanoTime();
+        long encodedBytes = 0;
+        for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+            decoded[tensorIdx].clear();
+            encodedBytes += codec.decode(
+                    encoded.subList(tensorIdx, tensorIdx + 1), tensorIdx, decoded[tensorIdx]);
+        }
+        long rawBytes = 0;
+        for (ByteBuffer tensor : decoded) {
+            rawBytes += tensor.capacity();
+        }
+        decodeStats.add(rawBytes, encodedBytes, System.nanoTime() - startNanos);
+    }
+
+    // Values spread like trained weights: mostly small, of both signs.
+    private static ByteBuffer[] parameters() {
+        ByteBuffer[] tensors = new ByteBuffer[TENSOR_VALUES.length];
+        Random random = new Random(42);
+        for (int tensorIdx = 0; tensorIdx < TENSOR_VALUES.length; tensorIdx++) {
+            ByteBuffer tensor = ByteBuffer.allocateDirect(TENSOR_VALUES[tensorIdx] * FLOAT_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            for (int idx = 0; idx < TENSOR_VALUES[tensorIdx]; idx++) {
+                tensor.putFloat((float) (random.nextGaussian() * 0.05));
+            }
+            tensor.rewind();
+            tensors[tensorIdx] = tensor;
+        }
+        return tensors;
+    }
+}
@@ -0,0 +1,134 @@
+package flwr.android_client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/** Unit tests for {@link TensorCodec}. */
+public class TensorCodecTest {
+    private static final int FLOAT_BYTES = 4;
+    private static final int NUM_TENSORS = 10;
+
+    private static final int NUM_VALUES = 1000;
+
+    @Test
+    public void float32UploadShouldHoldRawValues() {
+        ByteBuffer[] tensors = parameters(NUM_TENSORS * NUM_VALUES * FLOAT_BYTES);
+        Parameters upload = buildUpload(tensors);
+
+        assertEquals("ND", upload.getTensorType());
+        for (int tensorIdx = 0; tensorIdx < NUM_TENSORS; tensorIdx++) {
+            ByteBuffer expected = tensors[tensorIdx].duplicate();
+            expected.rewind();
+            assertEquals(ByteString.copyFrom(expected), upload.getTensors(tensorIdx));
+        }
+    }
+
+    @Test
+    public void encodedValuesShouldDecodeWithinPrecision() {
+        ByteBuffer tensor = ByteBuffer.allocateDirect(NUM_VALUES * FLOAT_BYTES)
+                .order(ByteOrder.nativeOrder());
+        for (int idx = 0; idx < NUM_VALUES; idx++) {
+            tensor.putFloat(idx * 0.01f - 3);
+        }
+
+        assertRoundTrip(TensorCodec.FLOAT32, tensor, 0);
+        assertRoundTrip(TensorCodec.FLOAT16, tensor, 3 * 0x1p-10f);
+        float int8Step = (NUM_VALUES * 0.01f) / 255;
+        assertRoundTrip(TensorCodec.INT8, tensor, int8Step / 2 + 1e-5f);
+        assertRoundTrip(TensorCodec.INT8_STOCHASTIC, tensor, int8Step + 1e-5f);
+    }
+
+    @Test
+    public void rawTensorTypesShouldDecodeAsFloat32() {
+        assertEquals(TensorCodec.FLOAT32, TensorCodec.fromTensorType("ND"));
+        assertEquals(TensorCodec.FLOAT32, TensorCodec.fromTensorType("numpy.nda"));
+        assertEquals(TensorCodec.INT8, TensorCodec.fromTensorType("ND_INT8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownTensorTypeShouldBeRejected() {
+        TensorCodec.fromTensorType(SparseDeltaCodec.TENSOR_TYPE);
+    }
+
+    @Test
+    public void chunkedTensorsShouldDecodeLikeWholeOnes() {
+        ByteBuffer[] tensors = parameters(NUM_TENSORS * NUM_VALUES * FLOAT_BYTES);
+        int chunkBytes = 3 * TensorChunks.ALIGNMENT;
+        for (TensorCodec codec : TensorCodec.values()) {
+            List<ByteString> encoded = codec.encodeAll(tensors, new TensorCodec.Stats());
+            Parameters chunked =
+                    TensorChunks.toParameters(encoded, codec.getTensorType(), chunkBytes);
+            assertEquals(codec.getTensorType(), TensorChunks.encodingOf(chunked));
+
+            int[] chunkCounts = TensorChunks.chunkCounts(chunked);
+            assertEquals(NUM_TENSORS, chunkCounts.length);
+            int firstChunk = 0;
+            for (int tensorIdx = 0; tensorIdx < NUM_TENSORS; tensorIdx++) {
+                List<ByteString> chunks = chunked.getTensorsList()
+                        .subList(firstChunk, firstChunk + chunkCounts[tensorIdx]);
+                firstChunk += chunkCounts[tensorIdx];
+                for (ByteString chunk : chunks) {
+                    assertTrue(chunk.size() <= chunkBytes);
+                }
+
+                ByteBuffer fromChunks = decodedBuffer(tensors[tensorIdx]);
+                ByteBuffer fromWhole = decodedBuffer(tensors[tensorIdx]);
+                codec.decode(chunks, tensorIdx, fromChunks);
+                codec.decode(Collections.singletonList(encoded.get(tensorIdx)), tensorIdx,
+                        fromWhole);
+                fromChunks.rewind();
+                fromWhole.rewind();
+                assertEquals(codec.getConfigName(), fromWhole, fromChunks);
+            }
+        }
+    }
+
+    private static ByteBuffer decodedBuffer(ByteBuffer tensor) {
+        return ByteBuffer.allocateDirect(tensor.capacity()).order(ByteOrder.nativeOrder());
+    }
+
+    private static void assertRoundTrip(TensorCodec codec, ByteBuffer tensor, float maxError) {
+        ByteString encoded = codec.encode(tensor);
+        ByteBuffer decoded = decodedBuffer(tensor);
+        codec.decode(Collections.singletonList(encoded), 0, decoded);
+
+        assertEquals(decoded.capacity(), decoded.position());
+        for (int idx = 0; idx < NUM_VALUES; idx++) {
+            float expected = tensor.getFloat(idx * FLOAT_BYTES);
+            assertEquals(codec.getConfigName(), expected, decoded.getFloat(idx * FLOAT_BYTES),
+                    maxError);
+        }
+    }
+
+    private static Parameters buildUpload(ByteBuffer[] tensors) {
+        List<ByteString> layers = TensorCodec.FLOAT32.encodeAll(tensors, new TensorCodec.Stats());
+        return Parameters.newBuilder()
+                .addAllTensors(layers)
+                .setTensorType(TensorCodec.FLOAT32.getTensorType())
+                .build();
+    }
+
+    // Read-only direct buffers, like the views of a parameter snapshot.
+    private static ByteBuffer[] parameters(int modelBytes) {
+        ByteBuffer[] tensors = new ByteBuffer[NUM_TENSORS];
+        for (int tensorIdx = 0; tensorIdx < NUM_TENSORS; tensorIdx++) {
+            ByteBuffer tensor = ByteBuffer.allocateDirect(modelBytes / NUM_TENSORS)
+                    .order(ByteOrder.nativeOrder());
+            while (tensor.remaining() >= FLOAT_BYTES) {
+                tensor.putFloat(tensorIdx + tensor.position());
+            }
+            tensor.rewind();
+            tensors[tensorIdx] = tensor.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+        }
+        return tensors;
+    }
+}
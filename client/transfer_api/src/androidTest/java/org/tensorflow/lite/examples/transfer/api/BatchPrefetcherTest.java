@@ -0,0 +1,172 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BatchPrefetcher}. */
+@RunWith(AndroidJUnit4.class)
+public class BatchPrefetcherTest {
+  private static final int NUM_EPOCHS = 3;
+  private static final int BATCHES_PER_EPOCH = 7;
+
+  private static final long STAGE_MILLIS = 20;
+
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldDeliverBatchesInOrderWithPrefetch() throws InterruptedException {
+    checkDeliveryOrder(executor);
+  }
+
+  @Test
+  public void shouldDeliverBatchesInOrderWithoutPrefetch() throws InterruptedException {
+    checkDeliveryOrder(null);
+  }
+
+  @Test
+  public void shouldReportProducerFailure() throws InterruptedException {
+    BatchPrefetcher prefetcher =
+        new BatchPrefetcher(
+            new BatchPrefetcher.BatchSource() {
+              @Override
+              public void startEpoch(int epoch) {}
+
+              @Override
+              public int fillNext(int slot) {
+                throw new IllegalStateException("broken source");
+              }
+            },
+            1,
+            executor);
+
+    prefetcher.start();
+    try {
+      prefetcher.take();
+      fail("Expected the producer failure to be rethrown");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause() instanceof IllegalStateException);
+    } finally {
+      prefetcher.stop();
+    }
+  }
+
+  @Test
+  public void prefetchShouldOverlapAssemblyWithCompute() throws InterruptedException {
+    long syncNanos = timeSimulatedTraining(null);
+    long prefetchNanos = timeSimulatedTraining(executor);
+
+    assertTrue(
+        String.format(
+            "Prefetch took %d ms, synchronous assembly took %d ms",
+            prefetchNanos / 1000000, syncNanos / 1000000),
+        prefetchNanos < syncNanos * 0.8);
+  }
+
+  private void checkDeliveryOrder(ExecutorService executor) throws InterruptedException {
+    CountingSource source = new CountingSource(0);
+    BatchPrefetcher prefetcher = new BatchPrefetcher(source, NUM_EPOCHS, executor);
+
+    prefetcher.start();
+    try {
+      for (int epoch = 0; epoch < NUM_EPOCHS; epoch++) {
+        for (int batchIdx = 0; batchIdx < BATCHES_PER_EPOCH; batchIdx++) {
+          int slot = prefetcher.take();
+          assertEquals(batchIdx + 1, prefetcher.batchSize(slot));
+          assertEquals(epoch * 1000 + batchIdx, source.contents[slot]);
+          prefetcher.release(slot);
+        }
+        int slot = prefetcher.take();
+        assertEquals(0, prefetcher.batchSize(slot));
+        prefetcher.release(slot);
+      }
+    } finally {
+      prefetcher.stop();
+    }
+  }
+
+  private long timeSimulatedTraining(ExecutorService executor) throws InterruptedException {
+    BatchPrefetcher prefetcher =
+        new BatchPrefetcher(new CountingSource(STAGE_MILLIS), 1, executor);
+
+    long startNanos = System.nanoTime();
+    prefetcher.start();
+    try {
+      while (true) {
+        int slot = prefetcher.take();
+        int batchSize = prefetcher.batchSize(slot);
+        if (batchSize == 0) {
+          break;
+        }
+        // Stands for the gradient pass.
+        Thread.sleep(STAGE_MILLIS);
+        prefetcher.release(slot);
+      }
+    } finally {
+      prefetcher.stop();
+    }
+    return System.nanoTime() - startNanos;
+  }
+
+  /** Produces [BATCHES_PER_EPOCH] batches per epoch and records what each slot holds. */
+  private static class CountingSource implements BatchPrefetcher.BatchSource {
+    final int[] contents = new int[BatchPrefetcher.NUM_SLOTS];
+
+    private final long fillMillis;
+    private int epoch;
+    private int batchIdx;
+
+    CountingSource(long fillMillis) {
+      this.fillMillis = fillMillis;
+    }
+
+    @Override
+    public void startEpoch(int epoch) {
+      this.epoch = epoch;
+      batchIdx = 0;
+    }
+
+    @Override
+    public int fillNext(int slot) {
+      if (batchIdx == BATCHES_PER_EPOCH) {
+        return 0;
+      }
+      if (fillMillis > 0) {
+        try {
+          Thread.sleep(fillMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      contents[slot] = epoch * 1000 + batchIdx;
+      return ++batchIdx;
+    }
+  }
+}
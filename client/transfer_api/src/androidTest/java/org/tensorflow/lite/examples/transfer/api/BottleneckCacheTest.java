@@ -0,0 +1,112 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.allocateBuffer;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.featureValue;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.sampleBottleneck;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link BottleneckCache}. */
+@RunWith(AndroidJUnit4.class)
+public class BottleneckCacheTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int NUM_FEATURES = 6;
+  private static final int NUM_SAMPLES = 600;
+  private static final long MODEL_HASH = 0x1234abcdL;
+
+  private File cacheFile;
+
+  @Before
+  public void setUp() throws IOException {
+    cacheFile = File.createTempFile("bottleneck-cache-test", ".bin");
+  }
+
+  @After
+  public void tearDown() {
+    cacheFile.delete();
+  }
+
+  @Test
+  public void shouldKeepBottlenecksAcrossReopening() throws IOException {
+    BottleneckCache cache = BottleneckCache.open(cacheFile, MODEL_HASH, rowBytes());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      cache.put(key(sampleIdx), sampleBottleneck(sampleIdx, NUM_FEATURES));
+    }
+    cache.close();
+
+    cache = BottleneckCache.open(cacheFile, MODEL_HASH, rowBytes());
+    assertEquals(NUM_SAMPLES, cache.size());
+    ByteBuffer row = allocateBuffer(rowBytes());
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      row.rewind();
+      assertTrue(cache.copyRow(key(sampleIdx), row));
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(
+            featureValue(sampleIdx, featureIdx), row.getFloat(featureIdx * FLOAT_BYTES), 0.f);
+      }
+    }
+    row.rewind();
+    assertFalse(cache.copyRow(key(NUM_SAMPLES), row));
+    assertEquals(0, row.position());
+    cache.close();
+  }
+
+  @Test
+  public void shouldDiscardBottlenecksOfAnotherModel() throws IOException {
+    BottleneckCache cache = BottleneckCache.open(cacheFile, MODEL_HASH, rowBytes());
+    cache.put(key(0), sampleBottleneck(0, NUM_FEATURES));
+    cache.close();
+
+    cache = BottleneckCache.open(cacheFile, MODEL_HASH + 1, rowBytes());
+    assertEquals(0, cache.size());
+    assertFalse(cache.copyRow(key(0), allocateBuffer(rowBytes())));
+    cache.close();
+  }
+
+  @Test
+  public void shouldIgnoreDuplicateKeys() throws IOException {
+    BottleneckCache cache = BottleneckCache.open(cacheFile, MODEL_HASH, rowBytes());
+    cache.put(key(0), sampleBottleneck(0, NUM_FEATURES));
+    cache.put(key(0), sampleBottleneck(1, NUM_FEATURES));
+
+    assertEquals(1, cache.size());
+    ByteBuffer row = allocateBuffer(rowBytes());
+    cache.copyRow(key(0), row);
+    assertEquals(featureValue(0, 0), row.getFloat(0), 0.f);
+    cache.close();
+  }
+
+  private static String key(int sampleIdx) {
+    return "data/train/cat/" + sampleIdx + ".png";
+  }
+
+  private static int rowBytes() {
+    return NUM_FEATURES * FLOAT_BYTES;
+  }
+}
@@ -0,0 +1,183 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.allocateBuffer;
+
+import android.os.Debug;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Tests for the bound step mode of {@link LiteTrainHeadModel} and {@link LiteOptimizerModel}. */
+@RunWith(AndroidJUnit4.class)
+public class BoundTrainingStepTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int BATCH_SIZE = 20;
+  private static final int BOTTLENECK_SIZE = 7 * 7 * 1280;
+  private static final int NUM_CLASSES = 5;
+
+  private static final int NUM_WARMUP_STEPS = 3;
+  private static final int NUM_MEASURED_STEPS = 50;
+
+  private static final float EPS = 1e-6f;
+
+  private static final Random random = new Random(32);
+
+  private LiteModelWrapper trainWrapper;
+  private LiteModelWrapper optimizerWrapper;
+  private LiteTrainHeadModel trainHeadModel;
+  private LiteOptimizerModel optimizerModel;
+
+  private ByteBuffer bottlenecks;
+  private ByteBuffer classes;
+  private ByteBuffer[][] parameterSets;
+  private ByteBuffer[] gradients;
+  private ByteBuffer[][] stateSets;
+
+  @Test
+  public void boundStepShouldMatchUnboundStep() throws IOException {
+    setUpModels();
+
+    float unboundLoss =
+        trainHeadModel.calculateGradients(bottlenecks, classes, parameterSets[0], gradients);
+    float boundLoss = trainHeadModel.calculateGradients(0, 0);
+
+    assertEquals(unboundLoss, boundLoss, EPS);
+  }
+
+  @Test
+  public void steadyStateStepShouldNotAllocate() throws IOException {
+    setUpModels();
+
+    // The interpreter itself may allocate on every call, so the bound step is compared against
+    // bare interpreter invocations that reuse prebuilt arguments.
+    Object[] trainInputs = new Object[parameterSets[0].length + 2];
+    trainInputs[0] = bottlenecks;
+    trainInputs[1] = classes;
+    System.arraycopy(parameterSets[0], 0, trainInputs, 2, parameterSets[0].length);
+    Map<Integer, Object> trainOutputs = new TreeMap<>();
+    trainOutputs.put(0, allocateBuffer(FLOAT_BYTES));
+    for (int paramIdx = 0; paramIdx < gradients.length; paramIdx++) {
+      trainOutputs.put(paramIdx + 1, gradients[paramIdx]);
+    }
+
+    int numParams = parameterSets[0].length;
+    Object[] optimizerInputs = new Object[numParams * 2 + stateSets[0].length];
+    System.arraycopy(parameterSets[0], 0, optimizerInputs, 0, numParams);
+    System.arraycopy(gradients, 0, optimizerInputs, numParams, numParams);
+    System.arraycopy(stateSets[0], 0, optimizerInputs, numParams * 2, stateSets[0].length);
+    Map<Integer, Object> optimizerOutputs = new TreeMap<>();
+    for (int paramIdx = 0; paramIdx < numParams; paramIdx++) {
+      optimizerOutputs.put(paramIdx, parameterSets[1][paramIdx]);
+    }
+    for (int elemIdx = 0; elemIdx < stateSets[1].length; elemIdx++) {
+      optimizerOutputs.put(numParams + elemIdx, stateSets[1][elemIdx]);
+    }
+
+    for (int step = 0; step < NUM_WARMUP_STEPS; step++) {
+      runBareStep(trainInputs, trainOutputs, optimizerInputs, optimizerOutputs);
+      runBoundStep(step % 2);
+    }
+
+    Debug.startAllocCounting();
+    try {
+      Debug.resetThreadAllocCount();
+      for (int step = 0; step < NUM_MEASURED_STEPS; step++) {
+        runBareStep(trainInputs, trainOutputs, optimizerInputs, optimizerOutputs);
+      }
+      int bareAllocations = Debug.getThreadAllocCount();
+
+      Debug.resetThreadAllocCount();
+      for (int step = 0; step < NUM_MEASURED_STEPS; step++) {
+        runBoundStep(step % 2);
+      }
+      int boundAllocations = Debug.getThreadAllocCount();
+
+      assertTrue(
+          String.format(
+              "Bound steps allocated %d objects, bare interpreter calls allocated %d",
+              boundAllocations, bareAllocations),
+          boundAllocations <= bareAllocations);
+    } finally {
+      Debug.stopAllocCounting();
+    }
+  }
+
+  private void setUpModels() throws IOException {
+    AssetModelLoader loader =
+        new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model");
+    trainWrapper = loader.loadTrainModel();
+    optimizerWrapper = loader.loadOptimizerModel();
+    trainHeadModel = new LiteTrainHeadModel(trainWrapper);
+    optimizerModel = new LiteOptimizerModel(optimizerWrapper);
+
+    bottlenecks = allocateBuffer(BATCH_SIZE * BOTTLENECK_SIZE * FLOAT_BYTES);
+    for (int idx = 0; idx < BATCH_SIZE * BOTTLENECK_SIZE; idx++) {
+      bottlenecks.putFloat(random.nextFloat());
+    }
+    bottlenecks.rewind();
+
+    classes = allocateBuffer(BATCH_SIZE * NUM_CLASSES * FLOAT_BYTES);
+    for (int sampleIdx = 0; sampleIdx < BATCH_SIZE; sampleIdx++) {
+      int sampleClass = random.nextInt(NUM_CLASSES);
+      classes.putFloat((sampleIdx * NUM_CLASSES + sampleClass) * FLOAT_BYTES, 1);
+    }
+
+    int[] parameterSizes = trainHeadModel.getParameterSizes();
+    parameterSets = new ByteBuffer[2][parameterSizes.length];
+    gradients = new ByteBuffer[parameterSizes.length];
+    for (int paramIdx = 0; paramIdx < parameterSizes.length; paramIdx++) {
+      parameterSets[0][paramIdx] = allocateBuffer(parameterSizes[paramIdx] * FLOAT_BYTES);
+      parameterSets[1][paramIdx] = allocateBuffer(parameterSizes[paramIdx] * FLOAT_BYTES);
+      gradients[paramIdx] = allocateBuffer(parameterSizes[paramIdx] * FLOAT_BYTES);
+    }
+
+    int[] stateSizes = optimizerModel.stateElementSizes();
+    stateSets = new ByteBuffer[2][stateSizes.length];
+    for (int elemIdx = 0; elemIdx < stateSizes.length; elemIdx++) {
+      stateSets[0][elemIdx] = allocateBuffer(stateSizes[elemIdx] * FLOAT_BYTES);
+      stateSets[1][elemIdx] = allocateBuffer(stateSizes[elemIdx] * FLOAT_BYTES);
+    }
+
+    trainHeadModel.bindStep(
+        new ByteBuffer[] {bottlenecks}, new ByteBuffer[] {classes}, parameterSets, gradients);
+    optimizerModel.bindStep(parameterSets, gradients, stateSets);
+  }
+
+  private void runBareStep(
+      Object[] trainInputs,
+      Map<Integer, Object> trainOutputs,
+      Object[] optimizerInputs,
+      Map<Integer, Object> optimizerOutputs) {
+    trainWrapper.getInterpreter().runForMultipleInputsOutputs(trainInputs, trainOutputs);
+    optimizerWrapper.getInterpreter().runForMultipleInputsOutputs(optimizerInputs, optimizerOutputs);
+  }
+
+  private void runBoundStep(int parameterSetIdx) {
+    trainHeadModel.calculateGradients(0, parameterSetIdx);
+    optimizerModel.performStep(parameterSetIdx);
+  }
+}
@@ -0,0 +1,105 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.util.Arrays;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.SamplingMode;
+
+/** Unit tests for {@link EpochSampler}. */
+@RunWith(AndroidJUnit4.class)
+public class EpochSamplerTest {
+  private static final int NUM_SAMPLES = 47;
+  private static final int BATCH_SIZE = 10;
+  private static final long SEED = 1234;
+
+  @Test
+  public void shouldVisitEverySampleOnceWithPartialFinalBatch() {
+    EpochSampler sampler = new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, SEED);
+    sampler.startEpoch(0, NUM_SAMPLES);
+
+    boolean[] visited = new boolean[NUM_SAMPLES];
+    int numBatches = 0;
+    int lastBatchSize = 0;
+    while (sampler.hasNextBatch()) {
+      lastBatchSize = sampler.nextBatch(BATCH_SIZE);
+      for (int idx = 0; idx < lastBatchSize; idx++) {
+        int sampleIdx = sampler.order()[sampler.batchOffset() + idx];
+        assertFalse("Sample " + sampleIdx + " visited twice", visited[sampleIdx]);
+        visited[sampleIdx] = true;
+      }
+      numBatches++;
+    }
+
+    assertEquals(5, numBatches);
+    assertEquals(NUM_SAMPLES % BATCH_SIZE, lastBatchSize);
+    for (boolean sampleVisited : visited) {
+      assertTrue(sampleVisited);
+    }
+  }
+
+  @Test
+  public void sameSeedAndEpochShouldGiveSameOrder() {
+    EpochSampler first = new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, SEED);
+    EpochSampler second = new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, SEED);
+
+    first.startEpoch(3, NUM_SAMPLES);
+    second.startEpoch(0, NUM_SAMPLES);
+    second.startEpoch(3, NUM_SAMPLES);
+
+    assertArrayEquals(
+        Arrays.copyOf(first.order(), NUM_SAMPLES), Arrays.copyOf(second.order(), NUM_SAMPLES));
+  }
+
+  @Test
+  public void skippedBatchesShouldResumeWhereTheRunStopped() {
+    EpochSampler uninterrupted = new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, SEED);
+    uninterrupted.startEpoch(2, NUM_SAMPLES);
+    uninterrupted.nextBatch(BATCH_SIZE);
+    uninterrupted.nextBatch(BATCH_SIZE);
+    int expectedSize = uninterrupted.nextBatch(BATCH_SIZE);
+
+    EpochSampler resumed = new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, SEED);
+    resumed.startEpoch(2, NUM_SAMPLES);
+    assertEquals(2, resumed.skipBatches(2, BATCH_SIZE));
+    assertEquals(expectedSize, resumed.nextBatch(BATCH_SIZE));
+    assertEquals(uninterrupted.batchOffset(), resumed.batchOffset());
+    assertArrayEquals(
+        Arrays.copyOf(uninterrupted.order(), NUM_SAMPLES),
+        Arrays.copyOf(resumed.order(), NUM_SAMPLES));
+
+    assertEquals(2, resumed.skipBatches(10, BATCH_SIZE));
+    assertFalse(resumed.hasNextBatch());
+  }
+
+  @Test
+  public void withReplacementShouldStayInRange() {
+    EpochSampler sampler = new EpochSampler(SamplingMode.WITH_REPLACEMENT, SEED);
+    sampler.startEpoch(0, NUM_SAMPLES);
+
+    for (int idx = 0; idx < NUM_SAMPLES; idx++) {
+      int sampleIdx = sampler.order()[idx];
+      assertTrue(sampleIdx >= 0 && sampleIdx < NUM_SAMPLES);
+    }
+  }
+}
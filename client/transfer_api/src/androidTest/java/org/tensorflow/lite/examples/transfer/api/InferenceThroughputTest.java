@@ -0,0 +1,192 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.Prediction;
+
+/** Prediction throughput of {@link TransferLearningModel} under concurrent callers. */
+@RunWith(AndroidJUnit4.class)
+public class InferenceThroughputTest {
+  private static final String TAG = "InferenceThroughputTest";
+
+  private static final int IMAGE_VALUES = 224 * 224 * 3;
+  private static final List<String> CLASSES = Arrays.asList("1", "2", "3", "4", "5");
+  private static final int NUM_IMAGES = 8;
+  private static final int PREDICTIONS_PER_THREAD = 20;
+  private static final float EPS = 1e-5f;
+
+  @Test
+  public void concurrentPredictionsShouldMatchSerialOnes() throws Exception {
+    TransferLearningModel model = newModel();
+    float[][] images = randomImages();
+    try {
+      Prediction[][] expected = new Prediction[NUM_IMAGES][];
+      for (int imageIdx = 0; imageIdx < NUM_IMAGES; imageIdx++) {
+        expected[imageIdx] = model.predict(images[imageIdx]);
+      }
+
+      // Warm up every interpreter before measuring.
+      int maxThreads = model.getMaxConcurrentPredictions();
+      runPredictions(model, images, maxThreads, expected);
+
+      float singleThreaded = 0;
+      for (int numThreads = 1; numThreads <= maxThreads; numThreads++) {
+        float predictionsPerSecond = runPredictions(model, images, numThreads, expected);
+        if (numThreads == 1) {
+          singleThreaded = predictionsPerSecond;
+        }
+        Log.i(TAG, String.format(
+            "%d threads: %.1f predictions/s, %.2fx a single thread",
+            numThreads, predictionsPerSecond, predictionsPerSecond / singleThreaded));
+      }
+    } finally {
+      model.close();
+    }
+  }
+
+  @Test
+  public void closeShouldWaitForPredictionsInFlight() throws Exception {
+    TransferLearningModel model = newModel();
+    float[][] images = randomImages();
+    Prediction[][] expected = new Prediction[NUM_IMAGES][];
+    for (int imageIdx = 0; imageIdx < NUM_IMAGES; imageIdx++) {
+      expected[imageIdx] = model.predict(images[imageIdx]);
+    }
+
+    int numThreads = model.getMaxConcurrentPredictions();
+    ExecutorService callers = Executors.newFixedThreadPool(numThreads);
+    CountDownLatch predicting = new CountDownLatch(numThreads);
+    try {
+      List<Future<Integer>> results = new ArrayList<>();
+      for (int threadIdx = 0; threadIdx < numThreads; threadIdx++) {
+        results.add(callers.submit(() -> {
+          // Predicts until the model is closed, so that calls are in flight when it is.
+          for (int idx = 0; ; idx++) {
+            Prediction[] predictions;
+            try {
+              predictions = model.predict(images[idx % NUM_IMAGES]);
+            } catch (IllegalStateException e) {
+              // The model was closed before this call started.
+              return idx;
+            }
+            if (predictions == null) {
+              // The call started while the model was being closed, and did not run.
+              return idx;
+            }
+            // A call that got in before close() completes on interpreters that are still open.
+            assertPredictionsEqual(expected[idx % NUM_IMAGES], predictions);
+            if (idx == 0) {
+              predicting.countDown();
+            }
+          }
+        }));
+      }
+
+      predicting.await();
+      model.close();
+      int numCompleted = 0;
+      for (Future<Integer> result : results) {
+        // Rethrows what went wrong in the caller, such as a prediction on closed interpreters.
+        numCompleted += result.get();
+      }
+      Log.i(TAG, String.format("%d predictions completed before close", numCompleted));
+
+      try {
+        model.predict(images[0]);
+        fail("Predicted with a closed model");
+      } catch (IllegalStateException e) {
+        // Expected: calls made after close() are rejected.
+      }
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  // Runs [PREDICTIONS_PER_THREAD] predictions on each of [numThreads] threads, checks their
+  // results and returns the number of predictions per second.
+  private static float runPredictions(
+      TransferLearningModel model, float[][] images, int numThreads, Prediction[][] expected)
+      throws Exception {
+    ExecutorService callers = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Prediction[][]>> results = new ArrayList<>();
+      long startNanos = System.nanoTime();
+      for (int threadIdx = 0; threadIdx < numThreads; threadIdx++) {
+        results.add(callers.submit(() -> {
+          Prediction[][] predictions = new Prediction[PREDICTIONS_PER_THREAD][];
+          for (int idx = 0; idx < PREDICTIONS_PER_THREAD; idx++) {
+            predictions[idx] = model.predict(images[idx % NUM_IMAGES]);
+          }
+          return predictions;
+        }));
+      }
+      List<Prediction[][]> outputs = new ArrayList<>();
+      for (Future<Prediction[][]> result : results) {
+        outputs.add(result.get());
+      }
+      long elapsedNanos = System.nanoTime() - startNanos;
+
+      for (Prediction[][] predictions : outputs) {
+        for (int idx = 0; idx < PREDICTIONS_PER_THREAD; idx++) {
+          assertPredictionsEqual(expected[idx % NUM_IMAGES], predictions[idx]);
+        }
+      }
+      return numThreads * PREDICTIONS_PER_THREAD * 1e9f / elapsedNanos;
+    } finally {
+      callers.shutdownNow();
+    }
+  }
+
+  private static void assertPredictionsEqual(Prediction[] expected, Prediction[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int rank = 0; rank < expected.length; rank++) {
+      assertEquals(expected[rank].getConfidence(), actual[rank].getConfidence(), EPS);
+    }
+  }
+
+  private static TransferLearningModel newModel() {
+    return new TransferLearningModel(
+        new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+        CLASSES);
+  }
+
+  private static float[][] randomImages() {
+    Random random = new Random(16);
+    float[][] images = new float[NUM_IMAGES][IMAGE_VALUES];
+    for (float[] image : images) {
+      for (int idx = 0; idx < IMAGE_VALUES; idx++) {
+        image[idx] = random.nextFloat();
+      }
+    }
+    return images;
+  }
+}
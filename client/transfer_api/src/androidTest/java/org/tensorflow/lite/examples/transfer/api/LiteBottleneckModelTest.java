@@ -15,12 +15,19 @@ limitations under the License.
 
 package org.tensorflow.lite.examples.transfer.api;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
@@ -35,6 +42,11 @@ public class LiteBottleneckModelTest {
   private static final float IMAGE_FILL = 0.3f;
   private static final float EPS = 1e-8f;
 
+  private static final int POOL_SIZE = 3;
+  private static final int NUM_PARALLEL_IMAGES = 12;
+  private static final int BATCH_SIZE = 4;
+  private static final float BATCH_EPS = 1e-4f;
+
   @Test
   public void shouldGenerateSaneBottlenecks() throws IOException {
     LiteBottleneckModel model =
@@ -42,15 +54,7 @@ public class LiteBottleneckModelTest {
             new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model")
                 .loadBaseModel());
 
-    ByteBuffer image =
-        ByteBuffer.allocateDirect(IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS * FLOAT_BYTES);
-
-    for (int idx = 0; idx < IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS; idx++) {
-      image.putFloat(IMAGE_FILL);
-    }
-    image.rewind();
-
-    ByteBuffer bottleneck = model.generateBottleneck(image, null);
+    ByteBuffer bottleneck = model.generateBottleneck(filledImage(), null);
     int nonZeroCount = 0;
     for (int idx = 0; idx < NUM_BOTTLENECK_FEATURES; idx++) {
       float feature = bottleneck.getFloat();
@@ -60,4 +64,78 @@ public class LiteBottleneckModelTest {
     }
     assertTrue(nonZeroCount > 0);
   }
+
+  @Test
+  public void pooledModelShouldMatchSingleInterpreter() throws Exception {
+    AssetModelLoader loader =
+        new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model");
+    LiteBottleneckModel single = new LiteBottleneckModel(loader.loadBaseModel());
+    LiteBottleneckModel pooled = new LiteBottleneckModel(loader.loadBaseModel(), POOL_SIZE);
+    assertEquals(POOL_SIZE, pooled.getPoolSize());
+
+    ByteBuffer expected = single.generateBottleneck(filledImage(), null);
+
+    ExecutorService executor = Executors.newFixedThreadPool(POOL_SIZE);
+    try {
+      List<Future<ByteBuffer>> results = new ArrayList<>();
+      for (int imageIdx = 0; imageIdx < NUM_PARALLEL_IMAGES; imageIdx++) {
+        results.add(executor.submit(() -> pooled.generateBottleneck(filledImage(), null)));
+      }
+      for (Future<ByteBuffer> result : results) {
+        assertEquals(expected, result.get());
+      }
+    } finally {
+      executor.shutdownNow();
+      single.close();
+      pooled.close();
+    }
+  }
+
+  @Test
+  public void batchedBottlenecksShouldMatchSingleImages() throws IOException {
+    LiteBottleneckModel model =
+        new LiteBottleneckModel(
+            new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model")
+                .loadBaseModel());
+    ByteBuffer expected = model.generateBottleneck(filledImage(), null);
+
+    int imageBytes = IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS * FLOAT_BYTES;
+    ByteBuffer images = ByteBuffer.allocateDirect(BATCH_SIZE * imageBytes);
+    for (int imageIdx = 0; imageIdx < BATCH_SIZE; imageIdx++) {
+      images.put(filledImage());
+    }
+    images.rewind();
+    ByteBuffer bottlenecks =
+        ByteBuffer.allocateDirect(BATCH_SIZE * NUM_BOTTLENECK_FEATURES * FLOAT_BYTES);
+
+    model.generateBottlenecks(images, BATCH_SIZE, bottlenecks);
+
+    for (int imageIdx = 0; imageIdx < BATCH_SIZE; imageIdx++) {
+      bottlenecks.position(imageIdx * NUM_BOTTLENECK_FEATURES * FLOAT_BYTES);
+      bottlenecks.limit((imageIdx + 1) * NUM_BOTTLENECK_FEATURES * FLOAT_BYTES);
+      assertBottlenecksClose(expected, bottlenecks.slice());
+      bottlenecks.clear();
+    }
+    model.close();
+  }
+
+  private static void assertBottlenecksClose(ByteBuffer expected, ByteBuffer actual) {
+    expected.order(ByteOrder.nativeOrder());
+    actual.order(ByteOrder.nativeOrder());
+    for (int idx = 0; idx < NUM_BOTTLENECK_FEATURES; idx++) {
+      assertEquals(
+          expected.getFloat(idx * FLOAT_BYTES), actual.getFloat(idx * FLOAT_BYTES), BATCH_EPS);
+    }
+  }
+
+  private static ByteBuffer filledImage() {
+    ByteBuffer image =
+        ByteBuffer.allocateDirect(IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS * FLOAT_BYTES);
+
+    for (int idx = 0; idx < IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS; idx++) {
+      image.putFloat(IMAGE_FILL);
+    }
+    image.rewind();
+    return image;
+  }
 }
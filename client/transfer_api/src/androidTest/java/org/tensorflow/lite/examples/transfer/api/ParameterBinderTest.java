@@ -0,0 +1,72 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link ParameterBinder}. */
+@RunWith(AndroidJUnit4.class)
+public class ParameterBinderTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int[] PARAMETER_SIZES = {6, 1, 3};
+
+  @Test
+  public void boundBuffersShouldHoldWrittenValues() {
+    ParameterBinder binder = new ParameterBinder(PARAMETER_SIZES);
+    assertEquals(PARAMETER_SIZES.length, binder.getNumParameters());
+
+    for (int round = 0; round < 2; round++) {
+      for (int paramIdx = 0; paramIdx < PARAMETER_SIZES.length; paramIdx++) {
+        assertEquals(PARAMETER_SIZES[paramIdx] * FLOAT_BYTES, binder.getParameterBytes(paramIdx));
+        ByteBuffer target = binder.target(paramIdx);
+        assertTrue(target.isDirect());
+        for (int idx = 0; idx < PARAMETER_SIZES[paramIdx]; idx++) {
+          target.putFloat(value(round, paramIdx, idx));
+        }
+      }
+
+      ByteBuffer[] bound = binder.bind();
+      for (int paramIdx = 0; paramIdx < PARAMETER_SIZES.length; paramIdx++) {
+        assertEquals(0, bound[paramIdx].position());
+        assertEquals(ByteOrder.nativeOrder(), bound[paramIdx].order());
+        for (int idx = 0; idx < PARAMETER_SIZES[paramIdx]; idx++) {
+          assertEquals(value(round, paramIdx, idx), bound[paramIdx].getFloat(), 0.f);
+        }
+      }
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void bindShouldRejectPartlyWrittenParameters() {
+    ParameterBinder binder = new ParameterBinder(PARAMETER_SIZES);
+    for (int paramIdx = 0; paramIdx < PARAMETER_SIZES.length; paramIdx++) {
+      binder.target(paramIdx).putFloat(1);
+    }
+    binder.bind();
+  }
+
+  private static float value(int round, int paramIdx, int idx) {
+    return round * 100 + paramIdx * 10 + idx;
+  }
+}
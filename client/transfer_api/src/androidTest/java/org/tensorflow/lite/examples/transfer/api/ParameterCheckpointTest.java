@@ -0,0 +1,163 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link ParameterCheckpoint}. */
+@RunWith(AndroidJUnit4.class)
+public class ParameterCheckpointTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int[][] PARAMETER_SHAPES = {{3, 4}, {4}};
+  private static final int[][] STATE_SHAPES = {{3, 4}, {4}, {1}};
+  private static final long PARAMETER_VERSION = 42;
+  private static final long[] PROGRESS = {7, -1, Long.MAX_VALUE};
+
+  @Test
+  public void shouldRestoreParametersAndOptimizerState() throws IOException {
+    File path = File.createTempFile("checkpoint", ".bin");
+    ByteBuffer[] parameters = filledTensors(PARAMETER_SHAPES, 1.f);
+    ByteBuffer[] state = filledTensors(STATE_SHAPES, 100.f);
+    parameters[0].position(8);
+
+    ParameterCheckpoint.write(
+        path, PARAMETER_VERSION, parameters, PARAMETER_SHAPES, state, STATE_SHAPES, PROGRESS);
+    assertEquals(8, parameters[0].position());
+    assertFalse(new File(path.getPath() + ".tmp").exists());
+
+    ByteBuffer[] restoredParameters = filledTensors(PARAMETER_SHAPES, 0.f);
+    ByteBuffer[] restoredState = filledTensors(STATE_SHAPES, 0.f);
+    long[] restoredProgress = new long[PROGRESS.length];
+    long version =
+        ParameterCheckpoint.read(
+            path,
+            restoredParameters,
+            PARAMETER_SHAPES,
+            restoredState,
+            STATE_SHAPES,
+            restoredProgress);
+
+    assertEquals(PARAMETER_VERSION, version);
+    assertArrayEquals(PROGRESS, restoredProgress);
+    assertTensorsEqual(parameters, restoredParameters);
+    assertTensorsEqual(state, restoredState);
+    path.delete();
+  }
+
+  @Test
+  public void shouldRejectCorruptedTensor() throws IOException {
+    File path = File.createTempFile("checkpoint", ".bin");
+    ParameterCheckpoint.write(
+        path,
+        PARAMETER_VERSION,
+        filledTensors(PARAMETER_SHAPES, 1.f),
+        PARAMETER_SHAPES,
+        filledTensors(STATE_SHAPES, 100.f),
+        STATE_SHAPES,
+        new long[0]);
+
+    try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+      file.seek(file.length() - 1);
+      int last = file.read();
+      file.seek(file.length() - 1);
+      file.write(last ^ 0xFF);
+    }
+
+    try {
+      ParameterCheckpoint.read(
+          path,
+          filledTensors(PARAMETER_SHAPES, 0.f),
+          PARAMETER_SHAPES,
+          filledTensors(STATE_SHAPES, 0.f),
+          STATE_SHAPES,
+          new long[0]);
+      fail("Corrupted checkpoint was accepted");
+    } catch (IOException e) {
+      // Expected.
+    }
+    path.delete();
+  }
+
+  @Test
+  public void shouldRejectCheckpointOfAnotherModel() throws IOException {
+    File path = File.createTempFile("checkpoint", ".bin");
+    ParameterCheckpoint.write(
+        path,
+        PARAMETER_VERSION,
+        filledTensors(PARAMETER_SHAPES, 1.f),
+        PARAMETER_SHAPES,
+        filledTensors(STATE_SHAPES, 100.f),
+        STATE_SHAPES,
+        new long[0]);
+
+    int[][] otherShapes = {{4, 3}, {4}};
+    try {
+      ParameterCheckpoint.read(
+          path,
+          filledTensors(otherShapes, 0.f),
+          otherShapes,
+          filledTensors(STATE_SHAPES, 0.f),
+          STATE_SHAPES,
+          new long[0]);
+      fail("Checkpoint with other shapes was accepted");
+    } catch (IOException e) {
+      // Expected.
+    }
+    path.delete();
+  }
+
+  private static ByteBuffer[] filledTensors(int[][] shapes, float first) {
+    ByteBuffer[] tensors = new ByteBuffer[shapes.length];
+    float value = first;
+    for (int tensorIdx = 0; tensorIdx < shapes.length; tensorIdx++) {
+      int numElements = 1;
+      for (int dim : shapes[tensorIdx]) {
+        numElements *= dim;
+      }
+      tensors[tensorIdx] = ByteBuffer.allocateDirect(numElements * FLOAT_BYTES);
+      tensors[tensorIdx].order(ByteOrder.nativeOrder());
+      for (int idx = 0; idx < numElements; idx++) {
+        tensors[tensorIdx].putFloat(value);
+        value += first == 0.f ? 0.f : 1.f;
+      }
+      tensors[tensorIdx].rewind();
+    }
+    return tensors;
+  }
+
+  private static void assertTensorsEqual(ByteBuffer[] expected, ByteBuffer[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int tensorIdx = 0; tensorIdx < expected.length; tensorIdx++) {
+      for (int idx = 0; idx < expected[tensorIdx].capacity(); idx += FLOAT_BYTES) {
+        assertEquals(
+            expected[tensorIdx].getFloat(idx), actual[tensorIdx].getFloat(idx), 0.f);
+      }
+    }
+  }
+}
@@ -0,0 +1,98 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.allocateBuffer;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link ParameterSets} and {@link ParameterSnapshot}. */
+@RunWith(AndroidJUnit4.class)
+public class ParameterSetsTest {
+  private static final int FLOAT_BYTES = 4;
+  private static final int NUM_SETS = 3;
+  private static final int NUM_VALUES = 8;
+
+  @Test
+  public void publishShouldAdvanceVersionAroundTheRing() {
+    ParameterSets sets = newSets();
+    assertEquals(0, sets.current().number);
+    assertEquals(0, sets.current().setIdx);
+
+    for (int step = 1; step <= NUM_SETS + 1; step++) {
+      int setIdx = sets.acquireNextSet();
+      assertEquals(step % NUM_SETS, setIdx);
+      sets.publish(setIdx);
+      assertEquals(step, sets.current().number);
+    }
+  }
+
+  @Test
+  public void snapshotShouldKeepValuesWhileWriterMovesOn() throws Exception {
+    ParameterSets sets = newSets();
+    sets.getParameters(0)[0].putFloat(0, 1.f);
+
+    ParameterSnapshot snapshot = new ParameterSnapshot(sets, sets.pin());
+    assertEquals(0, snapshot.getVersion());
+
+    // The writer can use the other sets freely.
+    for (int step = 0; step < NUM_SETS - 1; step++) {
+      int setIdx = sets.acquireNextSet();
+      sets.getParameters(setIdx)[0].putFloat(0, 2.f);
+      sets.publish(setIdx);
+    }
+
+    // The next set is the pinned one: the writer must wait until the snapshot is closed.
+    AtomicInteger acquired = new AtomicInteger(-1);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread writer =
+        new Thread(() -> {
+          acquired.set(sets.acquireNextSet());
+          done.countDown();
+        });
+    writer.start();
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+
+    ByteBuffer[] views = snapshot.getBuffers();
+    assertTrue(views[0].isReadOnly());
+    assertEquals(1.f, views[0].getFloat(0), 0.f);
+
+    snapshot.close();
+    snapshot.close();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(0, acquired.get());
+    writer.join();
+  }
+
+  private static ParameterSets newSets() {
+    ByteBuffer[][] parameterSets = new ByteBuffer[NUM_SETS][];
+    ByteBuffer[][] stateSets = new ByteBuffer[NUM_SETS][];
+    for (int setIdx = 0; setIdx < NUM_SETS; setIdx++) {
+      parameterSets[setIdx] = new ByteBuffer[] {allocateBuffer(NUM_VALUES * FLOAT_BYTES)};
+      stateSets[setIdx] = new ByteBuffer[] {allocateBuffer(NUM_VALUES * FLOAT_BYTES)};
+    }
+    return new ParameterSets(parameterSets, stateSets);
+  }
+}
@@ -0,0 +1,129 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.allocateBuffer;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.featureValue;
+import static org.tensorflow.lite.examples.transfer.api.TestBuffers.sampleBottleneck;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link SampleStore}. */
+@RunWith(AndroidJUnit4.class)
+public class SampleStoreTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int NUM_FEATURES = 6;
+  private static final int NUM_SAMPLES = 300;
+  private static final int NUM_CLASSES = 10;
+
+  @Test
+  public void shouldKeepRowsAndLabelsWhileGrowing() {
+    SampleStore store = new SampleStore(NUM_FEATURES * FLOAT_BYTES);
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      store.add(sampleBottleneck(sampleIdx, NUM_FEATURES), sampleIdx % NUM_CLASSES);
+    }
+
+    assertEquals(NUM_SAMPLES, store.size());
+
+    SampleStore.Reader reader = store.newReader();
+    ByteBuffer row = allocateBuffer(NUM_FEATURES * FLOAT_BYTES);
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      assertEquals(sampleIdx % NUM_CLASSES, store.getLabel(sampleIdx));
+
+      row.rewind();
+      reader.copyRow(sampleIdx, row);
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(
+            featureValue(sampleIdx, featureIdx), row.getFloat(featureIdx * FLOAT_BYTES), 0.f);
+      }
+    }
+  }
+
+  @Test
+  public void gatherShouldCopyRowsInRequestedOrder() {
+    SampleStore store = new SampleStore(NUM_FEATURES * FLOAT_BYTES);
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      store.add(sampleBottleneck(sampleIdx, NUM_FEATURES), sampleIdx % NUM_CLASSES);
+    }
+
+    int[] order = {7, 250, 3, 3, 0};
+    int offset = 1;
+    int count = 3;
+    ByteBuffer batch = allocateBuffer(count * NUM_FEATURES * FLOAT_BYTES);
+    store.newReader().gather(order, offset, count, batch);
+
+    assertEquals(batch.capacity(), batch.position());
+    for (int rowIdx = 0; rowIdx < count; rowIdx++) {
+      for (int featureIdx = 0; featureIdx < NUM_FEATURES; featureIdx++) {
+        assertEquals(
+            featureValue(order[offset + rowIdx], featureIdx),
+            batch.getFloat((rowIdx * NUM_FEATURES + featureIdx) * FLOAT_BYTES),
+            0.f);
+      }
+    }
+  }
+
+  @Test
+  public void readerShouldSeeOldRowsWhileStoreGrows() {
+    SampleStore store = new SampleStore(NUM_FEATURES * FLOAT_BYTES);
+    store.add(sampleBottleneck(0, NUM_FEATURES), 0);
+    SampleStore.Reader reader = store.newReader();
+    ByteBuffer row = allocateBuffer(NUM_FEATURES * FLOAT_BYTES);
+    reader.copyRow(0, row);
+
+    for (int sampleIdx = 1; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      store.add(sampleBottleneck(sampleIdx, NUM_FEATURES), sampleIdx % NUM_CLASSES);
+
+      row.rewind();
+      reader.copyRow(sampleIdx / 2, row);
+      assertEquals(featureValue(sampleIdx / 2, 0), row.getFloat(0), 0.f);
+    }
+  }
+
+  @Test
+  public void addAllShouldMatchAddingOneByOne() {
+    SampleStore store = new SampleStore(NUM_FEATURES * FLOAT_BYTES);
+    store.add(sampleBottleneck(0, NUM_FEATURES), 0);
+
+    int count = NUM_SAMPLES - 1;
+    ByteBuffer bottlenecks = allocateBuffer(count * NUM_FEATURES * FLOAT_BYTES);
+    int[] labels = new int[count];
+    for (int sampleIdx = 1; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      bottlenecks.put(sampleBottleneck(sampleIdx, NUM_FEATURES));
+      labels[sampleIdx - 1] = sampleIdx % NUM_CLASSES;
+    }
+    bottlenecks.rewind();
+
+    assertEquals(1, store.addAll(bottlenecks, labels, count));
+    assertEquals(0, bottlenecks.position());
+    assertEquals(NUM_SAMPLES, store.size());
+
+    SampleStore.Reader reader = store.newReader();
+    ByteBuffer row = allocateBuffer(NUM_FEATURES * FLOAT_BYTES);
+    for (int sampleIdx = 0; sampleIdx < NUM_SAMPLES; sampleIdx++) {
+      assertEquals(sampleIdx % NUM_CLASSES, store.getLabel(sampleIdx));
+      row.rewind();
+      reader.copyRow(sampleIdx, row);
+      assertEquals(featureValue(sampleIdx, NUM_FEATURES - 1),
+          row.getFloat((NUM_FEATURES - 1) * FLOAT_BYTES), 0.f);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link StagingBufferPool}. */
+@RunWith(AndroidJUnit4.class)
+public class StagingBufferPoolTest {
+  private static final int CAPACITY = 64;
+  private static final int MAX_IDLE = 2;
+
+  @Test
+  public void shouldReuseReleasedBuffers() {
+    StagingBufferPool pool = new StagingBufferPool(CAPACITY, MAX_IDLE);
+    ByteBuffer first = pool.acquire();
+    assertEquals(CAPACITY, first.capacity());
+    assertEquals(ByteOrder.nativeOrder(), first.order());
+
+    first.putFloat(1.f);
+    pool.release(first);
+
+    ByteBuffer second = pool.acquire();
+    assertSame(first, second);
+    assertEquals(0, second.position());
+    assertEquals(CAPACITY, second.limit());
+  }
+
+  @Test
+  public void shouldAllocateWhenNoneIsIdleAndKeepAtMostMaxIdle() {
+    StagingBufferPool pool = new StagingBufferPool(CAPACITY, MAX_IDLE);
+    ByteBuffer[] buffers = new ByteBuffer[MAX_IDLE + 1];
+    for (int idx = 0; idx < buffers.length; idx++) {
+      buffers[idx] = pool.acquire();
+    }
+    assertNotSame(buffers[0], buffers[1]);
+
+    for (ByteBuffer buffer : buffers) {
+      pool.release(buffer);
+    }
+    assertEquals(MAX_IDLE, pool.getIdleCount());
+  }
+}
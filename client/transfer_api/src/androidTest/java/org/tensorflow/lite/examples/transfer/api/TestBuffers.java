@@ -0,0 +1,48 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Buffers and sample data shared by the tests. */
+final class TestBuffers {
+  private static final int FLOAT_BYTES = 4;
+
+  private TestBuffers() {}
+
+  /** Direct buffer in native byte order, as the models and stores expect. */
+  static ByteBuffer allocateBuffer(int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+
+  /** Bottleneck of a sample, whose features are given by {@link #featureValue}. */
+  static ByteBuffer sampleBottleneck(int sampleIdx, int numFeatures) {
+    ByteBuffer bottleneck = allocateBuffer(numFeatures * FLOAT_BYTES);
+    for (int featureIdx = 0; featureIdx < numFeatures; featureIdx++) {
+      bottleneck.putFloat(featureValue(sampleIdx, featureIdx));
+    }
+    bottleneck.rewind();
+    return bottleneck;
+  }
+
+  /** Value of a feature of a sample, distinct for every sample and feature in small tests. */
+  static float featureValue(int sampleIdx, int featureIdx) {
+    return sampleIdx * 100 + featureIdx;
+  }
+}
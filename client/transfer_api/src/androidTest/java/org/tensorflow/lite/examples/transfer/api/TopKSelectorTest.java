@@ -0,0 +1,81 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** Unit tests for {@link TopKSelector}. */
+@RunWith(AndroidJUnit4.class)
+public class TopKSelectorTest {
+  private static final int FLOAT_BYTES = 4;
+
+  private static final int NUM_SCORES = 50;
+  private static final int K = 5;
+  private static final int OUT_OFFSET = 3;
+
+  @Test
+  public void shouldMatchFullSort() {
+    Random random = new Random(17);
+    float[] values = new float[NUM_SCORES];
+    ByteBuffer scores = ByteBuffer.allocate((NUM_SCORES + 1) * FLOAT_BYTES);
+    scores.order(ByteOrder.nativeOrder());
+    for (int idx = 0; idx < NUM_SCORES; idx++) {
+      values[idx] = random.nextFloat();
+      scores.putFloat((idx + 1) * FLOAT_BYTES, values[idx]);
+    }
+
+    int[] indices = new int[OUT_OFFSET + K];
+    float[] selected = new float[OUT_OFFSET + K];
+    int count =
+        TopKSelector.select(scores, FLOAT_BYTES, NUM_SCORES, K, indices, selected, OUT_OFFSET);
+
+    Integer[] order = new Integer[NUM_SCORES];
+    for (int idx = 0; idx < NUM_SCORES; idx++) {
+      order[idx] = idx;
+    }
+    Arrays.sort(order, Comparator.comparing((Integer idx) -> -values[idx]));
+
+    assertEquals(K, count);
+    for (int rank = 0; rank < K; rank++) {
+      assertEquals((int) order[rank], indices[OUT_OFFSET + rank]);
+      assertEquals(values[order[rank]], selected[OUT_OFFSET + rank], 0.f);
+    }
+  }
+
+  @Test
+  public void shouldKeepLowerIndexFirstAndStopAtRowLength() {
+    ByteBuffer scores = ByteBuffer.allocate(3 * FLOAT_BYTES);
+    scores.putFloat(0.5f).putFloat(0.9f).putFloat(0.5f);
+
+    int[] indices = new int[K];
+    float[] selected = new float[K];
+    int count = TopKSelector.select(scores, 0, 3, K, indices, selected, 0);
+
+    assertEquals(3, count);
+    assertEquals(1, indices[0]);
+    assertEquals(0, indices[1]);
+    assertEquals(2, indices[2]);
+  }
+}
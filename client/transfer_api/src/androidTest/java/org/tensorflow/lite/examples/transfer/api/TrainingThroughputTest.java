@@ -0,0 +1,120 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.util.Log;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.TrainingStats;
+
+/** Training throughput comparisons for {@link TransferLearningModel}. */
+@RunWith(AndroidJUnit4.class)
+public class TrainingThroughputTest {
+  private static final String TAG = "TrainingThroughputTest";
+
+  private static final int IMAGE_SIZE = 224;
+  private static final int NUM_IMAGE_CHANNELS = 3;
+
+  private static final List<String> CLASSES = Arrays.asList("1", "2", "3", "4", "5");
+  private static final int NUM_BATCHES = 10;
+  private static final int NUM_EPOCHS = 3;
+  private static final long SEED = 32;
+
+  @Test
+  public void prefetchShouldProcessTheSameSamples() throws Exception {
+    TrainingStats withoutPrefetch = runTraining(newLoader(), false);
+    TrainingStats withPrefetch = runTraining(newLoader(), true);
+
+    Log.i(TAG, "Without prefetch: " + withoutPrefetch);
+    Log.i(TAG, "With prefetch: " + withPrefetch);
+    assertEquals(withoutPrefetch.getNumSamples(), withPrefetch.getNumSamples());
+    assertFalse(withoutPrefetch.isPrefetchEnabled());
+    assertTrue(withPrefetch.isPrefetchEnabled());
+  }
+
+  @Test
+  public void fusedTrainStepShouldBeUsedWhenAvailable() throws Exception {
+    AssetModelLoader fusedLoader = newLoader();
+    LiteModelWrapper trainStepModel = fusedLoader.loadTrainStepModel();
+    Assume.assumeTrue("No fused training step model in assets", trainStepModel != null);
+    trainStepModel.close();
+
+    TrainingStats twoModels =
+        runTraining(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model") {
+              @Override
+              public LiteModelWrapper loadTrainStepModel() {
+                return null;
+              }
+            },
+            true);
+    TrainingStats fused = runTraining(fusedLoader, true);
+
+    // Rates are only logged: a single wall-clock comparison is too noisy on shared devices.
+    Log.i(TAG, "Two models: " + twoModels);
+    Log.i(TAG, "Fused step: " + fused);
+    Log.i(
+        TAG,
+        String.format(
+            "Fused step ran at %.1f steps/s, two models at %.1f steps/s",
+            fused.getStepsPerSecond(), twoModels.getStepsPerSecond()));
+    assertFalse(twoModels.isFusedTrainStep());
+    assertTrue(fused.isFusedTrainStep());
+  }
+
+  private static AssetModelLoader newLoader() {
+    return new AssetModelLoader(InstrumentationRegistry.getInstrumentation().getContext(), "model");
+  }
+
+  private static TrainingStats runTraining(ModelLoader loader, boolean prefetch)
+      throws InterruptedException, ExecutionException {
+    TransferLearningModel model = new TransferLearningModel(loader, CLASSES);
+    try {
+      model.setShuffleSeed(SEED);
+      model.setPrefetchEnabled(prefetch);
+
+      Random random = new Random(SEED);
+      float[] image = new float[IMAGE_SIZE * IMAGE_SIZE * NUM_IMAGE_CHANNELS];
+      int numSamples = model.getTrainBatchSize() * NUM_BATCHES;
+      for (int sampleIdx = 0; sampleIdx < numSamples; sampleIdx++) {
+        for (int idx = 0; idx < image.length; idx++) {
+          image[idx] = random.nextFloat();
+        }
+        model.addSample(image.clone(), CLASSES.get(sampleIdx % CLASSES.size()), true).get();
+      }
+
+      // Warm up the interpreters before measuring.
+      model.train(1, null).get();
+      model.train(NUM_EPOCHS, null).get();
+      return model.getLastTrainingStats();
+    } finally {
+      model.close();
+    }
+  }
+}
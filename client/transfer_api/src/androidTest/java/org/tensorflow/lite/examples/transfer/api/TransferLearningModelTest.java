@@ -15,14 +15,19 @@ limitations under the License.
 
 package org.tensorflow.lite.examples.transfer.api;
 
+import android.util.Pair;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 import androidx.test.platform.app.InstrumentationRegistry;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
+import java.util.Random;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -30,6 +35,12 @@ import org.junit.runner.RunWith;
 /** Unit tests for {@link TransferLearningModel}. */
 @RunWith(AndroidJUnit4.class)
 public class TransferLearningModelTest {
+  private static final int FLOAT_BYTES = 4;
+  private static final int IMAGE_VALUES = 224 * 224 * 3;
+  private static final int NUM_IMAGES = 3;
+  private static final int K = 2;
+  private static final float EPS = 1e-5f;
+  private static final int NUM_TEST_SAMPLES = 40;
 
   @Test
   public void saveAndLoadShouldPreserveParameters() throws IOException {
@@ -67,4 +78,178 @@ public class TransferLearningModelTest {
 
     Files.delete(tempFilePath);
   }
+
+  @Test
+  public void topKPredictionsShouldMatchSortedPredictions() {
+    TransferLearningModel model =
+        new TransferLearningModel(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+            Arrays.asList("1", "2", "3", "4", "5"));
+
+    Random random = new Random(5);
+    float[][] images = new float[NUM_IMAGES][IMAGE_VALUES];
+    ByteBuffer imageBatch = ByteBuffer.allocateDirect(NUM_IMAGES * IMAGE_VALUES * FLOAT_BYTES);
+    imageBatch.order(ByteOrder.nativeOrder());
+    for (float[] image : images) {
+      for (int idx = 0; idx < IMAGE_VALUES; idx++) {
+        image[idx] = random.nextFloat();
+        imageBatch.putFloat(image[idx]);
+      }
+    }
+    imageBatch.rewind();
+
+    int[] batchClasses = new int[NUM_IMAGES * K];
+    float[] batchScores = new float[NUM_IMAGES * K];
+    Assert.assertEquals(
+        K, model.predictBatch(imageBatch, NUM_IMAGES, K, batchClasses, batchScores));
+
+    for (int imageIdx = 0; imageIdx < NUM_IMAGES; imageIdx++) {
+      TransferLearningModel.Prediction[] expected = model.predict(images[imageIdx]);
+      int[] classes = new int[K];
+      float[] scores = new float[K];
+      Assert.assertEquals(K, model.predictTopK(images[imageIdx], K, classes, scores));
+
+      for (int rank = 0; rank < K; rank++) {
+        Assert.assertEquals(expected[rank].getConfidence(), scores[rank], EPS);
+        Assert.assertEquals(expected[rank].getConfidence(), batchScores[imageIdx * K + rank], EPS);
+      }
+    }
+    model.close();
+  }
+
+  @Test
+  public void evaluationShouldCountEverySampleOnce() throws Exception {
+    TransferLearningModel model =
+        new TransferLearningModel(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+            Arrays.asList("1", "2", "3", "4", "5"));
+
+    Random random = new Random(7);
+    float[][] images = new float[NUM_TEST_SAMPLES][IMAGE_VALUES];
+    String[] classNames = new String[NUM_TEST_SAMPLES];
+    for (int sampleIdx = 0; sampleIdx < NUM_TEST_SAMPLES; sampleIdx++) {
+      for (int idx = 0; idx < IMAGE_VALUES; idx++) {
+        images[sampleIdx][idx] = random.nextFloat();
+      }
+      classNames[sampleIdx] = String.valueOf(sampleIdx % 5 + 1);
+    }
+    model.addSamples(images, classNames, false).get();
+
+    TransferLearningModel.EvaluationStats top1 = model.evaluate(1);
+    TransferLearningModel.EvaluationStats topAll = model.evaluate(5);
+
+    Assert.assertEquals(NUM_TEST_SAMPLES, top1.getNumSamples());
+    Assert.assertEquals(top1.getAccuracy(), top1.getTopKAccuracy(), 0.f);
+    Assert.assertEquals(1.f, topAll.getTopKAccuracy(), 0.f);
+    Assert.assertEquals(top1.getLoss(), topAll.getLoss(), EPS);
+
+    int support = 0;
+    int predicted = 0;
+    int correct = 0;
+    for (int classIdx = 0; classIdx < 5; classIdx++) {
+      Assert.assertEquals(NUM_TEST_SAMPLES / 5, top1.getClassSupport()[classIdx]);
+      support += top1.getClassSupport()[classIdx];
+      predicted += top1.getClassPredicted()[classIdx];
+      correct += top1.getClassCorrect()[classIdx];
+    }
+    Assert.assertEquals(NUM_TEST_SAMPLES, support);
+    Assert.assertEquals(NUM_TEST_SAMPLES, predicted);
+    Assert.assertEquals(top1.getAccuracy(), (float) correct / NUM_TEST_SAMPLES, EPS);
+
+    Pair<Float, Float> statistics = model.getTestStatistics();
+    Assert.assertEquals(top1.getLoss(), statistics.first, EPS);
+    Assert.assertEquals(top1.getAccuracy(), statistics.second, EPS);
+    model.close();
+  }
+
+  @Test
+  public void evaluationShouldBeMemoizedUntilParametersChange() throws Exception {
+    TransferLearningModel model =
+        new TransferLearningModel(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+            Arrays.asList("1", "2", "3", "4", "5"));
+
+    Random random = new Random(9);
+    float[][] images = new float[NUM_IMAGES][IMAGE_VALUES];
+    for (float[] image : images) {
+      for (int idx = 0; idx < IMAGE_VALUES; idx++) {
+        image[idx] = random.nextFloat();
+      }
+    }
+    model.addSamples(images, new String[] {"1", "2", "3"}, false).get();
+
+    TransferLearningModel.EvaluationStats first = model.evaluate(1);
+    Assert.assertSame(first, model.evaluate(1));
+
+    ByteBuffer[] parameters = model.getParameters();
+    ByteBuffer[] copies = new ByteBuffer[parameters.length];
+    for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+      copies[paramIdx] = ByteBuffer.allocateDirect(parameters[paramIdx].capacity());
+      copies[paramIdx].order(ByteOrder.nativeOrder());
+      copies[paramIdx].put(parameters[paramIdx].duplicate());
+      copies[paramIdx].rewind();
+    }
+    long version = model.getParameterVersion();
+    model.updateParameters(copies);
+    Assert.assertEquals(version, model.getParameterVersion());
+    Assert.assertSame(first, model.evaluate(1));
+
+    copies[0].putFloat(0, copies[0].getFloat(0) + 1.f);
+    model.updateParameters(copies);
+    Assert.assertEquals(version + 1, model.getParameterVersion());
+    Assert.assertNotSame(first, model.evaluate(1));
+    model.close();
+  }
+
+  @Test
+  public void finishedRunShouldBeResumedFromCheckpoint() throws Exception {
+    File checkpoint = Files.createTempFile("tflite-tl-resume", ".bin").toFile();
+    checkpoint.delete();
+    long runId = 17;
+
+    TransferLearningModel model = newModelWithTrainingSamples(checkpoint);
+    model.train(2, null, runId).get();
+    ByteBuffer[] trained = model.getParameters();
+    Assert.assertTrue(model.getLastTrainingStats().getNumSamples() > 0);
+    model.close();
+
+    model = newModelWithTrainingSamples(checkpoint);
+    model.train(2, null, runId).get();
+    Assert.assertEquals(0, model.getLastTrainingStats().getNumSamples());
+    ByteBuffer[] resumed = model.getParameters();
+    for (int paramIdx = 0; paramIdx < trained.length; paramIdx++) {
+      Assert.assertEquals(trained[paramIdx], resumed[paramIdx]);
+    }
+
+    model.train(2, null, runId + 1).get();
+    Assert.assertTrue(model.getLastTrainingStats().getNumSamples() > 0);
+    model.close();
+    checkpoint.delete();
+  }
+
+  private static TransferLearningModel newModelWithTrainingSamples(File checkpoint)
+      throws Exception {
+    TransferLearningModel model =
+        new TransferLearningModel(
+            new AssetModelLoader(
+                InstrumentationRegistry.getInstrumentation().getContext(), "model"),
+            Arrays.asList("1", "2", "3", "4", "5"));
+    model.enableResumeCheckpoints(checkpoint, 1);
+
+    Random random = new Random(3);
+    int numSamples = model.getTrainBatchSize() * 2;
+    float[][] images = new float[numSamples][IMAGE_VALUES];
+    String[] classNames = new String[numSamples];
+    for (int sampleIdx = 0; sampleIdx < numSamples; sampleIdx++) {
+      for (int idx = 0; idx < IMAGE_VALUES; idx++) {
+        images[sampleIdx][idx] = random.nextFloat();
+      }
+      classNames[sampleIdx] = String.valueOf(sampleIdx % 5 + 1);
+    }
+    model.addSamples(images, classNames, true).get();
+    return model;
+  }
 }
@@ -23,11 +23,16 @@ import java.io.IOException;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
 
 /** Handles loading various parts of the model stored as a directory under Android assets. */
 public class AssetModelLoader implements ModelLoader {
   private AssetManager assetManager;
   private String directoryName;
+  private final InterpreterAutotuner autotuner;
+  private final Map<ModelRole, InterpreterProfile> profiles = new EnumMap<>(ModelRole.class);
 
   /**
    * Create a loader for a transfer learning model under given directory.
@@ -37,31 +42,68 @@ public class AssetModelLoader implements ModelLoader {
   public AssetModelLoader(Context context, String directoryName) {
     this.directoryName = directoryName;
     this.assetManager = context.getAssets();
+    this.autotuner = new InterpreterAutotuner(context);
+  }
+
+  /**
+   * Sets the interpreter settings for one model role. Takes effect for models loaded afterwards.
+   *
+   * <p>A profile with {@link InterpreterProfile#AUTOTUNE_THREADS} is tuned on first load, and
+   * the result is cached per device.
+   */
+  public void setInterpreterProfile(ModelRole role, InterpreterProfile profile) {
+    profiles.put(role, new InterpreterProfile(profile));
+  }
+
+  @Override
+  public InterpreterProfile getInterpreterProfile(ModelRole role) {
+    InterpreterProfile profile = profiles.get(role);
+    return profile == null ? new InterpreterProfile() : new InterpreterProfile(profile);
   }
 
   @Override
   public LiteModelWrapper loadInitializeModel() throws IOException {
-    return new LiteModelWrapper(loadMappedFile("initialize.tflite"));
+    return loadModel("initialize.tflite", ModelRole.INITIALIZE);
   }
 
   @Override
   public LiteModelWrapper loadBaseModel() throws IOException {
-    return new LiteModelWrapper(loadMappedFile("bottleneck.tflite"));
+    return loadModel("bottleneck.tflite", ModelRole.BOTTLENECK);
   }
 
   @Override
   public LiteModelWrapper loadTrainModel() throws IOException {
-    return new LiteModelWrapper(loadMappedFile("train_head.tflite"));
+    return loadModel("train_head.tflite", ModelRole.TRAIN_HEAD);
   }
 
   @Override
   public LiteModelWrapper loadInferenceModel() throws IOException {
-    return new LiteModelWrapper(loadMappedFile("inference.tflite"));
+    return loadModel("inference.tflite", ModelRole.INFERENCE);
   }
 
   @Override
   public LiteModelWrapper loadOptimizerModel() throws IOException {
-    return new LiteModelWrapper(loadMappedFile("optimizer.tflite"));
+    return loadModel("optimizer.tflite", ModelRole.OPTIMIZER);
+  }
+
+  @Override
+  public LiteModelWrapper loadTrainStepModel() throws IOException {
+    if (!hasFile("train_step.tflite")) {
+      return null;
+    }
+    return loadModel("train_step.tflite", ModelRole.TRAIN_STEP);
+  }
+
+  private LiteModelWrapper loadModel(String filePath, ModelRole role) throws IOException {
+    MappedByteBuffer model = loadMappedFile(filePath);
+    InterpreterProfile profile =
+        autotuner.tune(directoryName + "/" + filePath, model, getInterpreterProfile(role));
+    return new LiteModelWrapper(model, profile);
+  }
+
+  protected boolean hasFile(String filePath) throws IOException {
+    String[] files = assetManager.list(this.directoryName);
+    return files != null && Arrays.asList(files).contains(filePath);
   }
 
   protected MappedByteBuffer loadMappedFile(String filePath) throws IOException {
@@ -0,0 +1,223 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands training batches from a producer to the training thread through two alternating slots.
+ *
+ * <p>With an executor, a background producer fills one slot while the training thread computes
+ * on the other one. Without an executor, batches are assembled on the training thread when
+ * they are taken, which is useful as a baseline. Hand-off uses park/unpark, so it does not
+ * allocate per batch.
+ */
+final class BatchPrefetcher {
+  static final int NUM_SLOTS = 2;
+
+  private static final int SLOT_FREE = 0;
+  private static final int SLOT_READY = 1;
+
+  /** Produces the batches of every epoch into slots. */
+  interface BatchSource {
+    /** Prepares the given epoch (0-based within the current run). */
+    void startEpoch(int epoch);
+
+    /**
+     * Assembles the next batch of the current epoch.
+     *
+     * @param slot where to assemble the batch.
+     * @return number of samples in the batch, or 0 if the epoch has no more batches.
+     */
+    int fillNext(int slot);
+  }
+
+  private final BatchSource source;
+  private final int numEpochs;
+  private final ExecutorService executor;
+
+  private final AtomicIntegerArray slotStates = new AtomicIntegerArray(NUM_SLOTS);
+  private final int[] slotSizes = new int[NUM_SLOTS];
+
+  private volatile Thread consumerThread;
+  private volatile Thread producerThread;
+  private volatile boolean stopped = false;
+  private volatile Throwable producerFailure;
+  private Future<?> producerFuture;
+
+  // Consumer-side state.
+  private int nextTakeSlot = 0;
+  private int syncEpoch = 0;
+  private boolean syncEpochStarted = false;
+
+  // Written by the producer only, read after it has finished.
+  private volatile long assembleNanos = 0;
+
+  // Written by the consumer only.
+  private long waitNanos = 0;
+
+  /**
+   * @param source where batches come from.
+   * @param numEpochs how many epochs to produce.
+   * @param executor where to run the producer, or null to assemble batches on demand.
+   */
+  BatchPrefetcher(BatchSource source, int numEpochs, ExecutorService executor) {
+    this.source = source;
+    this.numEpochs = numEpochs;
+    this.executor = executor;
+  }
+
+  /** Starts producing batches. Must be called from the thread that will take them. */
+  void start() {
+    consumerThread = Thread.currentThread();
+    if (executor != null) {
+      producerFuture = executor.submit(this::produce);
+    }
+  }
+
+  /**
+   * Waits for the next batch.
+   *
+   * @return slot holding the batch. Its size is available from {@link #batchSize(int)}; a size
+   *     of 0 marks the end of an epoch. The slot must be given back with {@link #release(int)}.
+   * @throws InterruptedException if the thread is interrupted while waiting.
+   */
+  int take() throws InterruptedException {
+    int slot = nextTakeSlot;
+    nextTakeSlot = (nextTakeSlot + 1) % NUM_SLOTS;
+
+    if (executor == null) {
+      long startNanos = System.nanoTime();
+      if (!syncEpochStarted) {
+        source.startEpoch(syncEpoch);
+        syncEpochStarted = true;
+      }
+      slotSizes[slot] = source.fillNext(slot);
+      if (slotSizes[slot] == 0) {
+        syncEpoch++;
+        syncEpochStarted = false;
+      }
+      assembleNanos += System.nanoTime() - startNanos;
+      return slot;
+    }
+
+    if (slotStates.get(slot) != SLOT_READY) {
+      long startNanos = System.nanoTime();
+      while (slotStates.get(slot) != SLOT_READY) {
+        checkProducer();
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      waitNanos += System.nanoTime() - startNanos;
+    }
+    return slot;
+  }
+
+  /** Number of samples in the batch held by a slot. */
+  int batchSize(int slot) {
+    return slotSizes[slot];
+  }
+
+  /** Gives a slot back to the producer, once the batch it holds is no longer needed. */
+  void release(int slot) {
+    if (executor == null) {
+      return;
+    }
+    slotStates.set(slot, SLOT_FREE);
+    LockSupport.unpark(producerThread);
+  }
+
+  /** Stops the producer and waits for it to finish, so that no slot is written afterwards. */
+  void stop() {
+    stopped = true;
+    if (producerFuture == null) {
+      return;
+    }
+    LockSupport.unpark(producerThread);
+    boolean interrupted = false;
+    while (true) {
+      try {
+        producerFuture.get();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      } catch (ExecutionException e) {
+        // Already reported to the consumer through [producerFailure].
+        break;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Time spent assembling batches, in nanoseconds. */
+  long getAssembleNanos() {
+    return assembleNanos;
+  }
+
+  /** Time the consumer spent waiting for a batch to be ready, in nanoseconds. */
+  long getWaitNanos() {
+    return waitNanos;
+  }
+
+  private void produce() {
+    producerThread = Thread.currentThread();
+    int slot = 0;
+    try {
+      for (int epoch = 0; epoch < numEpochs; epoch++) {
+        source.startEpoch(epoch);
+        int batchSize;
+        do {
+          while (slotStates.get(slot) != SLOT_FREE) {
+            if (stopped) {
+              return;
+            }
+            LockSupport.park(this);
+          }
+          if (stopped) {
+            return;
+          }
+
+          long startNanos = System.nanoTime();
+          batchSize = source.fillNext(slot);
+          assembleNanos += System.nanoTime() - startNanos;
+
+          slotSizes[slot] = batchSize;
+          slotStates.set(slot, SLOT_READY);
+          LockSupport.unpark(consumerThread);
+          slot = (slot + 1) % NUM_SLOTS;
+        } while (batchSize > 0);
+      }
+    } catch (Throwable t) {
+      producerFailure = t;
+      LockSupport.unpark(consumerThread);
+    }
+  }
+
+  private void checkProducer() {
+    Throwable failure = producerFailure;
+    if (failure != null) {
+      throw new RuntimeException("Failed to assemble a training batch", failure);
+    }
+  }
+}
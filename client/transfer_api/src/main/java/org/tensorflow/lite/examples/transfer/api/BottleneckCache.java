@@ -0,0 +1,196 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * On-disk cache of bottlenecks, stored as a memory-mapped file of fixed-stride records.
+ *
+ * <p>The file starts with a header that names the base model the bottlenecks were produced by.
+ * If it does not match the current model, the cache is emptied. Every record holds a 64-bit
+ * hash of the sample key, followed by the bottleneck itself. Records are only ever appended, and
+ * the header count is updated after the record is written.
+ */
+final class BottleneckCache implements Closeable {
+  private static final int MAGIC = 0x424e4331; // "BNC1"
+  private static final int VERSION = 1;
+
+  // magic, version, model hash, row bytes, record count, padding.
+  private static final int HEADER_BYTES = 32;
+  private static final int MODEL_HASH_OFFSET = 8;
+  private static final int ROW_BYTES_OFFSET = 16;
+  private static final int COUNT_OFFSET = 20;
+
+  private static final int KEY_BYTES = 8;
+  private static final int INITIAL_CAPACITY = 256;
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final int rowBytes;
+  private final int stride;
+
+  // Record index by key hash, guarded by [this].
+  private final Map<Long, Integer> index = new HashMap<>();
+  private MappedByteBuffer mapped;
+  private int capacity;
+  private int count;
+
+  private BottleneckCache(File path, long modelHash, int rowBytes) throws IOException {
+    this.rowBytes = rowBytes;
+    this.stride = KEY_BYTES + rowBytes;
+    file = new RandomAccessFile(path, "rw");
+    channel = file.getChannel();
+
+    boolean valid = false;
+    if (channel.size() >= HEADER_BYTES) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.nativeOrder());
+      channel.read(header, 0);
+      valid = header.getInt(0) == MAGIC
+          && header.getInt(4) == VERSION
+          && header.getLong(MODEL_HASH_OFFSET) == modelHash
+          && header.getInt(ROW_BYTES_OFFSET) == rowBytes
+          && HEADER_BYTES + (long) header.getInt(COUNT_OFFSET) * stride <= channel.size();
+      count = valid ? header.getInt(COUNT_OFFSET) : 0;
+    }
+    if (!valid) {
+      channel.truncate(0);
+    }
+
+    map(Math.max(INITIAL_CAPACITY, count));
+    if (!valid) {
+      mapped.putInt(0, MAGIC);
+      mapped.putInt(4, VERSION);
+      mapped.putLong(MODEL_HASH_OFFSET, modelHash);
+      mapped.putInt(ROW_BYTES_OFFSET, rowBytes);
+      mapped.putInt(COUNT_OFFSET, 0);
+    }
+    for (int recordIdx = 0; recordIdx < count; recordIdx++) {
+      index.put(mapped.getLong(recordOffset(recordIdx)), recordIdx);
+    }
+  }
+
+  /**
+   * Opens a cache file, creating it if needed.
+   *
+   * @param path where the cache is stored.
+   * @param modelHash identifies the base model; a cache written for another model is emptied.
+   * @param rowBytes size of a single bottleneck, in bytes.
+   */
+  static BottleneckCache open(File path, long modelHash, int rowBytes) throws IOException {
+    return new BottleneckCache(path, modelHash, rowBytes);
+  }
+
+  /** Number of cached bottlenecks. */
+  synchronized int size() {
+    return count;
+  }
+
+  /**
+   * Copies a cached bottleneck, if there is one.
+   *
+   * @param key identifies the sample, e.g. its image path.
+   * @param out where to copy the bottleneck. Its position is advanced by one row on a hit.
+   * @return whether the bottleneck was found.
+   */
+  synchronized boolean copyRow(String key, ByteBuffer out) {
+    Integer recordIdx = index.get(hashKey(key));
+    if (recordIdx == null) {
+      return false;
+    }
+
+    int offset = recordOffset(recordIdx) + KEY_BYTES;
+    ByteBuffer row = mapped.duplicate();
+    row.limit(offset + rowBytes).position(offset);
+    out.put(row);
+    return true;
+  }
+
+  /**
+   * Adds a bottleneck to the cache, unless one is already cached for the key.
+   *
+   * @param key identifies the sample, e.g. its image path.
+   * @param bottleneck bottleneck data, read from its current position. The position is restored.
+   */
+  synchronized void put(String key, ByteBuffer bottleneck) throws IOException {
+    long keyHash = hashKey(key);
+    if (index.containsKey(keyHash)) {
+      return;
+    }
+    if (bottleneck.remaining() < rowBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Bottleneck has %d bytes, but the cache expects %d", bottleneck.remaining(), rowBytes));
+    }
+    if (count == capacity) {
+      map(capacity * 2);
+    }
+
+    int offset = recordOffset(count);
+    mapped.putLong(offset, keyHash);
+    ByteBuffer row = bottleneck.duplicate();
+    row.limit(row.position() + rowBytes);
+    ByteBuffer target = mapped.duplicate();
+    target.position(offset + KEY_BYTES);
+    target.put(row);
+
+    index.put(keyHash, count);
+    count++;
+    mapped.putInt(COUNT_OFFSET, count);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    mapped.force();
+    channel.close();
+    file.close();
+  }
+
+  private void map(int newCapacity) throws IOException {
+    long bytes = HEADER_BYTES + (long) newCapacity * stride;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IOException(
+          String.format("Bottleneck cache cannot grow beyond %d records", capacity));
+    }
+    mapped = channel.map(MapMode.READ_WRITE, 0, bytes);
+    mapped.order(ByteOrder.nativeOrder());
+    capacity = newCapacity;
+  }
+
+  private int recordOffset(int recordIdx) {
+    return HEADER_BYTES + recordIdx * stride;
+  }
+
+  /** 64-bit FNV-1a hash of a key. */
+  static long hashKey(String key) {
+    long hash = 0xcbf29ce484222325L;
+    for (int idx = 0; idx < key.length(); idx++) {
+      char c = key.charAt(idx);
+      hash = (hash ^ (c & 0xff)) * 0x100000001b3L;
+      hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -0,0 +1,141 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.util.Random;
+import org.tensorflow.lite.examples.transfer.api.TransferLearningModel.SamplingMode;
+
+/**
+ * Decides in which order training samples are visited, one epoch at a time.
+ *
+ * <p>The order is kept in a primitive index array, so the samples themselves are never moved.
+ * Every epoch is derived from the base seed and the epoch number only, which makes any epoch
+ * reproducible on its own.
+ */
+final class EpochSampler {
+  private static final long EPOCH_SEED_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+  private final Random random = new Random();
+
+  private SamplingMode mode;
+  private long seed;
+
+  private int[] order = new int[0];
+  private int epochSize = 0;
+  private int cursor = 0;
+  private int batchOffset = 0;
+
+  EpochSampler(SamplingMode mode, long seed) {
+    this.mode = mode;
+    this.seed = seed;
+  }
+
+  void setMode(SamplingMode mode) {
+    this.mode = mode;
+  }
+
+  SamplingMode getMode() {
+    return mode;
+  }
+
+  void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Starts a new epoch over samples [0, numSamples).
+   *
+   * <p>Samples added after this call are not visited until the next epoch.
+   *
+   * @param epoch epoch number, used together with the base seed to derive the order.
+   * @param numSamples number of samples visible during this epoch.
+   */
+  void startEpoch(int epoch, int numSamples) {
+    if (order.length < numSamples) {
+      order = new int[numSamples];
+    }
+    epochSize = numSamples;
+    cursor = 0;
+    batchOffset = 0;
+
+    random.setSeed(seed + epoch * EPOCH_SEED_MULTIPLIER);
+    if (mode == SamplingMode.WITH_REPLACEMENT) {
+      for (int idx = 0; idx < numSamples; idx++) {
+        order[idx] = random.nextInt(numSamples);
+      }
+    } else {
+      // Fisher-Yates shuffle.
+      for (int idx = 0; idx < numSamples; idx++) {
+        order[idx] = idx;
+      }
+      for (int idx = numSamples - 1; idx > 0; idx--) {
+        int swapIdx = random.nextInt(idx + 1);
+        int swap = order[idx];
+        order[idx] = order[swapIdx];
+        order[swapIdx] = swap;
+      }
+    }
+  }
+
+  boolean hasNextBatch() {
+    return cursor < epochSize;
+  }
+
+  /**
+   * Advances to the next batch.
+   *
+   * @param batchSize maximum number of samples in a batch.
+   * @return number of samples in the batch. Only the final batch of an epoch can be smaller
+   *     than [batchSize]; no sample is repeated to fill it up.
+   */
+  int nextBatch(int batchSize) {
+    batchOffset = cursor;
+    int count = Math.min(batchSize, epochSize - cursor);
+    cursor += count;
+    return count;
+  }
+
+  /**
+   * Skips the first batches of the current epoch, as if they had been taken with {@link
+   * #nextBatch}, e.g. because they were already visited before a restart.
+   *
+   * @param numBatches how many batches to skip.
+   * @param batchSize maximum number of samples in a batch.
+   * @return number of batches skipped, which is less than [numBatches] if the epoch ends first.
+   */
+  int skipBatches(int numBatches, int batchSize) {
+    int numSkipped = 0;
+    while (numSkipped < numBatches && hasNextBatch()) {
+      nextBatch(batchSize);
+      numSkipped++;
+    }
+    return numSkipped;
+  }
+
+  /** Sample indices of the epoch; the current batch starts at {@link #batchOffset()}. */
+  int[] order() {
+    return order;
+  }
+
+  /** Offset of the current batch in {@link #order()}. */
+  int batchOffset() {
+    return batchOffset;
+  }
+}
@@ -0,0 +1,291 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import android.util.Log;
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Evaluates the inference model over a sample store.
+ *
+ * <p>Samples are split into contiguous shards, each evaluated by its own inference interpreter
+ * on batches of bottlenecks, so that shards run in parallel and every interpreter invocation
+ * covers several samples. Metrics are computed from the raw confidences, in one pass.
+ */
+final class EvaluationEngine implements Closeable {
+  private static final String TAG = "EvaluationEngine";
+  private static final int FLOAT_BYTES = 4;
+
+  private final LiteInferenceModel prototype;
+  private final int bottleneckBytes;
+  private final int numClasses;
+  private final int batchSize;
+  private final int maxShards;
+
+  // Created on first use, guarded by [this].
+  private final List<Shard> shards = new ArrayList<>();
+
+  // Cleared when the inference model turns out not to support batches of bottlenecks.
+  private volatile boolean batchesSupported = true;
+
+  /**
+   * @param prototype inference model whose interpreters are duplicated for every shard; it is
+   *     not used itself, and is not closed with the engine.
+   * @param batchSize number of samples per inference invocation.
+   * @param maxShards maximum number of shards evaluated in parallel.
+   */
+  EvaluationEngine(LiteInferenceModel prototype, int batchSize, int maxShards) {
+    if (batchSize < 1 || maxShards < 1) {
+      throw new IllegalArgumentException(String.format(
+          "Batch size and shard count must be at least 1, got %d and %d",
+          batchSize, maxShards));
+    }
+    this.prototype = prototype;
+    this.bottleneckBytes = prototype.getBottleneckBytes();
+    this.numClasses = prototype.getNumClasses();
+    this.batchSize = batchSize;
+    this.maxShards = maxShards;
+  }
+
+  /**
+   * Evaluates the model on the samples present in a store when the call starts.
+   *
+   * <p>The model parameters must not change during the call. All shards but the first are run
+   * on [executor]; the first one runs on the calling thread.
+   *
+   * @param samples samples to evaluate on.
+   * @param modelParameters current values of the model parameters.
+   * @param k number of most likely classes in which the label counts as a top-k hit.
+   * @param parameterVersion version of [modelParameters], recorded in the result.
+   * @param executor where to run the other shards.
+   */
+  synchronized TransferLearningModel.EvaluationStats evaluate(
+      SampleStore samples,
+      ByteBuffer[] modelParameters,
+      int k,
+      long parameterVersion,
+      ExecutorService executor) {
+    long startNanos = System.nanoTime();
+    int numSamples = samples.size();
+    int numShards = Math.max(1, Math.min(maxShards, numSamples / batchSize));
+    while (shards.size() < numShards) {
+      shards.add(new Shard(prototype.newInstance()));
+    }
+
+    int shardSize = (numSamples + numShards - 1) / numShards;
+    List<Future<?>> futures = new ArrayList<>();
+    for (int shardIdx = 1; shardIdx < numShards; shardIdx++) {
+      Shard shard = shards.get(shardIdx);
+      int first = Math.min(numSamples, shardIdx * shardSize);
+      int end = Math.min(numSamples, first + shardSize);
+      futures.add(executor.submit(() -> shard.evaluate(samples, first, end, modelParameters, k)));
+    }
+
+    RuntimeException failure = null;
+    try {
+      shards.get(0).evaluate(samples, 0, Math.min(numSamples, shardSize), modelParameters, k);
+    } catch (RuntimeException e) {
+      failure = e;
+    }
+    // Shards use the model parameters, so they must all be done before returning.
+    boolean interrupted = false;
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = new RuntimeException("Failed to evaluate the model", e.getCause());
+          }
+          break;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+
+    double lossSum = 0;
+    int correct = 0;
+    int topKCorrect = 0;
+    int[] classSupport = new int[numClasses];
+    int[] classCorrect = new int[numClasses];
+    int[] classPredicted = new int[numClasses];
+    for (int shardIdx = 0; shardIdx < numShards; shardIdx++) {
+      Shard shard = shards.get(shardIdx);
+      lossSum += shard.lossSum;
+      correct += shard.correct;
+      topKCorrect += shard.topKCorrect;
+      for (int classIdx = 0; classIdx < numClasses; classIdx++) {
+        classSupport[classIdx] += shard.classSupport[classIdx];
+        classCorrect[classIdx] += shard.classCorrect[classIdx];
+        classPredicted[classIdx] += shard.classPredicted[classIdx];
+      }
+    }
+
+    return new TransferLearningModel.EvaluationStats(
+        numSamples,
+        (float) (lossSum / numSamples),
+        correct,
+        k,
+        topKCorrect,
+        classSupport,
+        classCorrect,
+        classPredicted,
+        numShards,
+        System.nanoTime() - startNanos,
+        parameterVersion);
+  }
+
+  @Override
+  public synchronized void close() {
+    for (Shard shard : shards) {
+      shard.model.close();
+    }
+    shards.clear();
+  }
+
+  /** Interpreter, buffers and running totals of one shard. */
+  private final class Shard {
+    final LiteInferenceModel model;
+    final ByteBuffer bottlenecks;
+    final ByteBuffer predictions;
+
+    double lossSum;
+    int correct;
+    int topKCorrect;
+    final int[] classSupport = new int[numClasses];
+    final int[] classCorrect = new int[numClasses];
+    final int[] classPredicted = new int[numClasses];
+
+    Shard(LiteInferenceModel model) {
+      this.model = model;
+      bottlenecks = allocateBuffer(batchSize * bottleneckBytes);
+      predictions = allocateBuffer(batchSize * numClasses * FLOAT_BYTES);
+    }
+
+    /** Evaluates samples [first] to [end] of the store, replacing the totals. */
+    void evaluate(
+        SampleStore samples, int first, int end, ByteBuffer[] modelParameters, int k) {
+      lossSum = 0;
+      correct = 0;
+      topKCorrect = 0;
+      Arrays.fill(classSupport, 0);
+      Arrays.fill(classCorrect, 0);
+      Arrays.fill(classPredicted, 0);
+
+      SampleStore.Reader reader = samples.newReader();
+      for (int batchFirst = first; batchFirst < end; batchFirst += batchSize) {
+        int count = Math.min(batchSize, end - batchFirst);
+        bottlenecks.clear();
+        for (int sampleIdx = batchFirst; sampleIdx < batchFirst + count; sampleIdx++) {
+          reader.copyRow(sampleIdx, bottlenecks);
+        }
+        bottlenecks.rewind();
+
+        runBatch(count, modelParameters);
+        for (int rowIdx = 0; rowIdx < count; rowIdx++) {
+          accumulate(rowIdx * numClasses * FLOAT_BYTES, samples.getLabel(batchFirst + rowIdx), k);
+        }
+      }
+    }
+
+    private void runBatch(int count, ByteBuffer[] modelParameters) {
+      if (batchesSupported) {
+        try {
+          model.runInference(
+              rows(bottlenecks, 0, count, bottleneckBytes),
+              count,
+              modelParameters,
+              rows(predictions, 0, count, numClasses * FLOAT_BYTES));
+          return;
+        } catch (UnsupportedOperationException e) {
+          Log.w(TAG, "Inference model needs single samples, samples are evaluated one by one", e);
+          batchesSupported = false;
+        }
+      }
+
+      for (int rowIdx = 0; rowIdx < count; rowIdx++) {
+        model.runInference(
+            rows(bottlenecks, rowIdx, 1, bottleneckBytes),
+            1,
+            modelParameters,
+            rows(predictions, rowIdx, 1, numClasses * FLOAT_BYTES));
+      }
+    }
+
+    // Adds the metrics of one row of confidences, starting at byte [offset] of [predictions].
+    private void accumulate(int offset, int label, int k) {
+      float labelScore = predictions.getFloat(offset + label * FLOAT_BYTES);
+      int predictedClass = 0;
+      float predictedScore = predictions.getFloat(offset);
+      // Rank of the label, with ties broken by class index as in [TopKSelector].
+      int rank = 0;
+      for (int classIdx = 0; classIdx < numClasses; classIdx++) {
+        float score = predictions.getFloat(offset + classIdx * FLOAT_BYTES);
+        if (score > predictedScore) {
+          predictedClass = classIdx;
+          predictedScore = score;
+        }
+        if (score > labelScore || (score == labelScore && classIdx < label)) {
+          rank++;
+        }
+      }
+
+      lossSum += -Math.log(labelScore);
+      classSupport[label]++;
+      classPredicted[predictedClass]++;
+      if (predictedClass == label) {
+        correct++;
+        classCorrect[label]++;
+      }
+      if (rank < k) {
+        topKCorrect++;
+      }
+    }
+  }
+
+  /** Returns [buffer] itself when it holds exactly the requested rows, or a view otherwise. */
+  private static ByteBuffer rows(ByteBuffer buffer, int firstRow, int numRows, int rowBytes) {
+    if (firstRow == 0 && numRows * rowBytes == buffer.capacity()) {
+      return buffer;
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.position(firstRow * rowBytes);
+    view.limit((firstRow + numRows) * rowBytes);
+    return view.slice().order(ByteOrder.nativeOrder());
+  }
+
+  private static ByteBuffer allocateBuffer(int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+}
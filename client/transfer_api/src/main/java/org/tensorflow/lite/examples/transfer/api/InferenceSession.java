@@ -0,0 +1,82 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Inference interpreter with its own scratch buffers, so that several predictions can run at once.
+ *
+ * <p>A session owns every buffer a prediction writes to, so callers holding different sessions
+ * share nothing but the read-only parameters. Sessions are pooled in a {@link LiteModelPool}, and
+ * used by one thread at a time.
+ */
+final class InferenceSession implements Closeable {
+  private static final int FLOAT_BYTES = 4;
+
+  final LiteInferenceModel inferenceModel;
+
+  // Bottleneck and class confidences of a single image.
+  final ByteBuffer bottleneck;
+  final ByteBuffer predictions;
+
+  // Bottlenecks and confidences of the last batch, kept for batches of the same size.
+  private ByteBuffer batchBottlenecks;
+  private ByteBuffer batchPredictions;
+
+  /**
+   * @param inferenceModel interpreter of the session, closed with it.
+   * @param bottleneckBytes size of a single bottleneck, in bytes.
+   */
+  InferenceSession(LiteInferenceModel inferenceModel, int bottleneckBytes) {
+    this.inferenceModel = inferenceModel;
+    this.bottleneck = allocateBuffer(bottleneckBytes);
+    this.predictions = allocateBuffer(inferenceModel.getNumClasses() * FLOAT_BYTES);
+  }
+
+  /** Bottlenecks of a batch of [batchSize] samples, reallocated when the size changes. */
+  ByteBuffer batchBottlenecks(int batchSize) {
+    ensureBatchCapacity(batchSize);
+    return batchBottlenecks;
+  }
+
+  /** Confidences of a batch of [batchSize] samples, reallocated when the size changes. */
+  ByteBuffer batchPredictions(int batchSize) {
+    ensureBatchCapacity(batchSize);
+    return batchPredictions;
+  }
+
+  private void ensureBatchCapacity(int batchSize) {
+    int bottleneckBytes = bottleneck.capacity();
+    if (batchBottlenecks == null || batchBottlenecks.capacity() != batchSize * bottleneckBytes) {
+      batchBottlenecks = allocateBuffer(batchSize * bottleneckBytes);
+      batchPredictions = allocateBuffer(batchSize * predictions.capacity());
+    }
+  }
+
+  @Override
+  public void close() {
+    inferenceModel.close();
+  }
+
+  private static ByteBuffer allocateBuffer(int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+}
@@ -0,0 +1,133 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.TreeMap;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Picks the fastest number of interpreter threads for a model on the current device.
+ *
+ * <p>A few thread counts are timed on a zero-filled input, and the winner is cached in shared
+ * preferences, so the measurement only runs once per model and device build.
+ */
+public final class InterpreterAutotuner {
+  private static final String TAG = "InterpreterAutotuner";
+  private static final String PREFERENCES_NAME = "interpreter_autotune";
+
+  private static final int NUM_WARMUP_RUNS = 1;
+  private static final int NUM_TIMED_RUNS = 3;
+
+  private final SharedPreferences preferences;
+
+  public InterpreterAutotuner(Context context) {
+    preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+  }
+
+  /**
+   * Resolves the number of threads of a profile that asks for autotuning.
+   *
+   * @param key identifies the model; the cache is also keyed by model size and device build.
+   * @param model raw model data.
+   * @param profile profile to tune. Returned as is unless its thread count is
+   *     {@link InterpreterProfile#AUTOTUNE_THREADS}.
+   * @return profile with a concrete number of threads.
+   */
+  public InterpreterProfile tune(String key, ByteBuffer model, InterpreterProfile profile) {
+    if (profile.getNumThreads() != InterpreterProfile.AUTOTUNE_THREADS) {
+      return profile;
+    }
+
+    String cacheKey = String.format("%s/%d/%s", key, model.capacity(), Build.FINGERPRINT);
+    int numThreads = preferences.getInt(cacheKey, InterpreterProfile.AUTOTUNE_THREADS);
+    if (numThreads == InterpreterProfile.AUTOTUNE_THREADS) {
+      numThreads = measureFastestThreadCount(key, model, profile);
+      preferences.edit().putInt(cacheKey, numThreads).apply();
+    }
+    return new InterpreterProfile(profile).setNumThreads(numThreads);
+  }
+
+  private static int measureFastestThreadCount(
+      String key, ByteBuffer model, InterpreterProfile profile) {
+    int numCores = Runtime.getRuntime().availableProcessors();
+    int bestThreads = InterpreterProfile.DEFAULT_THREADS;
+    long bestNanos = Long.MAX_VALUE;
+
+    for (int numThreads = 1; numThreads <= numCores; numThreads *= 2) {
+      long nanos = timeRuns(model, new InterpreterProfile(profile).setNumThreads(numThreads));
+      Log.i(TAG, String.format("%s: %d threads, %.2f ms/run", key, numThreads, nanos / 1e6));
+      if (nanos < bestNanos) {
+        bestNanos = nanos;
+        bestThreads = numThreads;
+      }
+    }
+    return bestThreads;
+  }
+
+  /** Returns the best time of a few runs, or Long.MAX_VALUE if the model cannot run. */
+  private static long timeRuns(ByteBuffer model, InterpreterProfile profile) {
+    Interpreter interpreter = null;
+    try {
+      interpreter = new Interpreter(model, profile.toOptions());
+
+      Object[] inputs = new Object[interpreter.getInputTensorCount()];
+      for (int inputIdx = 0; inputIdx < inputs.length; inputIdx++) {
+        inputs[inputIdx] = allocateBuffer(interpreter.getInputTensor(inputIdx).numBytes());
+      }
+      Map<Integer, Object> outputs = new TreeMap<>();
+      for (int outputIdx = 0; outputIdx < interpreter.getOutputTensorCount(); outputIdx++) {
+        outputs.put(outputIdx, allocateBuffer(interpreter.getOutputTensor(outputIdx).numBytes()));
+      }
+
+      long bestNanos = Long.MAX_VALUE;
+      for (int run = 0; run < NUM_WARMUP_RUNS + NUM_TIMED_RUNS; run++) {
+        long startNanos = System.nanoTime();
+        interpreter.runForMultipleInputsOutputs(inputs, outputs);
+        long nanos = System.nanoTime() - startNanos;
+        if (run >= NUM_WARMUP_RUNS) {
+          bestNanos = Math.min(bestNanos, nanos);
+        }
+        for (Object input : inputs) {
+          ((ByteBuffer) input).rewind();
+        }
+        for (Object output : outputs.values()) {
+          ((ByteBuffer) output).rewind();
+        }
+      }
+      return bestNanos;
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      Log.w(TAG, "Model could not run with " + profile, e);
+      return Long.MAX_VALUE;
+    } finally {
+      if (interpreter != null) {
+        interpreter.close();
+      }
+    }
+  }
+
+  private static ByteBuffer allocateBuffer(int capacity) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+    buffer.order(ByteOrder.nativeOrder());
+    return buffer;
+  }
+}
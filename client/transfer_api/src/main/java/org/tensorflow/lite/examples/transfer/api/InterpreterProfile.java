@@ -0,0 +1,100 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Interpreter settings for a single model role.
+ *
+ * <p>Setters return the profile itself, so that a profile can be built in one expression.
+ */
+public final class InterpreterProfile {
+  /** Leaves the number of threads to the TFLite runtime. */
+  public static final int DEFAULT_THREADS = -1;
+
+  /** Lets {@link InterpreterAutotuner} pick the fastest number of threads on this device. */
+  public static final int AUTOTUNE_THREADS = 0;
+
+  private int numThreads = DEFAULT_THREADS;
+  private boolean useXnnpack = true;
+  private boolean allowFp16PrecisionForFp32 = false;
+
+  public InterpreterProfile() {}
+
+  public InterpreterProfile(InterpreterProfile other) {
+    this.numThreads = other.numThreads;
+    this.useXnnpack = other.useXnnpack;
+    this.allowFp16PrecisionForFp32 = other.allowFp16PrecisionForFp32;
+  }
+
+  /**
+   * Sets the number of interpreter threads: a positive count, {@link #DEFAULT_THREADS} or
+   * {@link #AUTOTUNE_THREADS}.
+   */
+  public InterpreterProfile setNumThreads(int numThreads) {
+    if (numThreads < DEFAULT_THREADS) {
+      throw new IllegalArgumentException(
+          String.format("Number of threads must not be below %d, got %d",
+              DEFAULT_THREADS, numThreads));
+    }
+    this.numThreads = numThreads;
+    return this;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  public InterpreterProfile setUseXnnpack(boolean useXnnpack) {
+    this.useXnnpack = useXnnpack;
+    return this;
+  }
+
+  public boolean getUseXnnpack() {
+    return useXnnpack;
+  }
+
+  /** Allows float32 operations to run in float16 precision where the hardware supports it. */
+  public InterpreterProfile setAllowFp16PrecisionForFp32(boolean allow) {
+    this.allowFp16PrecisionForFp32 = allow;
+    return this;
+  }
+
+  public boolean getAllowFp16PrecisionForFp32() {
+    return allowFp16PrecisionForFp32;
+  }
+
+  /**
+   * Builds interpreter options for this profile. A profile that still asks for autotuning runs
+   * with the default number of threads.
+   */
+  public Interpreter.Options toOptions() {
+    Interpreter.Options options = new Interpreter.Options();
+    if (numThreads > 0) {
+      options.setNumThreads(numThreads);
+    }
+    options.setUseXNNPACK(useXnnpack);
+    options.setAllowFp16PrecisionForFp32(allowFp16PrecisionForFp32);
+    return options;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "threads=%d, xnnpack=%b, fp16=%b", numThreads, useXnnpack, allowFp16PrecisionForFp32);
+  }
+}
@@ -17,47 +17,196 @@ package org.tensorflow.lite.examples.transfer.api;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import org.tensorflow.lite.Interpreter;
 
 /**
  * A wrapper for TFLite model that generates bottlenecks from images.
+ *
+ * <p>Bottlenecks are generated by a pool of interpreters, so several images can be processed in
+ * parallel.
  */
 class LiteBottleneckModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
 
-  private final LiteModelWrapper modelWrapper;
+  private final LiteModelPool<BottleneckInterpreter> pool;
+  private final int[] bottleneckShape;
+  private final int numBottleneckFeatures;
+  private final int[] imageShape;
+  private final int imageBytes;
 
   LiteBottleneckModel(LiteModelWrapper modelWrapper) {
-    this.modelWrapper = modelWrapper;
+    this(modelWrapper, 1);
   }
 
   /**
-   * Passes a single image through the bottleneck model.
+   * @param modelWrapper bottleneck model; more interpreters are created from its model data.
+   * @param poolSize maximum number of images processed in parallel.
+   */
+  LiteBottleneckModel(LiteModelWrapper modelWrapper, int poolSize) {
+    pool =
+        new LiteModelPool<>(
+            new BottleneckInterpreter(modelWrapper),
+            () -> new BottleneckInterpreter(modelWrapper.newInstance()),
+            poolSize);
+    bottleneckShape = modelWrapper.getInterpreter().getOutputTensor(0).shape().clone();
+    numBottleneckFeatures = modelWrapper.getInterpreter().getOutputTensor(0).numElements();
+    imageShape = modelWrapper.getInterpreter().getInputTensor(0).shape().clone();
+    imageBytes = modelWrapper.getInterpreter().getInputTensor(0).numBytes() / imageShape[0];
+  }
+
+  /**
+   * Passes a single image through the bottleneck model. Safe to call from several threads.
    * @param image image RGB data.
    * @param outBottleneck where to store the bottleneck. A new buffer is allocated if null.
    * @return bottleneck data. This is either [outBottleneck], or a newly allocated buffer.
    */
-  synchronized ByteBuffer generateBottleneck(ByteBuffer image, ByteBuffer outBottleneck) {
+  ByteBuffer generateBottleneck(ByteBuffer image, ByteBuffer outBottleneck) {
     if (outBottleneck == null) {
       outBottleneck = ByteBuffer.allocateDirect(getNumBottleneckFeatures() * FLOAT_BYTES);
     }
 
-    modelWrapper.getInterpreter().run(image, outBottleneck);
+    BottleneckInterpreter bottleneckInterpreter = pool.checkout();
+    try {
+      bottleneckInterpreter.resizedTo(imageShape[0]).run(image, outBottleneck);
+    } finally {
+      pool.release(bottleneckInterpreter);
+    }
     image.rewind();
     outBottleneck.rewind();
 
     return outBottleneck;
   }
 
+  /**
+   * Passes several images through the bottleneck model in a single invocation.
+   *
+   * <p>The input of the interpreter that runs the batch is resized when [numImages] differs from
+   * the previous batch it ran, and stays so until it runs another batch size. Buffers that hold
+   * exactly the batch, from position 0, are used as they are; others are passed as views. Safe to
+   * call from several threads.
+   *
+   * @param images RGB data of [numImages] consecutive images, read from the current position.
+   * @param numImages how many images to process.
+   * @param outBottlenecks where to store [numImages] consecutive bottlenecks, starting at the
+   *     current position.
+   * @throws UnsupportedOperationException if the model cannot process a batch of this size.
+   */
+  void generateBottlenecks(ByteBuffer images, int numImages, ByteBuffer outBottlenecks) {
+    int bottleneckBytes = numBottleneckFeatures * FLOAT_BYTES;
+    if (images.remaining() < numImages * imageBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d bytes of images, but got %d", numImages * imageBytes, images.remaining()));
+    }
+    if (outBottlenecks.remaining() < numImages * bottleneckBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Expected room for %d bytes of bottlenecks, but got %d",
+          numImages * bottleneckBytes, outBottlenecks.remaining()));
+    }
+
+    ByteBuffer imageBatch = leadingBytes(images, numImages * imageBytes);
+    ByteBuffer bottleneckBatch = leadingBytes(outBottlenecks, numImages * bottleneckBytes);
+
+    BottleneckInterpreter bottleneckInterpreter = pool.checkout();
+    try {
+      bottleneckInterpreter.resizedTo(numImages).run(imageBatch, bottleneckBatch);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      throw new UnsupportedOperationException(
+          String.format("Model cannot process a batch of %d images", numImages), e);
+    } finally {
+      pool.release(bottleneckInterpreter);
+      // Buffers used as they are start at position 0, where they are left.
+      imageBatch.rewind();
+      bottleneckBatch.rewind();
+    }
+  }
+
+  /** Size of a single input image, in bytes. */
+  int getImageBytes() {
+    return imageBytes;
+  }
+
   int getNumBottleneckFeatures() {
-    return modelWrapper.getInterpreter().getOutputTensor(0).numElements();
+    return numBottleneckFeatures;
   }
 
   int[] getBottleneckShape() {
-    return modelWrapper.getInterpreter().getOutputTensor(0).shape();
+    return bottleneckShape.clone();
+  }
+
+  /**
+   * Returns a view of [numBytes] bytes starting at the position of a buffer, or the buffer itself
+   * if it holds exactly these bytes.
+   */
+  private static ByteBuffer leadingBytes(ByteBuffer buffer, int numBytes) {
+    if (buffer.position() == 0 && buffer.capacity() == numBytes) {
+      return buffer;
+    }
+    ByteBuffer view = buffer.duplicate();
+    view.limit(view.position() + numBytes);
+    return view.slice().order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * Hash of the model data, which identifies the bottlenecks this model produces.
+   *
+   * @return CRC32 of the model in the lower half, model size in the upper half.
+   */
+  long getModelHash() {
+    ByteBuffer model = pool.getPrototype().modelWrapper.getModel().duplicate();
+    model.rewind();
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[64 * 1024];
+    while (model.hasRemaining()) {
+      int length = Math.min(chunk.length, model.remaining());
+      model.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return ((long) model.capacity() << 32) | crc.getValue();
+  }
+
+  /** Maximum number of interpreters, i.e. of images processed in parallel. */
+  int getPoolSize() {
+    return pool.getMaxSize();
   }
 
   @Override
   public void close() {
-    modelWrapper.close();
+    pool.close();
+  }
+
+  /** Pooled interpreter, along with the batch size its input is currently resized to. */
+  private static final class BottleneckInterpreter implements Closeable {
+    final LiteModelWrapper modelWrapper;
+
+    // Shape of the image input as currently resized, with its batch dimension first.
+    private final int[] currentShape;
+
+    BottleneckInterpreter(LiteModelWrapper modelWrapper) {
+      this.modelWrapper = modelWrapper;
+      currentShape = modelWrapper.getInterpreter().getInputTensor(0).shape().clone();
+    }
+
+    /** Returns the interpreter, with its input resized to [batchSize] images if it is not yet. */
+    Interpreter resizedTo(int batchSize) {
+      Interpreter interpreter = modelWrapper.getInterpreter();
+      if (currentShape[0] != batchSize) {
+        int previousBatchSize = currentShape[0];
+        currentShape[0] = batchSize;
+        try {
+          interpreter.resizeInput(0, currentShape);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+          currentShape[0] = previousBatchSize;
+          throw e;
+        }
+      }
+      return interpreter;
+    }
+
+    @Override
+    public void close() {
+      modelWrapper.close();
+    }
   }
 }
@@ -18,8 +18,10 @@ package org.tensorflow.lite.examples.transfer.api;
 import java.io.Closeable;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
+import org.tensorflow.lite.Interpreter;
 
 class LiteInferenceModel implements Closeable {
   private static final int FLOAT_BYTES = 4;
@@ -27,28 +29,32 @@ class LiteInferenceModel implements Closeable {
   private final LiteModelWrapper modelWrapper;
   private final int numClasses;
 
+  // Shape of the bottleneck input as loaded, with its batch dimension first.
+  private final int[] fullBottleneckShape;
+  private final int bottleneckBytes;
+
+  // Reused by every call to [runInference] with an output buffer.
+  private final Object[] boundInputs;
+  private final Map<Integer, Object> boundOutputs = new TreeMap<>();
+
+  // Batch size the bottleneck input is currently resized to.
+  private int currentBatchSize;
+
   LiteInferenceModel(LiteModelWrapper modelWrapper, int numClasses) {
     this.modelWrapper = modelWrapper;
     this.numClasses = numClasses;
+
+    Interpreter interpreter = modelWrapper.getInterpreter();
+    fullBottleneckShape = interpreter.getInputTensor(0).shape().clone();
+    bottleneckBytes = interpreter.getInputTensor(0).numBytes() / fullBottleneckShape[0];
+    boundInputs = new Object[interpreter.getInputTensorCount()];
+    currentBatchSize = fullBottleneckShape[0];
   }
 
-  float[] runInference(ByteBuffer bottleneck, ByteBuffer[] modelParameters) {
+  synchronized float[] runInference(ByteBuffer bottleneck, ByteBuffer[] modelParameters) {
     ByteBuffer predictionsBuffer = ByteBuffer.allocateDirect(numClasses * FLOAT_BYTES);
     predictionsBuffer.order(ByteOrder.nativeOrder());
-
-    Map<Integer, Object> outputs = new TreeMap<>();
-    outputs.put(0, predictionsBuffer);
-
-    Object[] inputs = new Object[modelParameters.length + 1];
-    inputs[0] = bottleneck;
-    System.arraycopy(modelParameters, 0, inputs, 1, modelParameters.length);
-
-    modelWrapper.getInterpreter().runForMultipleInputsOutputs(inputs, outputs);
-    bottleneck.rewind();
-    for (ByteBuffer buffer : modelParameters) {
-      buffer.rewind();
-    }
-    predictionsBuffer.rewind();
+    runInference(bottleneck, fullBottleneckShape[0], modelParameters, predictionsBuffer);
 
     float[] predictions = new float[numClasses];
     for (int classIdx = 0; classIdx < numClasses; classIdx++) {
@@ -58,6 +64,78 @@ class LiteInferenceModel implements Closeable {
     return predictions;
   }
 
+  /**
+   * Runs inference on several bottlenecks in one invocation, without allocating.
+   *
+   * <p>The model input is resized when [batchSize] differs from the previous call, and stays so
+   * until the next call with another batch size.
+   *
+   * @param bottlenecks [batchSize] consecutive bottlenecks, starting at position 0, with no
+   *     extra bytes after them.
+   * @param batchSize number of bottlenecks.
+   * @param modelParameters current values of the model parameters.
+   * @param outPredictions where to store [batchSize] rows of class confidences, starting at
+   *     position 0, with no extra bytes after them.
+   * @throws UnsupportedOperationException if the model cannot run on a batch of this size.
+   */
+  synchronized void runInference(
+      ByteBuffer bottlenecks,
+      int batchSize,
+      ByteBuffer[] modelParameters,
+      ByteBuffer outPredictions) {
+    if (bottlenecks.capacity() != batchSize * bottleneckBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d bytes of bottlenecks, but got %d",
+          batchSize * bottleneckBytes, bottlenecks.capacity()));
+    }
+    if (outPredictions.capacity() != batchSize * numClasses * FLOAT_BYTES) {
+      throw new IllegalArgumentException(String.format(
+          "Expected room for %d predictions, but got %d bytes",
+          batchSize * numClasses, outPredictions.capacity()));
+    }
+
+    Interpreter interpreter = modelWrapper.getInterpreter();
+    boundInputs[0] = bottlenecks;
+    System.arraycopy(modelParameters, 0, boundInputs, 1, modelParameters.length);
+    boundOutputs.put(0, outPredictions);
+    try {
+      if (batchSize != currentBatchSize) {
+        int[] batchShape = fullBottleneckShape.clone();
+        batchShape[0] = batchSize;
+        interpreter.resizeInput(0, batchShape);
+        currentBatchSize = batchSize;
+      }
+      interpreter.runForMultipleInputsOutputs(boundInputs, boundOutputs);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      interpreter.resizeInput(0, fullBottleneckShape);
+      currentBatchSize = fullBottleneckShape[0];
+      throw new UnsupportedOperationException(
+          String.format("Model cannot run inference on a batch of %d samples", batchSize), e);
+    } finally {
+      // Inputs are not kept alive by the model.
+      Arrays.fill(boundInputs, null);
+      bottlenecks.rewind();
+      for (ByteBuffer buffer : modelParameters) {
+        buffer.rewind();
+      }
+      outPredictions.rewind();
+    }
+  }
+
+  /** Creates another inference model with its own interpreter for the same model data. */
+  LiteInferenceModel newInstance() {
+    return new LiteInferenceModel(modelWrapper.newInstance(), numClasses);
+  }
+
+  int getNumClasses() {
+    return numClasses;
+  }
+
+  /** Size of a single bottleneck, in bytes. */
+  int getBottleneckBytes() {
+    return bottleneckBytes;
+  }
+
   @Override
   public void close() {
     modelWrapper.close();
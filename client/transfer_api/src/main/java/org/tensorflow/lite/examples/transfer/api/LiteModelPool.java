@@ -0,0 +1,148 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of interpreters for one model, or of objects built around such interpreters.
+ *
+ * <p>Every instance after the first one is made by a factory, which typically creates its
+ * interpreter from the model buffer and settings of the first one, so the model data is only
+ * mapped once. Instances are created on demand, up to the pool size, and a thread that checks
+ * one out has exclusive use of it until it is returned.
+ *
+ * @param <T> type of the pooled instances, closed with the pool.
+ */
+final class LiteModelPool<T extends Closeable> implements Closeable {
+  /** Creates the instances of a pool after the first one. */
+  interface Factory<T> {
+    T create();
+  }
+
+  private final T prototype;
+  private final Factory<T> factory;
+  private final int maxSize;
+  private final BlockingQueue<T> idle;
+
+  // Every instance created by the pool, guarded by [this].
+  private final List<T> created = new ArrayList<>();
+  private boolean isClosed = false;
+
+  /**
+   * @param prototype first instance of the pool.
+   * @param factory creates the other instances, e.g. from the model of [prototype].
+   * @param maxSize maximum number of instances.
+   */
+  LiteModelPool(T prototype, Factory<T> factory, int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException(
+          String.format("Pool size must be at least 1, got %d", maxSize));
+    }
+    this.prototype = prototype;
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.idle = new ArrayBlockingQueue<>(maxSize);
+    created.add(prototype);
+    idle.add(prototype);
+  }
+
+  /**
+   * Takes an instance out of the pool, creating one if all are busy and the pool is not full,
+   * or waiting for one to be returned otherwise. Must be given back with {@link #release}.
+   */
+  T checkout() {
+    T instance = idle.poll();
+    if (instance != null) {
+      return instance;
+    }
+
+    synchronized (this) {
+      if (isClosed) {
+        throw new IllegalStateException("Cannot use a closed interpreter pool");
+      }
+      if (created.size() < maxSize) {
+        instance = factory.create();
+        created.add(instance);
+        return instance;
+      }
+    }
+
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return idle.take();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Returns an instance obtained from {@link #checkout}. */
+  void release(T instance) {
+    idle.add(instance);
+  }
+
+  /** Instance that can be used to read model metadata; must not be used to run the model. */
+  T getPrototype() {
+    return prototype;
+  }
+
+  /** Maximum number of instances. */
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /** Number of instances created so far. */
+  synchronized int getCreatedCount() {
+    return created.size();
+  }
+
+  /**
+   * Closes every instance, even if some fail to close, then throws the first failure. No instance
+   * may be checked out at this point.
+   */
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    IOException firstFailure = null;
+    for (T instance : created) {
+      try {
+        instance.close();
+      } catch (IOException e) {
+        if (firstFailure == null) {
+          firstFailure = e;
+        }
+      }
+    }
+    created.clear();
+    idle.clear();
+    if (firstFailure != null) {
+      throw new RuntimeException("Could not close the pooled instances", firstFailure);
+    }
+  }
+}
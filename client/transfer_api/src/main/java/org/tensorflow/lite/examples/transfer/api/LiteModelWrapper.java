@@ -25,10 +25,14 @@ import org.tensorflow.lite.Interpreter;
  * Superclass for TFLite model wrappers that handles model resource management.
  */
 final class LiteModelWrapper implements Closeable {
+  private final ByteBuffer model;
+  private final InterpreterProfile profile;
   private final Interpreter interpreter;
 
-  private LiteModelWrapper(ByteBuffer model) {
-    interpreter = new Interpreter(model);
+  private LiteModelWrapper(ByteBuffer model, InterpreterProfile profile) {
+    this.model = model;
+    this.profile = profile;
+    interpreter = new Interpreter(model, profile.toOptions());
   }
 
   /**
@@ -36,7 +40,7 @@ final class LiteModelWrapper implements Closeable {
    * @param model raw model data, with no additional restrictions.
    */
   LiteModelWrapper(byte[] model) {
-    this(convertToDirectBuffer(model));
+    this(convertToDirectBuffer(model), new InterpreterProfile());
   }
 
   /**
@@ -44,7 +48,30 @@ final class LiteModelWrapper implements Closeable {
    * @param model raw model data, mmap-ed from a file
    */
   LiteModelWrapper(MappedByteBuffer model) {
-    this((ByteBuffer) model);
+    this(model, new InterpreterProfile());
+  }
+
+  /**
+   * Create a model wrapper and an interpreter instance with the given settings.
+   * @param model raw model data, mmap-ed from a file
+   * @param profile interpreter settings for the role of this model.
+   */
+  LiteModelWrapper(MappedByteBuffer model, InterpreterProfile profile) {
+    this((ByteBuffer) model, profile);
+  }
+
+  /** Creates another interpreter for the same model data and settings. */
+  LiteModelWrapper newInstance() {
+    return new LiteModelWrapper(model, profile);
+  }
+
+  /** Raw model data the interpreter was created from. */
+  ByteBuffer getModel() {
+    return model;
+  }
+
+  InterpreterProfile getProfile() {
+    return profile;
   }
 
   Interpreter getInterpreter() {
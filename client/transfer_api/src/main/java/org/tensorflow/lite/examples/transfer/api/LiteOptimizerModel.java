@@ -17,8 +17,11 @@ package org.tensorflow.lite.examples.transfer.api;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import org.tensorflow.lite.Interpreter;
 
 /** A wrapper for TFLite optimizer model. */
 public class LiteOptimizerModel implements Closeable {
@@ -27,6 +30,13 @@ public class LiteOptimizerModel implements Closeable {
 
   private final LiteModelWrapper modelWrapper;
 
+  // Arguments prepared by [bindStep], one entry per bound parameter set.
+  private ByteBuffer[][] boundParameterSets;
+  private ByteBuffer[] boundGradients;
+  private ByteBuffer[][] boundStateSets;
+  private Object[][] boundInputs;
+  private List<Map<Integer, Object>> boundOutputs;
+
   LiteOptimizerModel(LiteModelWrapper modelWrapper) {
     this.modelWrapper = modelWrapper;
   }
@@ -46,25 +56,66 @@ public class LiteOptimizerModel implements Closeable {
       ByteBuffer[] optimizerState,
       ByteBuffer[] newParams,
       ByteBuffer[] newOptimizerState) {
-    Object[] inputs = new Object[currentParams.length + gradients.length];
-    System.arraycopy(currentParams, 0, inputs, 0, currentParams.length);
-    System.arraycopy(gradients, 0, inputs, currentParams.length, gradients.length);
-
-    Map<Integer, Object> outputs = new TreeMap<>();
-    for (int paramIdx = 0; paramIdx < newParams.length; paramIdx++) {
-      outputs.put(paramIdx, newParams[paramIdx]);
-    }
+    Object[] inputs = stepInputs(currentParams, gradients, optimizerState);
+    Map<Integer, Object> outputs = stepOutputs(newParams, newOptimizerState);
 
     modelWrapper.getInterpreter().runForMultipleInputsOutputs(inputs, outputs);
-    for (ByteBuffer buffer : currentParams) {
-      buffer.rewind();
+    rewind(currentParams);
+    rewind(gradients);
+    rewind(optimizerState);
+    rewind(newParams);
+    rewind(newOptimizerState);
+  }
+
+  /**
+   * Binds the inputs and outputs of the optimizer step once, for every parameter buffer set.
+   *
+   * <p>A bound step started from set {@code i} writes its results into set {@code i + 1}
+   * (wrapping around), so two sets are enough to alternate between current and next values.
+   *
+   * @param parameterSets alternative sets of model trainable parameter values.
+   * @param gradients trainable parameter gradients.
+   * @param stateSets alternative sets of mutable optimizer state, one per parameter set.
+   */
+  void bindStep(ByteBuffer[][] parameterSets, ByteBuffer[] gradients, ByteBuffer[][] stateSets) {
+    if (parameterSets.length != stateSets.length) {
+      throw new IllegalArgumentException(String.format(
+          "Number of parameter sets (%d) is different from number of optimizer state sets (%d)",
+          parameterSets.length,
+          stateSets.length));
     }
-    for (ByteBuffer buffer : gradients) {
-      buffer.rewind();
+
+    boundInputs = new Object[parameterSets.length][];
+    boundOutputs = new ArrayList<>(parameterSets.length);
+    for (int setIdx = 0; setIdx < parameterSets.length; setIdx++) {
+      int nextSetIdx = (setIdx + 1) % parameterSets.length;
+      boundInputs[setIdx] = stepInputs(parameterSets[setIdx], gradients, stateSets[setIdx]);
+      boundOutputs.add(stepOutputs(parameterSets[nextSetIdx], stateSets[nextSetIdx]));
     }
-    for (ByteBuffer buffer : newParams) {
-      buffer.rewind();
+
+    boundParameterSets = parameterSets;
+    boundGradients = gradients;
+    boundStateSets = stateSets;
+  }
+
+  /**
+   * Performs a single optimizer step over the buffers bound by [bindStep].
+   *
+   * @param parameterSetIdx which of the bound sets holds the current parameters and state.
+   */
+  void performStep(int parameterSetIdx) {
+    if (boundInputs == null) {
+      throw new IllegalStateException("bindStep() must be called before running a bound step");
     }
+
+    int nextSetIdx = (parameterSetIdx + 1) % boundParameterSets.length;
+    modelWrapper.getInterpreter().runForMultipleInputsOutputs(
+        boundInputs[parameterSetIdx], boundOutputs.get(parameterSetIdx));
+    rewind(boundParameterSets[parameterSetIdx]);
+    rewind(boundGradients);
+    rewind(boundStateSets[parameterSetIdx]);
+    rewind(boundParameterSets[nextSetIdx]);
+    rewind(boundStateSets[nextSetIdx]);
   }
 
   /**
@@ -93,6 +144,54 @@ public class LiteOptimizerModel implements Closeable {
     return result;
   }
 
+  /**
+   * Reads the shapes of the mutable optimizer state elements.
+   *
+   * @return shapes of optimizer state elements, in the order of {@link #stateElementSizes()}.
+   */
+  int[][] stateElementShapes() {
+    Interpreter interpreter = modelWrapper.getInterpreter();
+    int numVariables = interpreter.getInputTensorCount() - interpreter.getOutputTensorCount();
+
+    int numInputs = interpreter.getInputTensorCount();
+    int[][] result = new int[numInputs - numVariables * 2][];
+    for (int inputIdx = numVariables * 2; inputIdx < numInputs; inputIdx++) {
+      result[inputIdx - numVariables * 2] = interpreter.getInputTensor(inputIdx).shape().clone();
+    }
+
+    return result;
+  }
+
+  private static Object[] stepInputs(
+      ByteBuffer[] currentParams, ByteBuffer[] gradients, ByteBuffer[] optimizerState) {
+    Object[] inputs = new Object[currentParams.length + gradients.length + optimizerState.length];
+    System.arraycopy(currentParams, 0, inputs, 0, currentParams.length);
+    System.arraycopy(gradients, 0, inputs, currentParams.length, gradients.length);
+    System.arraycopy(
+        optimizerState, 0,
+        inputs, currentParams.length + gradients.length,
+        optimizerState.length);
+    return inputs;
+  }
+
+  private static Map<Integer, Object> stepOutputs(
+      ByteBuffer[] newParams, ByteBuffer[] newOptimizerState) {
+    Map<Integer, Object> outputs = new TreeMap<>();
+    for (int paramIdx = 0; paramIdx < newParams.length; paramIdx++) {
+      outputs.put(paramIdx, newParams[paramIdx]);
+    }
+    for (int elemIdx = 0; elemIdx < newOptimizerState.length; elemIdx++) {
+      outputs.put(newParams.length + elemIdx, newOptimizerState[elemIdx]);
+    }
+    return outputs;
+  }
+
+  private static void rewind(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      buffer.rewind();
+    }
+  }
+
   @Override
   public void close() {
     modelWrapper.close();
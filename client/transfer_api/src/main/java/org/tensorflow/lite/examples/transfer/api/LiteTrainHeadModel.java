@@ -31,6 +31,19 @@ class LiteTrainHeadModel implements Closeable {
 
   private LiteModelWrapper modelWrapper;
 
+  // Buffers and arguments prepared by [bindStep], reused by every bound training step.
+  // Inputs are indexed by [batch slot][parameter set].
+  private ByteBuffer[] boundBottleneckBatches;
+  private ByteBuffer[] boundClassBatches;
+  private ByteBuffer[][] boundParameterSets;
+  private ByteBuffer[] boundGradients;
+  private ByteBuffer boundLossBuffer;
+  private Object[][][] boundInputs;
+  private Map<Integer, Object> boundOutputs;
+
+  // Runs the bound step over smaller batches.
+  private PartialBatchRunner partialBatches;
+
   LiteTrainHeadModel(LiteModelWrapper modelWrapper) {
     this.modelWrapper = modelWrapper;
   }
@@ -49,18 +62,7 @@ class LiteTrainHeadModel implements Closeable {
       ByteBuffer classBatch,
       ByteBuffer[] modelParameters,
       ByteBuffer[] modelGradients) {
-    if (modelParameters.length != modelGradients.length) {
-      throw new IllegalArgumentException(String.format(
-          "Parameter array size (%d) is different from gradient array size (%d)",
-          modelParameters.length,
-          modelGradients.length));
-    }
-    if (modelWrapper.getInterpreter().getOutputTensorCount() != modelParameters.length + 1) {
-      throw new IllegalArgumentException(String.format(
-          "Model expected %d parameter tensors, but got %d",
-          modelWrapper.getInterpreter().getInputTensorCount() - 1,
-          modelParameters.length));
-    }
+    checkParameterCount(modelParameters, modelGradients);
 
     ByteBuffer lossBuffer = ByteBuffer.allocateDirect(FLOAT_BYTES);
     lossBuffer.order(ByteOrder.nativeOrder());
@@ -94,6 +96,120 @@ class LiteTrainHeadModel implements Closeable {
     return lossBuffer.getFloat();
   }
 
+  /**
+   * Binds the inputs and outputs of the training pass once, for every combination of batch
+   * slot and parameter buffer set.
+   *
+   * <p>After binding, {@link #calculateGradients(int, int)} runs a training pass without
+   * allocating anything. The bound buffers must stay the same for as long as bound steps are used.
+   *
+   * @param bottleneckBatches alternative slots where image bottlenecks will be read from.
+   * @param classBatches where ground truth labels will be read from, one per bottleneck slot.
+   * @param parameterSets alternative sets of model trainable parameter values.
+   * @param modelGradients where to store model trainable parameter gradients.
+   */
+  void bindStep(
+      ByteBuffer[] bottleneckBatches,
+      ByteBuffer[] classBatches,
+      ByteBuffer[][] parameterSets,
+      ByteBuffer[] modelGradients) {
+    if (bottleneckBatches.length != classBatches.length) {
+      throw new IllegalArgumentException(String.format(
+          "Number of bottleneck batch slots (%d) is different from number of class batch slots (%d)",
+          bottleneckBatches.length,
+          classBatches.length));
+    }
+    for (ByteBuffer[] modelParameters : parameterSets) {
+      checkParameterCount(modelParameters, modelGradients);
+    }
+
+    boundLossBuffer = ByteBuffer.allocateDirect(FLOAT_BYTES);
+    boundLossBuffer.order(ByteOrder.nativeOrder());
+
+    boundOutputs = new TreeMap<>();
+    boundOutputs.put(0, boundLossBuffer);
+    for (int outputIndex = 1;
+        outputIndex < modelWrapper.getInterpreter().getOutputTensorCount();
+        outputIndex++) {
+      boundOutputs.put(outputIndex, modelGradients[outputIndex - 1]);
+    }
+
+    boundInputs = new Object[bottleneckBatches.length][parameterSets.length][];
+    for (int slotIdx = 0; slotIdx < bottleneckBatches.length; slotIdx++) {
+      for (int setIdx = 0; setIdx < parameterSets.length; setIdx++) {
+        ByteBuffer[] modelParameters = parameterSets[setIdx];
+        Object[] inputs = new Object[modelParameters.length + 2];
+        inputs[0] = bottleneckBatches[slotIdx];
+        inputs[1] = classBatches[slotIdx];
+        System.arraycopy(modelParameters, 0, inputs, 2, modelParameters.length);
+        boundInputs[slotIdx][setIdx] = inputs;
+      }
+    }
+
+    boundBottleneckBatches = bottleneckBatches;
+    boundClassBatches = classBatches;
+    boundParameterSets = parameterSets;
+    boundGradients = modelGradients;
+
+    partialBatches = new PartialBatchRunner(
+        modelWrapper.getInterpreter(), bottleneckBatches, classBatches, boundInputs);
+  }
+
+  /**
+   * Performs single training pass (forward + backward) over the buffers bound by [bindStep].
+   *
+   * @param batchSlot which of the bound batch slots holds the batch.
+   * @param parameterSetIdx which of the bound parameter sets holds the current values.
+   * @return loss
+   */
+  float calculateGradients(int batchSlot, int parameterSetIdx) {
+    if (boundInputs == null) {
+      throw new IllegalStateException("bindStep() must be called before running a bound step");
+    }
+
+    modelWrapper.getInterpreter().runForMultipleInputsOutputs(
+        boundInputs[batchSlot][parameterSetIdx], boundOutputs);
+    return finishBoundStep(batchSlot, parameterSetIdx);
+  }
+
+  /**
+   * Performs single training pass over the first [batchSize] samples of a bound batch slot.
+   *
+   * <p>When [batchSize] is smaller than the model batch size, the model inputs are resized for
+   * the duration of the call, so no sample has to be repeated to fill the batch up.
+   *
+   * @param batchSlot which of the bound batch slots holds the batch.
+   * @param parameterSetIdx which of the bound parameter sets holds the current values.
+   * @param batchSize number of samples in the batch.
+   * @return loss
+   * @throws UnsupportedOperationException if the model cannot run on a smaller batch.
+   */
+  float calculateGradients(int batchSlot, int parameterSetIdx, int batchSize) {
+    if (boundInputs == null) {
+      throw new IllegalStateException("bindStep() must be called before running a bound step");
+    }
+    if (batchSize == partialBatches.getFullBatchSize()) {
+      return calculateGradients(batchSlot, parameterSetIdx);
+    }
+    partialBatches.run(
+        modelWrapper.getInterpreter(), batchSlot, parameterSetIdx, batchSize, boundOutputs);
+    return finishBoundStep(batchSlot, parameterSetIdx);
+  }
+
+  private float finishBoundStep(int batchSlot, int parameterSetIdx) {
+    boundBottleneckBatches[batchSlot].rewind();
+    boundClassBatches[batchSlot].rewind();
+
+    for (ByteBuffer buffer : boundParameterSets[parameterSetIdx]) {
+      buffer.rewind();
+    }
+    for (ByteBuffer buffer : boundGradients) {
+      buffer.rewind();
+    }
+
+    return boundLossBuffer.getFloat(0);
+  }
+
   int getBatchSize() {
     return modelWrapper.getInterpreter().getInputTensor(0).shape()[0];
   }
@@ -126,6 +242,21 @@ class LiteTrainHeadModel implements Closeable {
     return parameterShapes;
   }
 
+  private void checkParameterCount(ByteBuffer[] modelParameters, ByteBuffer[] modelGradients) {
+    if (modelParameters.length != modelGradients.length) {
+      throw new IllegalArgumentException(String.format(
+          "Parameter array size (%d) is different from gradient array size (%d)",
+          modelParameters.length,
+          modelGradients.length));
+    }
+    if (modelWrapper.getInterpreter().getOutputTensorCount() != modelParameters.length + 1) {
+      throw new IllegalArgumentException(String.format(
+          "Model expected %d parameter tensors, but got %d",
+          modelWrapper.getInterpreter().getInputTensorCount() - 1,
+          modelParameters.length));
+    }
+  }
+
   @Override
   public void close() {
     modelWrapper.close();
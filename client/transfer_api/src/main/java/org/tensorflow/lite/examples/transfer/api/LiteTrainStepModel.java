@@ -0,0 +1,202 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * A wrapper for TFLite model that performs a whole training step (forward, backward and
+ * optimizer update) in a single invocation.
+ *
+ * <p>The model signature is:
+ * bottlenecks, classes, *variables, *optim_state -> loss, *new_variables, *new_optim_state
+ *
+ * <p>Gradients stay inside the interpreter, so they are never copied out and back in.
+ */
+class LiteTrainStepModel implements Closeable {
+  private static final int FLOAT_BYTES = 4;
+
+  private final LiteModelWrapper modelWrapper;
+  private final int numParameters;
+
+  // Buffers and arguments prepared by [bindStep], reused by every step.
+  // Inputs are indexed by [batch slot][parameter set], outputs by [parameter set].
+  private ByteBuffer[] boundBottleneckBatches;
+  private ByteBuffer[] boundClassBatches;
+  private ByteBuffer[][] boundParameterSets;
+  private ByteBuffer[][] boundStateSets;
+  private ByteBuffer boundLossBuffer;
+  private Object[][][] boundInputs;
+  private List<Map<Integer, Object>> boundOutputs;
+
+  // Runs the bound step over smaller batches.
+  private PartialBatchRunner partialBatches;
+
+  /**
+   * @param modelWrapper fused training step model.
+   * @param numParameters number of trainable parameter tensors, which the model signature alone
+   *     does not tell apart from optimizer state elements.
+   */
+  LiteTrainStepModel(LiteModelWrapper modelWrapper, int numParameters) {
+    this.modelWrapper = modelWrapper;
+    this.numParameters = numParameters;
+  }
+
+  /**
+   * Binds the inputs and outputs of the training step once, for every combination of batch
+   * slot and parameter buffer set.
+   *
+   * <p>A step started from set {@code i} writes the new parameters and optimizer state into
+   * set {@code i + 1} (wrapping around), like {@link LiteOptimizerModel#bindStep}.
+   *
+   * @param bottleneckBatches alternative slots where image bottlenecks will be read from.
+   * @param classBatches where ground truth labels will be read from, one per bottleneck slot.
+   * @param parameterSets alternative sets of model trainable parameter values.
+   * @param stateSets alternative sets of mutable optimizer state, one per parameter set.
+   */
+  void bindStep(
+      ByteBuffer[] bottleneckBatches,
+      ByteBuffer[] classBatches,
+      ByteBuffer[][] parameterSets,
+      ByteBuffer[][] stateSets) {
+    if (bottleneckBatches.length != classBatches.length) {
+      throw new IllegalArgumentException(String.format(
+          "Number of bottleneck batch slots (%d) is different from number of class batch slots (%d)",
+          bottleneckBatches.length,
+          classBatches.length));
+    }
+    if (parameterSets.length != stateSets.length) {
+      throw new IllegalArgumentException(String.format(
+          "Number of parameter sets (%d) is different from number of optimizer state sets (%d)",
+          parameterSets.length,
+          stateSets.length));
+    }
+    for (int setIdx = 0; setIdx < parameterSets.length; setIdx++) {
+      checkSignature(parameterSets[setIdx], stateSets[setIdx]);
+    }
+
+    boundLossBuffer = ByteBuffer.allocateDirect(FLOAT_BYTES);
+    boundLossBuffer.order(ByteOrder.nativeOrder());
+
+    boundOutputs = new ArrayList<>(parameterSets.length);
+    for (int setIdx = 0; setIdx < parameterSets.length; setIdx++) {
+      int nextSetIdx = (setIdx + 1) % parameterSets.length;
+      Map<Integer, Object> outputs = new TreeMap<>();
+      outputs.put(0, boundLossBuffer);
+      for (int paramIdx = 0; paramIdx < numParameters; paramIdx++) {
+        outputs.put(1 + paramIdx, parameterSets[nextSetIdx][paramIdx]);
+      }
+      for (int elemIdx = 0; elemIdx < stateSets[nextSetIdx].length; elemIdx++) {
+        outputs.put(1 + numParameters + elemIdx, stateSets[nextSetIdx][elemIdx]);
+      }
+      boundOutputs.add(outputs);
+    }
+
+    boundInputs = new Object[bottleneckBatches.length][parameterSets.length][];
+    for (int slotIdx = 0; slotIdx < bottleneckBatches.length; slotIdx++) {
+      for (int setIdx = 0; setIdx < parameterSets.length; setIdx++) {
+        Object[] inputs = new Object[2 + numParameters + stateSets[setIdx].length];
+        inputs[0] = bottleneckBatches[slotIdx];
+        inputs[1] = classBatches[slotIdx];
+        System.arraycopy(parameterSets[setIdx], 0, inputs, 2, numParameters);
+        System.arraycopy(
+            stateSets[setIdx], 0, inputs, 2 + numParameters, stateSets[setIdx].length);
+        boundInputs[slotIdx][setIdx] = inputs;
+      }
+    }
+
+    boundBottleneckBatches = bottleneckBatches;
+    boundClassBatches = classBatches;
+    boundParameterSets = parameterSets;
+    boundStateSets = stateSets;
+
+    partialBatches = new PartialBatchRunner(
+        modelWrapper.getInterpreter(), bottleneckBatches, classBatches, boundInputs);
+  }
+
+  /**
+   * Performs a whole training step over the first [batchSize] samples of a bound batch slot.
+   *
+   * @param batchSlot which of the bound batch slots holds the batch.
+   * @param parameterSetIdx which of the bound sets holds the current parameters and state.
+   * @param batchSize number of samples in the batch.
+   * @return loss
+   * @throws UnsupportedOperationException if the model cannot run on a smaller batch.
+   */
+  float performStep(int batchSlot, int parameterSetIdx, int batchSize) {
+    if (boundInputs == null) {
+      throw new IllegalStateException("bindStep() must be called before running a bound step");
+    }
+
+    Interpreter interpreter = modelWrapper.getInterpreter();
+    if (batchSize == partialBatches.getFullBatchSize()) {
+      interpreter.runForMultipleInputsOutputs(
+          boundInputs[batchSlot][parameterSetIdx], boundOutputs.get(parameterSetIdx));
+    } else {
+      partialBatches.run(
+          interpreter, batchSlot, parameterSetIdx, batchSize, boundOutputs.get(parameterSetIdx));
+    }
+
+    int nextSetIdx = (parameterSetIdx + 1) % boundParameterSets.length;
+    boundBottleneckBatches[batchSlot].rewind();
+    boundClassBatches[batchSlot].rewind();
+    rewind(boundParameterSets[parameterSetIdx]);
+    rewind(boundStateSets[parameterSetIdx]);
+    rewind(boundParameterSets[nextSetIdx]);
+    rewind(boundStateSets[nextSetIdx]);
+
+    return boundLossBuffer.getFloat(0);
+  }
+
+  private void checkSignature(ByteBuffer[] modelParameters, ByteBuffer[] optimizerState) {
+    Interpreter interpreter = modelWrapper.getInterpreter();
+    if (modelParameters.length != numParameters) {
+      throw new IllegalArgumentException(String.format(
+          "Model expected %d parameter tensors, but got %d",
+          numParameters,
+          modelParameters.length));
+    }
+    int numStateElements = optimizerState.length;
+    if (interpreter.getInputTensorCount() != 2 + numParameters + numStateElements
+        || interpreter.getOutputTensorCount() != 1 + numParameters + numStateElements) {
+      throw new IllegalArgumentException(String.format(
+          "Training step model has %d inputs and %d outputs, "
+              + "which does not match %d parameters and %d optimizer state elements",
+          interpreter.getInputTensorCount(),
+          interpreter.getOutputTensorCount(),
+          numParameters,
+          numStateElements));
+    }
+  }
+
+  private static void rewind(ByteBuffer[] buffers) {
+    for (ByteBuffer buffer : buffers) {
+      buffer.rewind();
+    }
+  }
+
+  @Override
+  public void close() {
+    modelWrapper.close();
+  }
+}
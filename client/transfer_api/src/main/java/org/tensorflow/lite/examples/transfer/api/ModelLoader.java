@@ -29,5 +29,20 @@ public interface ModelLoader {
 
   LiteModelWrapper loadOptimizerModel() throws IOException;
 
+  /**
+   * Loads the optional fused training step model, which replaces the training and optimizer
+   * models for full training steps.
+   *
+   * @return the model, or null if there is none.
+   */
+  default LiteModelWrapper loadTrainStepModel() throws IOException {
+    return null;
+  }
+
+  /** Interpreter settings used to load the model of the given role. */
+  default InterpreterProfile getInterpreterProfile(ModelRole role) {
+    return new InterpreterProfile();
+  }
+
   LiteModelWrapper loadRecommendationModel() throws IOException;
 }
@@ -0,0 +1,83 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Direct buffers, owned by the model, that receive incoming parameter values.
+ *
+ * <p>There is one buffer per trainable parameter, sized after the training model. Callers fill
+ * every buffer from wherever the values arrive, e.g. straight from a received message, and hand
+ * the result of {@link #bind()} to {@link TransferLearningModel#updateParameters}. The buffers are
+ * reused by every update, so no garbage is left behind per round; their values stay valid until
+ * the next {@link #target} call.
+ */
+public final class ParameterBinder {
+  private static final int FLOAT_BYTES = 4;
+
+  private final ByteBuffer[] buffers;
+
+  /** @param parameterSizes number of values of every parameter, in model order. */
+  ParameterBinder(int[] parameterSizes) {
+    buffers = new ByteBuffer[parameterSizes.length];
+    for (int paramIdx = 0; paramIdx < parameterSizes.length; paramIdx++) {
+      buffers[paramIdx] = ByteBuffer.allocateDirect(parameterSizes[paramIdx] * FLOAT_BYTES);
+      buffers[paramIdx].order(ByteOrder.nativeOrder());
+    }
+  }
+
+  public int getNumParameters() {
+    return buffers.length;
+  }
+
+  /** Size of parameter [paramIdx], in bytes of raw float32 values. */
+  public int getParameterBytes(int paramIdx) {
+    return buffers[paramIdx].capacity();
+  }
+
+  /**
+   * Returns the buffer of parameter [paramIdx], cleared for writing, in native byte order. It
+   * must be filled up exactly, with raw float32 values.
+   */
+  public ByteBuffer target(int paramIdx) {
+    ByteBuffer buffer = buffers[paramIdx];
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Checks that every buffer was filled up, and returns them rewound, ready for
+   * {@link TransferLearningModel#updateParameters}.
+   */
+  public ByteBuffer[] bind() {
+    for (int paramIdx = 0; paramIdx < buffers.length; paramIdx++) {
+      if (buffers[paramIdx].hasRemaining()) {
+        throw new IllegalStateException(String.format(
+            "Parameter %d got %d bytes, but expected %d",
+            paramIdx, buffers[paramIdx].position(), buffers[paramIdx].capacity()));
+      }
+    }
+    ByteBuffer[] views = new ByteBuffer[buffers.length];
+    for (int paramIdx = 0; paramIdx < buffers.length; paramIdx++) {
+      views[paramIdx] = buffers[paramIdx].duplicate();
+      views[paramIdx].order(ByteOrder.nativeOrder());
+      views[paramIdx].rewind();
+    }
+    return views;
+  }
+}
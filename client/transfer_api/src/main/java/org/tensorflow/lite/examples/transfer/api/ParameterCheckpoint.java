@@ -0,0 +1,311 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint file holding the model parameters together with the optimizer state.
+ *
+ * <p>The file starts with a header giving the parameter version and the number of tensors of
+ * each kind, followed by caller-defined progress values, e.g. where training stopped, by a
+ * table with the type, shape, size and CRC32 of every tensor, and by a CRC32 of everything
+ * before it. Tensor data follows, parameters first, in the byte order
+ * the header was written in.
+ *
+ * <p>Files are written to a temporary file which is then renamed over the target, so a crash
+ * never leaves a partial checkpoint behind. They are read through a memory mapping, and copied
+ * straight into the target buffers.
+ */
+final class ParameterCheckpoint {
+  private static final int MAGIC = 0x544c4331; // "TLC1"
+  private static final int VERSION = 2;
+  private static final int DTYPE_FLOAT32 = 1;
+  private static final int FLOAT_BYTES = 4;
+
+  // magic, version, parameter version, parameter count, optimizer state count, progress value
+  // count, padding.
+  private static final int HEADER_BYTES = 32;
+  private static final int PARAMETER_VERSION_OFFSET = 8;
+  private static final int NUM_PARAMETERS_OFFSET = 16;
+  private static final int NUM_STATE_ELEMENTS_OFFSET = 20;
+  private static final int NUM_PROGRESS_OFFSET = 24;
+  private static final int PROGRESS_VALUE_BYTES = 8;
+
+  // dtype, rank, byte count, CRC32, followed by the dimensions.
+  private static final int ENTRY_BYTES = 24;
+
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final int CRC_CHUNK_BYTES = 64 * 1024;
+
+  private ParameterCheckpoint() {}
+
+  /**
+   * Writes a checkpoint, replacing the file atomically.
+   *
+   * @param path where to write the checkpoint.
+   * @param parameterVersion version of the parameter values, stored in the header.
+   * @param parameters parameter tensors, read from position 0 to their capacity.
+   * @param parameterShapes shape of every parameter tensor.
+   * @param optimizerState optimizer state elements, read from position 0 to their capacity.
+   * @param stateShapes shape of every optimizer state element.
+   * @param progress values stored along with the tensors, possibly empty.
+   * @throws IOException if the file cannot be written.
+   */
+  static void write(
+      File path,
+      long parameterVersion,
+      ByteBuffer[] parameters,
+      int[][] parameterShapes,
+      ByteBuffer[] optimizerState,
+      int[][] stateShapes,
+      long[] progress)
+      throws IOException {
+    ByteBuffer[] tensors = concat(parameters, optimizerState);
+    int[][] shapes = concat(parameterShapes, stateShapes);
+    checkShapes(tensors, shapes);
+
+    ByteBuffer header =
+        ByteBuffer.allocate(tableBytes(shapes, progress.length)).order(ByteOrder.nativeOrder());
+    header.putInt(MAGIC);
+    header.putInt(VERSION);
+    header.putLong(parameterVersion);
+    header.putInt(parameters.length);
+    header.putInt(optimizerState.length);
+    header.putInt(progress.length);
+    header.position(HEADER_BYTES);
+    for (long value : progress) {
+      header.putLong(value);
+    }
+    for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+      header.putInt(DTYPE_FLOAT32);
+      header.putInt(shapes[tensorIdx].length);
+      header.putLong(tensors[tensorIdx].capacity());
+      header.putLong(crc(tensors[tensorIdx]));
+      for (int dim : shapes[tensorIdx]) {
+        header.putInt(dim);
+      }
+    }
+    header.putLong(crc(header, header.position()));
+    header.flip();
+
+    File tempPath = new File(path.getPath() + TEMP_SUFFIX);
+    try (RandomAccessFile file = new RandomAccessFile(tempPath, "rw")) {
+      FileChannel channel = file.getChannel();
+      channel.truncate(0);
+      ByteBuffer[] views = new ByteBuffer[tensors.length + 1];
+      views[0] = header;
+      for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+        views[tensorIdx + 1] = wholeView(tensors[tensorIdx]);
+      }
+      long totalBytes = 0;
+      for (ByteBuffer view : views) {
+        totalBytes += view.remaining();
+      }
+      long written = 0;
+      while (written < totalBytes) {
+        written += channel.write(views);
+      }
+      channel.force(true);
+    }
+    if (!tempPath.renameTo(path)) {
+      tempPath.delete();
+      throw new IOException(String.format("Could not rename %s to %s", tempPath, path));
+    }
+  }
+
+  /**
+   * Reads a checkpoint into the given buffers, after checking that its tensors match them.
+   *
+   * <p>The buffers may be partially overwritten if the file turns out to be corrupted.
+   *
+   * @param path checkpoint written by {@link #write}.
+   * @param parameters where to copy the parameter tensors.
+   * @param parameterShapes expected shape of every parameter tensor.
+   * @param optimizerState where to copy the optimizer state elements.
+   * @param stateShapes expected shape of every optimizer state element.
+   * @param outProgress where to copy the progress values; the file must hold as many.
+   * @return version of the parameter values, as stored in the header.
+   * @throws IOException if the file cannot be read, is corrupted, or does not match the buffers.
+   */
+  static long read(
+      File path,
+      ByteBuffer[] parameters,
+      int[][] parameterShapes,
+      ByteBuffer[] optimizerState,
+      int[][] stateShapes,
+      long[] outProgress)
+      throws IOException {
+    ByteBuffer[] tensors = concat(parameters, optimizerState);
+    int[][] shapes = concat(parameterShapes, stateShapes);
+    checkShapes(tensors, shapes);
+
+    try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+      FileChannel channel = file.getChannel();
+      if (channel.size() < HEADER_BYTES) {
+        throw new IOException(String.format(
+            "Checkpoint %s has %d bytes, too few for its header", path, channel.size()));
+      }
+      MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      mapped.order(ByteOrder.nativeOrder());
+
+      if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+        throw new IOException(String.format("%s is not a version %d checkpoint", path, VERSION));
+      }
+      if (mapped.getInt(NUM_PARAMETERS_OFFSET) != parameters.length
+          || mapped.getInt(NUM_STATE_ELEMENTS_OFFSET) != optimizerState.length) {
+        throw new IOException(String.format(
+            "Checkpoint has %d parameters and %d optimizer state elements, expected %d and %d",
+            mapped.getInt(NUM_PARAMETERS_OFFSET), mapped.getInt(NUM_STATE_ELEMENTS_OFFSET),
+            parameters.length, optimizerState.length));
+      }
+      if (mapped.getInt(NUM_PROGRESS_OFFSET) != outProgress.length) {
+        throw new IOException(String.format(
+            "Checkpoint has %d progress values, expected %d",
+            mapped.getInt(NUM_PROGRESS_OFFSET), outProgress.length));
+      }
+      int tableBytes = tableBytes(shapes, outProgress.length);
+      if (channel.size() < tableBytes) {
+        throw new IOException(String.format(
+            "Checkpoint %s has %d bytes, too few for its tensor table", path, channel.size()));
+      }
+
+      int entryOffset = HEADER_BYTES + outProgress.length * PROGRESS_VALUE_BYTES;
+      long[] checksums = new long[tensors.length];
+      for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+        int rank = mapped.getInt(entryOffset + 4);
+        if (rank < 0 || entryOffset + ENTRY_BYTES + rank * 4L > tableBytes) {
+          throw new IOException(String.format("Checkpoint tensor %d has rank %d", tensorIdx, rank));
+        }
+        int[] shape = new int[rank];
+        for (int dimIdx = 0; dimIdx < rank; dimIdx++) {
+          shape[dimIdx] = mapped.getInt(entryOffset + ENTRY_BYTES + dimIdx * 4);
+        }
+        if (mapped.getInt(entryOffset) != DTYPE_FLOAT32
+            || !Arrays.equals(shape, shapes[tensorIdx])
+            || mapped.getLong(entryOffset + 8) != tensors[tensorIdx].capacity()) {
+          throw new IOException(String.format(
+              "Checkpoint tensor %d has shape %s, expected %s",
+              tensorIdx, Arrays.toString(shape), Arrays.toString(shapes[tensorIdx])));
+        }
+        checksums[tensorIdx] = mapped.getLong(entryOffset + 16);
+        entryOffset += ENTRY_BYTES + rank * 4;
+      }
+      if (crc(mapped, tableBytes - 8) != mapped.getLong(tableBytes - 8)) {
+        throw new IOException("Checkpoint header is corrupted");
+      }
+      for (int valueIdx = 0; valueIdx < outProgress.length; valueIdx++) {
+        outProgress[valueIdx] = mapped.getLong(HEADER_BYTES + valueIdx * PROGRESS_VALUE_BYTES);
+      }
+
+      long dataBytes = 0;
+      for (ByteBuffer tensor : tensors) {
+        dataBytes += tensor.capacity();
+      }
+      if (tableBytes + dataBytes != channel.size()) {
+        throw new IOException(String.format(
+            "Checkpoint has %d bytes, expected %d", channel.size(), tableBytes + dataBytes));
+      }
+
+      int dataOffset = tableBytes;
+      for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+        ByteBuffer data = mapped.duplicate();
+        data.limit(dataOffset + tensors[tensorIdx].capacity()).position(dataOffset);
+        data = data.slice();
+        if (crc(data) != checksums[tensorIdx]) {
+          throw new IOException(String.format("Checkpoint tensor %d is corrupted", tensorIdx));
+        }
+        wholeView(tensors[tensorIdx]).put(data);
+        dataOffset += tensors[tensorIdx].capacity();
+      }
+      return mapped.getLong(PARAMETER_VERSION_OFFSET);
+    }
+  }
+
+  // Size of the header, the progress values, the tensor table and their CRC.
+  private static int tableBytes(int[][] shapes, int numProgressValues) {
+    int bytes = HEADER_BYTES + numProgressValues * PROGRESS_VALUE_BYTES;
+    for (int[] shape : shapes) {
+      bytes += ENTRY_BYTES + shape.length * 4;
+    }
+    return bytes + 8;
+  }
+
+  private static void checkShapes(ByteBuffer[] tensors, int[][] shapes) {
+    if (tensors.length != shapes.length) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d tensors, but %d shapes", tensors.length, shapes.length));
+    }
+    for (int tensorIdx = 0; tensorIdx < tensors.length; tensorIdx++) {
+      int numElements = 1;
+      for (int dim : shapes[tensorIdx]) {
+        numElements *= dim;
+      }
+      if (tensors[tensorIdx].capacity() != numElements * FLOAT_BYTES) {
+        throw new IllegalArgumentException(String.format(
+            "Tensor %d has %d bytes, but its shape %s needs %d",
+            tensorIdx, tensors[tensorIdx].capacity(), Arrays.toString(shapes[tensorIdx]),
+            numElements * FLOAT_BYTES));
+      }
+    }
+  }
+
+  // CRC32 of a whole buffer, regardless of its position.
+  private static long crc(ByteBuffer buffer) {
+    return crc(buffer, buffer.capacity());
+  }
+
+  // CRC32 of the first [numBytes] bytes of a buffer.
+  private static long crc(ByteBuffer buffer, int numBytes) {
+    ByteBuffer data = buffer.duplicate();
+    data.clear().limit(numBytes);
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[Math.min(CRC_CHUNK_BYTES, numBytes)];
+    while (data.hasRemaining()) {
+      int length = Math.min(chunk.length, data.remaining());
+      data.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return crc.getValue();
+  }
+
+  private static ByteBuffer wholeView(ByteBuffer buffer) {
+    ByteBuffer view = buffer.duplicate();
+    view.clear();
+    return view;
+  }
+
+  private static ByteBuffer[] concat(ByteBuffer[] first, ByteBuffer[] second) {
+    ByteBuffer[] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+
+  private static int[][] concat(int[][] first, int[][] second) {
+    int[][] result = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, result, first.length, second.length);
+    return result;
+  }
+}
@@ -0,0 +1,144 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring of parameter sets, one of which holds the current parameter values.
+ *
+ * <p>Readers pin the current set for as long as they read it, without taking a lock. The writer
+ * computes new values into the next set of the ring, waiting until no reader has it pinned, and
+ * publishes them with an atomic reference swap, so a pinned set never changes. There must be a
+ * single writer at a time.
+ *
+ * <p>Every set has a matching optimizer state, which moves along with it.
+ */
+final class ParameterSets {
+  /** Immutable description of a published set. */
+  static final class Version {
+    final long number;
+    final int setIdx;
+
+    Version(long number, int setIdx) {
+      this.number = number;
+      this.setIdx = setIdx;
+    }
+  }
+
+  private final ByteBuffer[][] parameterSets;
+  private final ByteBuffer[][] optimizerStateSets;
+
+  private final AtomicIntegerArray pins;
+  private final AtomicReference<Version> current;
+
+  // Writer waiting for a set to be unpinned, if any.
+  private volatile Thread waitingWriter;
+
+  /**
+   * @param parameterSets parameter buffers of every set; set 0 holds the initial values.
+   * @param optimizerStateSets optimizer state buffers of every set.
+   */
+  ParameterSets(ByteBuffer[][] parameterSets, ByteBuffer[][] optimizerStateSets) {
+    if (parameterSets.length != optimizerStateSets.length || parameterSets.length < 2) {
+      throw new IllegalArgumentException(String.format(
+          "Need at least 2 sets, with as many optimizer states, got %d and %d",
+          parameterSets.length, optimizerStateSets.length));
+    }
+    this.parameterSets = parameterSets;
+    this.optimizerStateSets = optimizerStateSets;
+    this.pins = new AtomicIntegerArray(parameterSets.length);
+    this.current = new AtomicReference<>(new Version(0, 0));
+  }
+
+  /** Pins the current set; it will not change until {@link #unpin} is called. */
+  Version pin() {
+    while (true) {
+      Version version = current.get();
+      pins.incrementAndGet(version.setIdx);
+      // Checked again after pinning: if the set stopped being current in between, the writer may
+      // have seen it unpinned and started overwriting it.
+      if (current.get() == version) {
+        return version;
+      }
+      unpin(version);
+    }
+  }
+
+  /** Releases a set pinned by {@link #pin}. */
+  void unpin(Version version) {
+    if (pins.decrementAndGet(version.setIdx) == 0) {
+      Thread writer = waitingWriter;
+      if (writer != null) {
+        LockSupport.unpark(writer);
+      }
+    }
+  }
+
+  /** Latest published version. Readers must pin it before reading its buffers. */
+  Version current() {
+    return current.get();
+  }
+
+  /**
+   * Waits until the set following the current one in the ring is not pinned, so that the writer
+   * can compute new values into it.
+   *
+   * @return index of the set to write.
+   */
+  int acquireNextSet() {
+    int nextSetIdx = (current.get().setIdx + 1) % parameterSets.length;
+    if (pins.get(nextSetIdx) == 0) {
+      return nextSetIdx;
+    }
+
+    waitingWriter = Thread.currentThread();
+    try {
+      while (pins.get(nextSetIdx) != 0) {
+        LockSupport.park(this);
+      }
+    } finally {
+      waitingWriter = null;
+    }
+    return nextSetIdx;
+  }
+
+  /** Makes a set written after {@link #acquireNextSet} the current one. */
+  void publish(int setIdx) {
+    current.set(new Version(current.get().number + 1, setIdx));
+  }
+
+  ByteBuffer[] getParameters(int setIdx) {
+    return parameterSets[setIdx];
+  }
+
+  ByteBuffer[] getOptimizerState(int setIdx) {
+    return optimizerStateSets[setIdx];
+  }
+
+  /** Every parameter set, in ring order, as bound to the training models. */
+  ByteBuffer[][] getParameterSets() {
+    return parameterSets;
+  }
+
+  /** Every optimizer state set, in ring order, as bound to the training models. */
+  ByteBuffer[][] getOptimizerStateSets() {
+    return optimizerStateSets;
+  }
+}
@@ -0,0 +1,73 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Consistent, read-only view of the model parameters at one version.
+ *
+ * <p>The underlying buffers are not copied: they are kept unchanged until the snapshot is
+ * closed, and training waits for that before reusing them. Snapshots should therefore be closed
+ * as soon as they are no longer needed, e.g. once the parameters are serialized.
+ */
+public final class ParameterSnapshot implements Closeable {
+  private final ParameterSets owner;
+  private final ParameterSets.Version version;
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  ParameterSnapshot(ParameterSets owner, ParameterSets.Version version) {
+    this.owner = owner;
+    this.version = version;
+  }
+
+  /** Version of the parameters, as reported by the model that took the snapshot. */
+  public long getVersion() {
+    return version.number;
+  }
+
+  /**
+   * Returns read-only views of every parameter tensor, positioned at 0, in native byte order.
+   *
+   * <p>Every call returns new views, so their positions can be moved freely. The views must not
+   * be used after the snapshot is closed.
+   */
+  public ByteBuffer[] getBuffers() {
+    if (closed.get()) {
+      throw new IllegalStateException("Cannot read a closed parameter snapshot");
+    }
+    ByteBuffer[] parameters = owner.getParameters(version.setIdx);
+    ByteBuffer[] views = new ByteBuffer[parameters.length];
+    for (int paramIdx = 0; paramIdx < parameters.length; paramIdx++) {
+      ByteBuffer view = parameters[paramIdx].asReadOnlyBuffer();
+      view.order(ByteOrder.nativeOrder());
+      view.rewind();
+      views[paramIdx] = view;
+    }
+    return views;
+  }
+
+  /** Releases the snapshot. Closing it again has no effect. */
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) {
+      owner.unpin(version);
+    }
+  }
+}
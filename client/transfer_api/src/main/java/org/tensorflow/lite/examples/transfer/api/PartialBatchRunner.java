@@ -0,0 +1,122 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import org.tensorflow.lite.Interpreter;
+
+/**
+ * Runs a training model, bound to full batch slots, over the first rows of a slot.
+ *
+ * <p>The batch inputs (bottlenecks and classes, inputs 0 and 1) are resized for the duration of
+ * the call, so no sample has to be repeated to fill the batch up. Arguments for the last batch
+ * size used are kept, so that the final batch of every epoch allocates nothing.
+ */
+final class PartialBatchRunner {
+  private final ByteBuffer[] bottleneckBatches;
+  private final ByteBuffer[] classBatches;
+  // Bound inputs of full batches, indexed by [batch slot][parameter set].
+  private final Object[][][] fullInputs;
+  private final int[] fullBottleneckShape;
+  private final int[] fullClassShape;
+
+  private int batchSize = -1;
+  private int[] bottleneckShape;
+  private int[] classShape;
+  private Object[][][] inputs;
+
+  /**
+   * @param interpreter model whose inputs are bound to full batches.
+   * @param bottleneckBatches bound bottleneck batch slots.
+   * @param classBatches bound class batch slots.
+   * @param fullInputs bound inputs, indexed by [batch slot][parameter set], whose first two
+   *     elements are the batch slots.
+   */
+  PartialBatchRunner(
+      Interpreter interpreter,
+      ByteBuffer[] bottleneckBatches,
+      ByteBuffer[] classBatches,
+      Object[][][] fullInputs) {
+    this.bottleneckBatches = bottleneckBatches;
+    this.classBatches = classBatches;
+    this.fullInputs = fullInputs;
+    fullBottleneckShape = interpreter.getInputTensor(0).shape().clone();
+    fullClassShape = interpreter.getInputTensor(1).shape().clone();
+  }
+
+  int getFullBatchSize() {
+    return fullBottleneckShape[0];
+  }
+
+  /**
+   * Runs [interpreter] over the first [numRows] samples of [batchSlot].
+   *
+   * @throws UnsupportedOperationException if the model cannot run on a smaller batch.
+   */
+  void run(
+      Interpreter interpreter,
+      int batchSlot,
+      int parameterSetIdx,
+      int numRows,
+      Map<Integer, Object> outputs) {
+    if (numRows != batchSize) {
+      prepare(numRows);
+    }
+    try {
+      interpreter.resizeInput(0, bottleneckShape);
+      interpreter.resizeInput(1, classShape);
+      interpreter.runForMultipleInputsOutputs(inputs[batchSlot][parameterSetIdx], outputs);
+    } catch (IllegalArgumentException | IllegalStateException e) {
+      throw new UnsupportedOperationException(
+          String.format("Model cannot train on a batch of %d samples", numRows), e);
+    } finally {
+      interpreter.resizeInput(0, fullBottleneckShape);
+      interpreter.resizeInput(1, fullClassShape);
+    }
+  }
+
+  private void prepare(int numRows) {
+    bottleneckShape = fullBottleneckShape.clone();
+    bottleneckShape[0] = numRows;
+    classShape = fullClassShape.clone();
+    classShape[0] = numRows;
+
+    inputs = new Object[fullInputs.length][][];
+    for (int slotIdx = 0; slotIdx < fullInputs.length; slotIdx++) {
+      ByteBuffer bottleneckRows = leadingRows(bottleneckBatches[slotIdx], numRows);
+      ByteBuffer classRows = leadingRows(classBatches[slotIdx], numRows);
+      inputs[slotIdx] = new Object[fullInputs[slotIdx].length][];
+      for (int setIdx = 0; setIdx < fullInputs[slotIdx].length; setIdx++) {
+        Object[] slotInputs = fullInputs[slotIdx][setIdx].clone();
+        slotInputs[0] = bottleneckRows;
+        slotInputs[1] = classRows;
+        inputs[slotIdx][setIdx] = slotInputs;
+      }
+    }
+    batchSize = numRows;
+  }
+
+  /** Returns a view of the first [numRows] rows of a full batch buffer. */
+  private ByteBuffer leadingRows(ByteBuffer batch, int numRows) {
+    int rowBytes = batch.capacity() / getFullBatchSize();
+    ByteBuffer rows = batch.duplicate();
+    rows.position(0);
+    rows.limit(numRows * rowBytes);
+    return rows.slice().order(ByteOrder.nativeOrder());
+  }
+}
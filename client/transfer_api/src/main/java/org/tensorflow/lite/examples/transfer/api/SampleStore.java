@@ -0,0 +1,204 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Growable off-heap store of samples.
+ *
+ * <p>Bottlenecks are kept as fixed-stride rows of one contiguous direct buffer, and class
+ * indices are kept in a parallel primitive column.
+ *
+ * <p>The store is append-only. Samples can be added from several threads while others read
+ * through their own {@link Reader}: a sample never changes once {@link #size()} includes it,
+ * so readers that stay below a size they have observed see a consistent collection.
+ */
+final class SampleStore {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final int rowBytes;
+
+  // Replaced, never modified below [size], when the store grows.
+  private volatile ByteBuffer rows;
+  private volatile int[] labels;
+
+  // Published after the sample data is written.
+  private volatile int size = 0;
+
+  /**
+   * Creates an empty store.
+   *
+   * @param rowBytes size of a single bottleneck, in bytes.
+   */
+  SampleStore(int rowBytes) {
+    this.rowBytes = rowBytes;
+    allocate(INITIAL_CAPACITY);
+  }
+
+  /**
+   * Appends a sample to the store.
+   *
+   * @param bottleneck bottleneck data, read from its current position. The position is restored.
+   * @param classIdx ground truth class index of the sample.
+   * @return index of the added sample.
+   */
+  synchronized int add(ByteBuffer bottleneck, int classIdx) {
+    if (bottleneck.remaining() != rowBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Bottleneck has %d bytes, but the store expects %d", bottleneck.remaining(), rowBytes));
+    }
+    if (size == labels.length) {
+      allocate(size * 2);
+    }
+
+    int position = bottleneck.position();
+    rows.limit((size + 1) * rowBytes).position(size * rowBytes);
+    rows.put(bottleneck);
+    bottleneck.position(position);
+
+    labels[size] = classIdx;
+    return size++;
+  }
+
+  /**
+   * Appends several samples to the store at once.
+   *
+   * @param bottlenecks [count] consecutive bottlenecks, read from the current position. The
+   *     position is restored.
+   * @param classIndices ground truth class indices, one per sample.
+   * @param count how many samples to add.
+   * @return index of the first added sample.
+   */
+  synchronized int addAll(ByteBuffer bottlenecks, int[] classIndices, int count) {
+    if (bottlenecks.remaining() < (long) count * rowBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d bytes of bottlenecks, but got %d",
+          (long) count * rowBytes, bottlenecks.remaining()));
+    }
+    int capacity = labels.length;
+    while (capacity < size + count) {
+      capacity *= 2;
+    }
+    if (capacity != labels.length) {
+      allocate(capacity);
+    }
+
+    int position = bottlenecks.position();
+    int limit = bottlenecks.limit();
+    bottlenecks.limit(position + count * rowBytes);
+    rows.limit((size + count) * rowBytes).position(size * rowBytes);
+    rows.put(bottlenecks);
+    bottlenecks.limit(limit).position(position);
+
+    System.arraycopy(classIndices, 0, labels, size, count);
+    int firstIdx = size;
+    size += count;
+    return firstIdx;
+  }
+
+  /** Creates a reader for this store. A reader must only be used by one thread at a time. */
+  Reader newReader() {
+    return new Reader();
+  }
+
+  /** Number of samples in the store. */
+  int size() {
+    return size;
+  }
+
+  /** Size of a single bottleneck row, in bytes. */
+  int getRowBytes() {
+    return rowBytes;
+  }
+
+  /** Ground truth class index of the given sample. */
+  int getLabel(int sampleIdx) {
+    checkIndex(sampleIdx);
+    return labels[sampleIdx];
+  }
+
+  private void allocate(int capacity) {
+    long capacityBytes = (long) capacity * rowBytes;
+    if (capacityBytes > Integer.MAX_VALUE) {
+      throw new IllegalStateException(
+          String.format("Sample store cannot grow beyond %d samples", capacity / 2));
+    }
+
+    ByteBuffer newRows = ByteBuffer.allocateDirect((int) capacityBytes);
+    newRows.order(ByteOrder.nativeOrder());
+    if (rows != null) {
+      rows.limit(size * rowBytes).position(0);
+      newRows.put(rows);
+      newRows.clear();
+    }
+
+    labels = labels == null ? new int[capacity] : Arrays.copyOf(labels, capacity);
+    rows = newRows;
+  }
+
+  private void checkIndex(int sampleIdx) {
+    if (sampleIdx < 0 || sampleIdx >= size) {
+      throw new IndexOutOfBoundsException(
+          String.format("Sample %d is out of range [0, %d)", sampleIdx, size));
+    }
+  }
+
+  /** Copies bottleneck rows out of the store without allocating per row. */
+  final class Reader {
+    // Rows buffer the view was created for, to notice when the store has grown.
+    private ByteBuffer viewSource;
+
+    // View that is repositioned for every copied row, to avoid allocating slices.
+    private ByteBuffer view;
+
+    private Reader() {}
+
+    /**
+     * Copies a single bottleneck into a buffer, starting at its current position.
+     *
+     * @param sampleIdx which sample to copy.
+     * @param out where to copy the bottleneck. Its position is advanced by one row.
+     */
+    void copyRow(int sampleIdx, ByteBuffer out) {
+      checkIndex(sampleIdx);
+      ByteBuffer source = rows;
+      if (source != viewSource) {
+        viewSource = source;
+        view = source.duplicate();
+      }
+
+      view.limit((sampleIdx + 1) * rowBytes).position(sampleIdx * rowBytes);
+      out.put(view);
+    }
+
+    /**
+     * Copies a sequence of bottlenecks into consecutive rows of a buffer (strided gather).
+     *
+     * @param sampleIndices indices of the samples to copy.
+     * @param offset first element of [sampleIndices] to use.
+     * @param count how many samples to copy.
+     * @param out where to copy the bottlenecks. Its position is advanced by [count] rows.
+     */
+    void gather(int[] sampleIndices, int offset, int count, ByteBuffer out) {
+      for (int idx = offset; idx < offset + count; idx++) {
+        copyRow(sampleIndices[idx], out);
+      }
+    }
+  }
+}
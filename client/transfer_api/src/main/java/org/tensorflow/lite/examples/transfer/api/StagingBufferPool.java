@@ -0,0 +1,71 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reusable direct buffers of one size, in native byte order.
+ *
+ * <p>Buffers are allocated on demand when none is idle, so callers never wait. At most
+ * [maxIdle] returned buffers are kept for reuse; the others are left to the garbage collector.
+ */
+final class StagingBufferPool {
+  private final int capacity;
+  private final BlockingQueue<ByteBuffer> idle;
+
+  /**
+   * @param capacity size of every buffer, in bytes.
+   * @param maxIdle maximum number of buffers kept for reuse.
+   */
+  StagingBufferPool(int capacity, int maxIdle) {
+    if (maxIdle < 1) {
+      throw new IllegalArgumentException(
+          String.format("Pool must keep at least 1 buffer, got %d", maxIdle));
+    }
+    this.capacity = capacity;
+    this.idle = new ArrayBlockingQueue<>(maxIdle);
+  }
+
+  /** Takes a cleared buffer out of the pool. Should be given back with {@link #release}. */
+  ByteBuffer acquire() {
+    ByteBuffer buffer = idle.poll();
+    if (buffer == null) {
+      buffer = ByteBuffer.allocateDirect(capacity);
+      buffer.order(ByteOrder.nativeOrder());
+    }
+    return buffer;
+  }
+
+  /** Returns a buffer obtained from {@link #acquire}. */
+  void release(ByteBuffer buffer) {
+    buffer.clear();
+    idle.offer(buffer);
+  }
+
+  /** Size of every buffer, in bytes. */
+  int getCapacity() {
+    return capacity;
+  }
+
+  /** Number of buffers currently kept for reuse. */
+  int getIdleCount() {
+    return idle.size();
+  }
+}
@@ -0,0 +1,70 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+import java.nio.ByteBuffer;
+
+/** Picks the highest scores out of a row of floats, without sorting the whole row. */
+final class TopKSelector {
+  private static final int FLOAT_BYTES = 4;
+
+  private TopKSelector() {}
+
+  /**
+   * Writes the [k] highest scores of a row and their indices, highest first.
+   *
+   * <p>Runs in linear time for a fixed [k] and does not allocate. Among equal scores, the lower
+   * index comes first.
+   *
+   * @param scores buffer holding the row.
+   * @param firstByte absolute position of the first score in [scores].
+   * @param numScores number of scores in the row.
+   * @param k how many scores to keep.
+   * @param outIndices where to store the indices, from [outOffset].
+   * @param outScores where to store the scores, from [outOffset].
+   * @param outOffset first index written in [outIndices] and [outScores].
+   * @return number of scores written, i.e. the smallest of [k] and [numScores].
+   */
+  static int select(
+      ByteBuffer scores,
+      int firstByte,
+      int numScores,
+      int k,
+      int[] outIndices,
+      float[] outScores,
+      int outOffset) {
+    if (k <= 0) {
+      return 0;
+    }
+    int count = 0;
+    for (int idx = 0; idx < numScores; idx++) {
+      float score = scores.getFloat(firstByte + idx * FLOAT_BYTES);
+      if (count == k && !(score > outScores[outOffset + k - 1])) {
+        continue;
+      }
+
+      int pos = count < k ? count++ : k - 1;
+      while (pos > 0 && score > outScores[outOffset + pos - 1]) {
+        outScores[outOffset + pos] = outScores[outOffset + pos - 1];
+        outIndices[outOffset + pos] = outIndices[outOffset + pos - 1];
+        pos--;
+      }
+      outScores[outOffset + pos] = score;
+      outIndices[outOffset + pos] = idx;
+    }
+    return count;
+  }
+}
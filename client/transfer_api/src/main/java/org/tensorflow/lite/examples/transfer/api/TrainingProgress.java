@@ -0,0 +1,107 @@
+/* Copyright 2019 The TensorFlow Authors. All Rights Reserved.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+==============================================================================*/
+
+package org.tensorflow.lite.examples.transfer.api;
+
+/**
+ * Position of a training run, stored in resume checkpoints.
+ *
+ * <p>The first fields identify the run: a checkpoint is only resumed by a run with the same id,
+ * epoch count, number of samples and sampling mode. The seed is taken over from the checkpoint,
+ * so that the resumed run visits samples in the same order. The last two fields tell how far
+ * the run went.
+ */
+final class TrainingProgress {
+  /** Number of values in {@link #toArray()}. */
+  static final int NUM_VALUES = 8;
+
+  final long runId;
+  final int numEpochs;
+  final int numSamples;
+  final long seed;
+  final int samplingMode;
+
+  // Sampler epoch number of the first epoch of the run, from which every epoch order derives.
+  final int firstSamplerEpoch;
+
+  // Number of epochs finished, and of batches taken from the next one.
+  final int epoch;
+  final int batch;
+
+  TrainingProgress(
+      long runId,
+      int numEpochs,
+      int numSamples,
+      long seed,
+      int samplingMode,
+      int firstSamplerEpoch,
+      int epoch,
+      int batch) {
+    this.runId = runId;
+    this.numEpochs = numEpochs;
+    this.numSamples = numSamples;
+    this.seed = seed;
+    this.samplingMode = samplingMode;
+    this.firstSamplerEpoch = firstSamplerEpoch;
+    this.epoch = epoch;
+    this.batch = batch;
+  }
+
+  /** Same run, at another position. */
+  TrainingProgress at(int epoch, int batch) {
+    return new TrainingProgress(
+        runId, numEpochs, numSamples, seed, samplingMode, firstSamplerEpoch, epoch, batch);
+  }
+
+  /** Whether both describe the same run, wherever they are. */
+  boolean isSameRun(TrainingProgress other) {
+    return runId == other.runId
+        && numEpochs == other.numEpochs
+        && numSamples == other.numSamples
+        && samplingMode == other.samplingMode;
+  }
+
+  /** Whether every epoch of the run is done. */
+  boolean isFinished() {
+    return epoch >= numEpochs;
+  }
+
+  long[] toArray() {
+    return new long[] {
+      runId, numEpochs, numSamples, seed, samplingMode, firstSamplerEpoch, epoch, batch
+    };
+  }
+
+  static TrainingProgress fromArray(long[] values) {
+    if (values.length != NUM_VALUES) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d progress values, got %d", NUM_VALUES, values.length));
+    }
+    return new TrainingProgress(
+        values[0],
+        (int) values[1],
+        (int) values[2],
+        values[3],
+        (int) values[4],
+        (int) values[5],
+        (int) values[6],
+        (int) values[7]);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("run %d, epoch %d/%d, batch %d", runId, epoch, numEpochs, batch);
+  }
+}
@@ -20,18 +20,19 @@ import android.util.Log;
 import android.util.Pair;
 
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ScatteringByteChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.TreeMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -69,24 +70,224 @@ public final class TransferLearningModel implements Closeable {
     }
   }
 
-  private static class TrainingSample {
-    ByteBuffer bottleneck;
-    String className;
+  /**
+   * How training samples are drawn during an epoch.
+   */
+  public enum SamplingMode {
+    /** Every sample is visited exactly once per epoch, in a random order. */
+    WITHOUT_REPLACEMENT,
+    /** Samples are drawn independently, so some may be visited several times per epoch. */
+    WITH_REPLACEMENT
+  }
 
-    TrainingSample(ByteBuffer bottleneck, String className) {
-      this.bottleneck = bottleneck;
-      this.className = className;
+  /**
+   * Throughput and per-stage timing of a single {@link #train} call.
+   *
+   * <p>With prefetching, batch assembly overlaps with the gradient pass, so the assembly time is
+   * not part of the wall time; the wait time shows how long training stalled for batches.
+   */
+  public static final class TrainingStats {
+    private final int numSamples;
+    private final int numBatches;
+    private final long wallNanos;
+    private final long assembleNanos;
+    private final long waitNanos;
+    private final long gradientNanos;
+    private final long optimizerNanos;
+    private final boolean prefetchEnabled;
+    private final boolean fusedTrainStep;
+
+    TrainingStats(
+        int numSamples,
+        int numBatches,
+        long wallNanos,
+        long assembleNanos,
+        long waitNanos,
+        long gradientNanos,
+        long optimizerNanos,
+        boolean prefetchEnabled,
+        boolean fusedTrainStep) {
+      this.numSamples = numSamples;
+      this.numBatches = numBatches;
+      this.wallNanos = wallNanos;
+      this.assembleNanos = assembleNanos;
+      this.waitNanos = waitNanos;
+      this.gradientNanos = gradientNanos;
+      this.optimizerNanos = optimizerNanos;
+      this.prefetchEnabled = prefetchEnabled;
+      this.fusedTrainStep = fusedTrainStep;
+    }
+
+    /** Number of samples trained on, over all epochs. */
+    public int getNumSamples() {
+      return numSamples;
+    }
+
+    /** Number of batches trained on, over all epochs. */
+    public int getNumBatches() {
+      return numBatches;
+    }
+
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    /** Time spent gathering bottlenecks and building one-hot labels. */
+    public long getAssembleNanos() {
+      return assembleNanos;
+    }
+
+    /** Time the training thread spent waiting for the next batch. */
+    public long getWaitNanos() {
+      return waitNanos;
+    }
+
+    /** Time spent in the gradient pass, or in the whole step with a fused training step model. */
+    public long getGradientNanos() {
+      return gradientNanos;
+    }
+
+    /** Time spent in the optimizer step. Always 0 with a fused training step model. */
+    public long getOptimizerNanos() {
+      return optimizerNanos;
+    }
+
+    public boolean isPrefetchEnabled() {
+      return prefetchEnabled;
+    }
+
+    /** Whether steps ran through a single fused training step model. */
+    public boolean isFusedTrainStep() {
+      return fusedTrainStep;
+    }
+
+    public float getSamplesPerSecond() {
+      return wallNanos == 0 ? 0 : numSamples * 1e9f / wallNanos;
+    }
+
+    public float getStepsPerSecond() {
+      return wallNanos == 0 ? 0 : numBatches * 1e9f / wallNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d samples in %d batches, %.1f samples/s, %.1f steps/s (prefetch %s, fused step %s): "
+              + "assemble %.1f ms, wait %.1f ms, gradients %.1f ms, optimizer %.1f ms, "
+              + "wall %.1f ms",
+          numSamples, numBatches, getSamplesPerSecond(), getStepsPerSecond(),
+          prefetchEnabled ? "on" : "off", fusedTrainStep ? "on" : "off",
+          assembleNanos / 1e6, waitNanos / 1e6, gradientNanos / 1e6, optimizerNanos / 1e6,
+          wallNanos / 1e6);
     }
   }
 
+  /**
+   * Metrics of a single evaluation over the testing samples.
+   *
+   * <p>Per-class arrays are indexed like the class list the model was created with.
+   */
+  public static final class EvaluationStats {
+    private final int numSamples;
+    private final float loss;
+    private final int numCorrect;
+    private final int topK;
+    private final int numTopKCorrect;
+    private final int[] classSupport;
+    private final int[] classCorrect;
+    private final int[] classPredicted;
+    private final int numShards;
+    private final long wallNanos;
+    private final long parameterVersion;
+
+    EvaluationStats(
+        int numSamples,
+        float loss,
+        int numCorrect,
+        int topK,
+        int numTopKCorrect,
+        int[] classSupport,
+        int[] classCorrect,
+        int[] classPredicted,
+        int numShards,
+        long wallNanos,
+        long parameterVersion) {
+      this.numSamples = numSamples;
+      this.loss = loss;
+      this.numCorrect = numCorrect;
+      this.topK = topK;
+      this.numTopKCorrect = numTopKCorrect;
+      this.classSupport = classSupport;
+      this.classCorrect = classCorrect;
+      this.classPredicted = classPredicted;
+      this.numShards = numShards;
+      this.wallNanos = wallNanos;
+      this.parameterVersion = parameterVersion;
+    }
 
-  private static class TestingSample {
-    ByteBuffer bottleneck;
-    String className;
+    public int getNumSamples() {
+      return numSamples;
+    }
 
-    TestingSample(ByteBuffer bottleneck, String className) {
-      this.bottleneck = bottleneck;
-      this.className = className;
+    /** Mean cross-entropy of the labels. */
+    public float getLoss() {
+      return loss;
+    }
+
+    public float getAccuracy() {
+      return (float) numCorrect / numSamples;
+    }
+
+    /** Number of most likely classes in which a label counts as a top-k hit. */
+    public int getTopK() {
+      return topK;
+    }
+
+    /** Share of samples whose label is among the [topK] most likely classes. */
+    public float getTopKAccuracy() {
+      return (float) numTopKCorrect / numSamples;
+    }
+
+    /** Number of samples labelled with every class. */
+    public int[] getClassSupport() {
+      return classSupport.clone();
+    }
+
+    /** Number of correctly predicted samples of every class. */
+    public int[] getClassCorrect() {
+      return classCorrect.clone();
+    }
+
+    /** Number of samples predicted as every class. */
+    public int[] getClassPredicted() {
+      return classPredicted.clone();
+    }
+
+    /** Number of inference interpreters the samples were split across. */
+    public int getNumShards() {
+      return numShards;
+    }
+
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    public float getSamplesPerSecond() {
+      return wallNanos == 0 ? 0 : numSamples * 1e9f / wallNanos;
+    }
+
+    /** Version of the parameters that were evaluated, see {@link #getParameterVersion()}. */
+    public long getParameterVersion() {
+      return parameterVersion;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%d samples, loss %.4f, accuracy %.4f, top-%d accuracy %.4f, "
+              + "%.1f samples/s over %d shards",
+          numSamples, loss, getAccuracy(), topK, getTopKAccuracy(), getSamplesPerSecond(),
+          numShards);
     }
   }
 
@@ -97,13 +298,29 @@ public final class TransferLearningModel implements Closeable {
     void onLoss(int epoch, float loss);
   }
 
+  /** Run id of {@link #train(int, LossConsumer, long)} for runs that cannot be resumed. */
+  public static final long NO_RUN_ID = 0;
+
   private static final int FLOAT_BYTES = 4;
 
-  // Setting this to a higher value allows to calculate bottlenecks for more samples while
-  // adding them to the bottleneck collection is blocked by an active training thread.
+  private static final String TAG = "TransferLearningModel";
+
+  // Setting this to a higher value allows to calculate bottlenecks for more samples in parallel,
+  // including while a training thread is active.
   private static final int NUM_THREADS =
       Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
 
+  // Number of images passed through the bottleneck model at once by [addSamples].
+  private static final int BOTTLENECK_BATCH_SIZE = 16;
+
+  // Number of testing samples passed through the inference model at once, and maximum number of
+  // inference interpreters evaluating in parallel.
+  private static final int EVALUATION_BATCH_SIZE = 16;
+  private static final int MAX_EVALUATION_SHARDS = Math.min(NUM_THREADS, 4);
+
+  // Maximum number of predictions running in parallel, each with its own interpreters.
+  private static final int MAX_CONCURRENT_PREDICTIONS = Math.min(NUM_THREADS, 4);
+
   private final int[] bottleneckShape;
 
   private final Map<String, Integer> classes;
@@ -112,48 +329,101 @@ public final class TransferLearningModel implements Closeable {
   private final LiteInitializeModel initializeModel;
   private final LiteBottleneckModel bottleneckModel;
   private final LiteTrainHeadModel trainHeadModel;
-  private final LiteInferenceModel inferenceModel;
+  private final LiteModelPool<InferenceSession> inferenceSessions;
+  private final EvaluationEngine evaluationEngine;
   private final LiteOptimizerModel optimizerModel;
 
-  private final List<TrainingSample> trainingSamples = new ArrayList<>();
-  private final List<TestingSample> testingSamples = new ArrayList<>();
+  // Runs gradients and optimizer update in one invocation; null when the loader has none.
+  private final LiteTrainStepModel trainStepModel;
+
+  private final SampleStore trainingSamples;
+  private final SampleStore testingSamples;
+
+  // Decides the order of training samples; only used by the thread holding [trainingLock].
+  private final EpochSampler sampler =
+      new EpochSampler(SamplingMode.WITHOUT_REPLACEMENT, new Random().nextLong());
+  private final SampleStore.Reader trainingReader;
+
+  // Number of epochs started over the lifetime of the model, so that every epoch is shuffled
+  // differently even across [train] calls.
+  private int epochsStarted = 0;
+
+  // Batches the batch source skips at the start of its next epoch, to resume a run.
+  private int batchesToSkip = 0;
 
-  private ByteBuffer[] modelParameters;
+  // Where [train] saves its progress, and every how many batches; disabled when null.
+  private volatile File resumeCheckpointPath;
+  private volatile int resumeCheckpointInterval;
 
-  // Where to store the optimizer outputs.
-  private ByteBuffer[] nextModelParameters;
+  // Cleared when the training model turns out not to support a smaller final batch.
+  // Read by the batch producer.
+  private volatile boolean partialBatchesSupported = true;
 
-  private ByteBuffer[] optimizerState;
+  // Whether the next batch is assembled in the background while the current one is trained on.
+  private volatile boolean prefetchEnabled = true;
 
-  // Where to store the updated optimizer state.
-  private ByteBuffer[] nextOptimizerState;
+  private volatile TrainingStats lastTrainingStats;
 
-  // Where to store training inputs.
-  private final ByteBuffer trainingBatchBottlenecks;
-  private final ByteBuffer trainingBatchClasses;
+  // Bottlenecks computed in earlier runs, or null if not opened.
+  private volatile BottleneckCache bottleneckCache;
 
-  // A zero-filled buffer of the same size as `trainingBatchClasses`.
+  // Cleared when the bottleneck model turns out not to support batches of images.
+  private volatile boolean batchedBottlenecksSupported = true;
+
+  // Cleared when the inference model turns out not to support batches of bottlenecks.
+  private volatile boolean batchedInferenceSupported = true;
+
+  // Number of parameter sets in the ring: the current one, the one being trained into, and one
+  // that a reader may still have pinned.
+  private static final int NUM_PARAMETER_SETS = 3;
+
+  // Current parameter values and optimizer state, and the sets the training models write into.
+  private final ParameterSets parameters;
+
+  // Shapes of the parameters and of the optimizer state elements, written to checkpoints.
+  private final int[][] parameterShapes;
+  private final int[][] optimizerStateShapes;
+
+  // Where to store training inputs, one per batch slot of the prefetcher.
+  private final ByteBuffer[] trainingBatchBottlenecks;
+  private final ByteBuffer[] trainingBatchClasses;
+  // Whether the batch in a slot is the last one of its epoch, as the sampler saw it when the
+  // batch was assembled.
+  private final boolean[] trainingBatchEndsEpoch = new boolean[BatchPrefetcher.NUM_SLOTS];
+
+  // A zero-filled buffer of the same size as a `trainingBatchClasses` slot.
   private final ByteBuffer zeroBatchClasses;
 
   // Where to store calculated gradients.
   private final ByteBuffer[] modelGradients;
 
-  // Where to store bottlenecks produced during inference.
-  private ByteBuffer inferenceBottleneck;
+  // Where incoming parameter values are received, before they are copied into a parameter set.
+  private final ParameterBinder parameterBinder;
+
+  // Reusable buffers for the image and the bottleneck of a single sample.
+  private final StagingBufferPool imageStaging;
+  private final StagingBufferPool bottleneckStaging;
 
   // Used to spawn background threads.
   private final ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
 
-  // This lock guarantees that only one thread is performing training at any point in time.
-  // It also protects the sample collection from being modified while in use by a training
-  // thread.
+  // Runs the batch producer while training, apart from [executor] so that it can never be
+  // starved by the training task itself.
+  private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+
+  // This lock guarantees that only one thread is performing training at any point in time. It is
+  // also held by every other writer of [parameters].
+  // Samples can still be added while training: every epoch only visits the samples that were
+  // present when it started.
   private final Lock trainingLock = new ReentrantLock();
 
-  // This lock guards access to trainable parameters.
-  private final ReadWriteLock parameterLock = new ReentrantReadWriteLock();
+  // Result of the last evaluation, returned again while neither the parameters nor the testing
+  // samples change.
+  private volatile EvaluationStats lastEvaluation;
 
-  // This lock allows [close] method to assure that no threads are performing inference.
-  private final Lock inferenceLock = new ReentrantLock();
+  // Predictions and evaluations hold the read lock, so that they run concurrently, while [close]
+  // takes the write lock to wait for those in flight.
+  private final ReadWriteLock inferenceLock = new ReentrantReadWriteLock();
 
   // Set to true when [close] has been called.
   private volatile boolean isTerminating = false;
@@ -165,54 +435,110 @@ public final class TransferLearningModel implements Closeable {
       this.classes.put(classesByIdx[classIdx], classIdx);
     }
 
+    LiteModelWrapper trainStepWrapper;
     try {
       initializeModel = new LiteInitializeModel(modelLoader.loadInitializeModel());
-      bottleneckModel = new LiteBottleneckModel(modelLoader.loadBaseModel());
+      // One interpreter per sample thread, plus one per concurrent prediction.
+      bottleneckModel =
+          new LiteBottleneckModel(
+              modelLoader.loadBaseModel(), NUM_THREADS + MAX_CONCURRENT_PREDICTIONS);
       trainHeadModel = new LiteTrainHeadModel(modelLoader.loadTrainModel());
-      inferenceModel = new LiteInferenceModel(modelLoader.loadInferenceModel(), classes.size());
+      LiteInferenceModel inferenceModel =
+          new LiteInferenceModel(modelLoader.loadInferenceModel(), classes.size());
+      int bottleneckBytes = bottleneckModel.getNumBottleneckFeatures() * FLOAT_BYTES;
+      inferenceSessions =
+          new LiteModelPool<>(
+              new InferenceSession(inferenceModel, bottleneckBytes),
+              () -> new InferenceSession(inferenceModel.newInstance(), bottleneckBytes),
+              MAX_CONCURRENT_PREDICTIONS);
+      evaluationEngine =
+          new EvaluationEngine(inferenceModel, EVALUATION_BATCH_SIZE, MAX_EVALUATION_SHARDS);
       optimizerModel = new LiteOptimizerModel(modelLoader.loadOptimizerModel());
+      trainStepWrapper = modelLoader.loadTrainStepModel();
     } catch (IOException e) {
       throw new RuntimeException("Couldn't read underlying models for TransferLearningModel", e);
     }
 
     this.bottleneckShape = bottleneckModel.getBottleneckShape();
+    trainingSamples = new SampleStore(numBottleneckFeatures() * FLOAT_BYTES);
+    testingSamples = new SampleStore(numBottleneckFeatures() * FLOAT_BYTES);
+    trainingReader = trainingSamples.newReader();
     int[] modelParameterSizes = trainHeadModel.getParameterSizes();
 
-    modelParameters = new ByteBuffer[modelParameterSizes.length];
     modelGradients = new ByteBuffer[modelParameterSizes.length];
-    nextModelParameters = new ByteBuffer[modelParameterSizes.length];
-
     for (int parameterIndex = 0; parameterIndex < modelParameterSizes.length; parameterIndex++) {
-      int bufferSize = modelParameterSizes[parameterIndex] * FLOAT_BYTES;
-      modelParameters[parameterIndex] = allocateBuffer(bufferSize);
-      modelGradients[parameterIndex] = allocateBuffer(bufferSize);
-      nextModelParameters[parameterIndex] = allocateBuffer(bufferSize);
+      modelGradients[parameterIndex] =
+          allocateBuffer(modelParameterSizes[parameterIndex] * FLOAT_BYTES);
     }
-    initializeModel.initializeParameters(modelParameters);
+    parameterBinder = new ParameterBinder(modelParameterSizes);
 
     int[] optimizerStateElementSizes = optimizerModel.stateElementSizes();
-    optimizerState = new ByteBuffer[optimizerStateElementSizes.length];
-    nextOptimizerState = new ByteBuffer[optimizerStateElementSizes.length];
-
-    for (int elemIdx = 0; elemIdx < optimizerState.length; elemIdx++) {
-      int bufferSize = optimizerStateElementSizes[elemIdx] * FLOAT_BYTES;
-      optimizerState[elemIdx] = allocateBuffer(bufferSize);
-      nextOptimizerState[elemIdx] = allocateBuffer(bufferSize);
-      fillBufferWithZeros(optimizerState[elemIdx]);
+    ByteBuffer[][] parameterSets = new ByteBuffer[NUM_PARAMETER_SETS][];
+    ByteBuffer[][] optimizerStateSets = new ByteBuffer[NUM_PARAMETER_SETS][];
+    for (int setIdx = 0; setIdx < NUM_PARAMETER_SETS; setIdx++) {
+      parameterSets[setIdx] = new ByteBuffer[modelParameterSizes.length];
+      for (int parameterIndex = 0; parameterIndex < modelParameterSizes.length; parameterIndex++) {
+        parameterSets[setIdx][parameterIndex] =
+            allocateBuffer(modelParameterSizes[parameterIndex] * FLOAT_BYTES);
+      }
+      optimizerStateSets[setIdx] = new ByteBuffer[optimizerStateElementSizes.length];
+      for (int elemIdx = 0; elemIdx < optimizerStateElementSizes.length; elemIdx++) {
+        optimizerStateSets[setIdx][elemIdx] =
+            allocateBuffer(optimizerStateElementSizes[elemIdx] * FLOAT_BYTES);
+      }
     }
-
-    trainingBatchBottlenecks =
-        allocateBuffer(getTrainBatchSize() * numBottleneckFeatures() * FLOAT_BYTES);
+    initializeModel.initializeParameters(parameterSets[0]);
+    for (ByteBuffer stateElement : optimizerStateSets[0]) {
+      fillBufferWithZeros(stateElement);
+    }
+    parameters = new ParameterSets(parameterSets, optimizerStateSets);
+    parameterShapes = trainHeadModel.getParameterShapes();
+    optimizerStateShapes = optimizerModel.stateElementShapes();
 
     int batchClassesNumElements = getTrainBatchSize() * classes.size();
-    trainingBatchClasses = allocateBuffer(batchClassesNumElements * FLOAT_BYTES);
+    trainingBatchBottlenecks = new ByteBuffer[BatchPrefetcher.NUM_SLOTS];
+    trainingBatchClasses = new ByteBuffer[BatchPrefetcher.NUM_SLOTS];
+    for (int slot = 0; slot < BatchPrefetcher.NUM_SLOTS; slot++) {
+      trainingBatchBottlenecks[slot] =
+          allocateBuffer(getTrainBatchSize() * numBottleneckFeatures() * FLOAT_BYTES);
+      trainingBatchClasses[slot] = allocateBuffer(batchClassesNumElements * FLOAT_BYTES);
+    }
     zeroBatchClasses = allocateBuffer(batchClassesNumElements * FLOAT_BYTES);
     for (int idx = 0; idx < batchClassesNumElements; idx++) {
       zeroBatchClasses.putFloat(0);
     }
     zeroBatchClasses.rewind();
 
-    inferenceBottleneck = allocateBuffer(numBottleneckFeatures() * FLOAT_BYTES);
+    imageStaging = new StagingBufferPool(bottleneckModel.getImageBytes(), NUM_THREADS + 1);
+    bottleneckStaging =
+        new StagingBufferPool(numBottleneckFeatures() * FLOAT_BYTES, NUM_THREADS + 1);
+
+    trainHeadModel.bindStep(
+        trainingBatchBottlenecks, trainingBatchClasses, parameterSets, modelGradients);
+    optimizerModel.bindStep(parameterSets, modelGradients, optimizerStateSets);
+    trainStepModel = bindTrainStepModel(trainStepWrapper);
+  }
+
+  /** Wraps and binds the fused training step model, if it is present and compatible. */
+  private LiteTrainStepModel bindTrainStepModel(LiteModelWrapper trainStepWrapper) {
+    if (trainStepWrapper == null) {
+      return null;
+    }
+
+    LiteTrainStepModel model =
+        new LiteTrainStepModel(trainStepWrapper, trainHeadModel.getParameterSizes().length);
+    try {
+      model.bindStep(
+          trainingBatchBottlenecks,
+          trainingBatchClasses,
+          parameters.getParameterSets(),
+          parameters.getOptimizerStateSets());
+    } catch (IllegalArgumentException e) {
+      Log.w(TAG, "Training step model does not match the other models, it is not used", e);
+      model.close();
+      return null;
+    }
+    return model;
   }
 
 
@@ -230,37 +556,341 @@ public final class TransferLearningModel implements Closeable {
    * @param className ground truth label for image.
    */
   public Future<Void> addSample(float[] image, String className, Boolean isTraining) {
+    return addSample(FloatBuffer.wrap(image), className, isTraining);
+  }
+
+  /**
+   * Adds a new sample for training/testing from RGB values held in a buffer.
+   *
+   * <p>The values are copied before this method returns, so the buffer can be reused right
+   * away; its position is left unchanged.
+   *
+   * @param image image RGB data, from the buffer position to its limit.
+   * @param className ground truth label for image.
+   */
+  public Future<Void> addSample(FloatBuffer image, String className, Boolean isTraining) {
+    checkNotTerminating();
+    int classIdx = classIndex(className);
+    return addStagedSample(stageImage(image), true, classIdx, isTraining);
+  }
+
+  /**
+   * Adds a new sample for training/testing, reading the image straight from a buffer.
+   *
+   * <p>The buffer is passed to the bottleneck model without a copy, so it should be direct
+   * and in native byte order. It must not be modified until the returned future is resolved.
+   *
+   * @param image image RGB data as floats, from the buffer position to its limit.
+   * @param className ground truth label for image.
+   */
+  public Future<Void> addSample(ByteBuffer image, String className, Boolean isTraining) {
     checkNotTerminating();
+    int classIdx = classIndex(className);
+    return addStagedSample(imageView(image), false, classIdx, isTraining);
+  }
+
+  /**
+   * Adds a new sample for training/testing from 8-bit RGB pixels, which are scaled to [0; 1].
+   *
+   * <p>The pixels are converted before this method returns, so the buffer can be reused right
+   * away; its position is left unchanged.
+   *
+   * @param rgb one byte per channel, from the buffer position to its limit.
+   * @param className ground truth label for image.
+   */
+  public Future<Void> addRgbSample(ByteBuffer rgb, String className, Boolean isTraining) {
+    checkNotTerminating();
+    int classIdx = classIndex(className);
+    return addStagedSample(stageRgbImage(rgb), true, classIdx, isTraining);
+  }
+
+  // Generates the bottleneck of [image] in the background, giving the image back to
+  // [imageStaging] afterwards if [staged].
+  private Future<Void> addStagedSample(
+      ByteBuffer image, boolean staged, int classIdx, boolean isTraining) {
+    return executor.submit(() -> {
+      ByteBuffer bottleneck = bottleneckStaging.acquire();
+      try {
+        if (Thread.interrupted()) {
+          return null;
+        }
+        bottleneckModel.generateBottleneck(image, bottleneck);
 
-    if (!classes.containsKey(className)) {
+        if (isTraining)
+          trainingSamples.add(bottleneck, classIdx);
+        else
+          testingSamples.add(bottleneck, classIdx);
+      } finally {
+        bottleneckStaging.release(bottleneck);
+        if (staged) {
+          imageStaging.release(image);
+        }
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Adds several new samples for training/testing.
+   *
+   * <p>Bottlenecks are generated in background threads, several images per model invocation,
+   * which is considerably faster than adding samples one by one.
+   *
+   * @param images RGB data of every image.
+   * @param classNames ground truth label for every image.
+   * @param isTraining whether the samples are added for training or for testing.
+   * @return future that is resolved when all samples are added.
+   */
+  public Future<Void> addSamples(float[][] images, String[] classNames, Boolean isTraining) {
+    return addSamples(images, classNames, isTraining, null);
+  }
+
+  /**
+   * Adds several new samples for training/testing, and stores their bottlenecks in the
+   * bottleneck cache, if one is open.
+   *
+   * @param images RGB data of every image.
+   * @param classNames ground truth label for every image.
+   * @param isTraining whether the samples are added for training or for testing.
+   * @param cacheKeys key of every image in the bottleneck cache, or null not to cache them.
+   * @return future that is resolved when all samples are added.
+   */
+  public Future<Void> addSamples(
+      float[][] images, String[] classNames, Boolean isTraining, String[] cacheKeys) {
+    checkNotTerminating();
+
+    if (images.length != classNames.length) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d images, but %d class names", images.length, classNames.length));
+    }
+    if (cacheKeys != null && cacheKeys.length != images.length) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d images, but %d cache keys", images.length, cacheKeys.length));
+    }
+    int[] classIndices = classIndices(classNames);
+
+    List<Future<Void>> batches = new ArrayList<>();
+    for (int first = 0; first < images.length; first += BOTTLENECK_BATCH_SIZE) {
+      int batchFirst = first;
+      int batchCount = Math.min(BOTTLENECK_BATCH_SIZE, images.length - first);
+      batches.add(executor.submit(() -> {
+        ByteBuffer imageBuffer = imageBatch(images, batchFirst, batchCount);
+        addSampleBatch(imageBuffer, classIndices, cacheKeys, batchFirst, batchCount, isTraining);
+        return null;
+      }));
+    }
+    return new FutureGroup(batches);
+  }
+
+  /**
+   * Adds several new samples for training/testing from images packed in one buffer, and stores
+   * their bottlenecks in the bottleneck cache, if one is open.
+   *
+   * <p>Images are read straight from the buffer by the bottleneck model, without intermediate
+   * copies, so the buffer should be direct and in native byte order. It must not be modified
+   * until the returned future is resolved.
+   *
+   * @param images RGB data of the images, one after another, starting at the buffer position.
+   * @param numImages number of images in the buffer.
+   * @param classNames ground truth label for every image.
+   * @param isTraining whether the samples are added for training or for testing.
+   * @param cacheKeys key of every image in the bottleneck cache, or null not to cache them.
+   * @return future that is resolved when all samples are added.
+   */
+  public Future<Void> addSamples(
+      ByteBuffer images,
+      int numImages,
+      String[] classNames,
+      Boolean isTraining,
+      String[] cacheKeys) {
+    checkNotTerminating();
+
+    if (numImages != classNames.length) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d images, but %d class names", numImages, classNames.length));
+    }
+    if (cacheKeys != null && cacheKeys.length != numImages) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d images, but %d cache keys", numImages, cacheKeys.length));
+    }
+    int imageBytes = bottleneckModel.getImageBytes();
+    if (images.remaining() < numImages * imageBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Buffer holds %d bytes, but %d images need %d",
+          images.remaining(), numImages, numImages * imageBytes));
+    }
+    int[] classIndices = classIndices(classNames);
+
+    List<Future<Void>> batches = new ArrayList<>();
+    for (int first = 0; first < numImages; first += BOTTLENECK_BATCH_SIZE) {
+      int batchFirst = first;
+      int batchCount = Math.min(BOTTLENECK_BATCH_SIZE, numImages - first);
+      ByteBuffer imageBuffer = images.duplicate();
+      imageBuffer.position(images.position() + first * imageBytes);
+      imageBuffer.limit(imageBuffer.position() + batchCount * imageBytes);
+      ByteBuffer batchImages = imageBuffer.slice().order(ByteOrder.nativeOrder());
+      batches.add(executor.submit(() -> {
+        addSampleBatch(batchImages, classIndices, cacheKeys, batchFirst, batchCount, isTraining);
+        return null;
+      }));
+    }
+    return new FutureGroup(batches);
+  }
+
+  /**
+   * Adds samples whose bottlenecks are in the bottleneck cache, without running the bottleneck
+   * model. Runs on the calling thread.
+   *
+   * @param cacheKeys key of every sample in the bottleneck cache.
+   * @param classNames ground truth label for every sample.
+   * @param isTraining whether the samples are added for training or for testing.
+   * @return for every sample, whether it was found in the cache and added.
+   */
+  public boolean[] addCachedSamples(String[] cacheKeys, String[] classNames, Boolean isTraining) {
+    checkNotTerminating();
+
+    if (cacheKeys.length != classNames.length) {
+      throw new IllegalArgumentException(String.format(
+          "Got %d cache keys, but %d class names", cacheKeys.length, classNames.length));
+    }
+    int[] classIndices = classIndices(classNames);
+    boolean[] found = new boolean[cacheKeys.length];
+    BottleneckCache cache = bottleneckCache;
+    if (cache == null) {
+      return found;
+    }
+
+    ByteBuffer bottlenecks =
+        allocateBuffer(cacheKeys.length * numBottleneckFeatures() * FLOAT_BYTES);
+    int[] foundClassIndices = new int[cacheKeys.length];
+    int numFound = 0;
+    for (int sampleIdx = 0; sampleIdx < cacheKeys.length; sampleIdx++) {
+      if (cache.copyRow(cacheKeys[sampleIdx], bottlenecks)) {
+        found[sampleIdx] = true;
+        foundClassIndices[numFound++] = classIndices[sampleIdx];
+      }
+    }
+    bottlenecks.rewind();
+
+    SampleStore store = isTraining ? trainingSamples : testingSamples;
+    store.addAll(bottlenecks, foundClassIndices, numFound);
+    return found;
+  }
+
+  /**
+   * Opens a file where bottlenecks are kept across runs, creating it if needed.
+   *
+   * <p>The file is tied to the current base model: bottlenecks cached for another model are
+   * discarded. Bottlenecks of samples added with cache keys are stored in it, and can later be
+   * added back with {@link #addCachedSamples}.
+   *
+   * @param path where the cache is stored.
+   * @throws IOException if the file cannot be opened or mapped.
+   */
+  public void openBottleneckCache(File path) throws IOException {
+    checkNotTerminating();
+    BottleneckCache cache =
+        BottleneckCache.open(
+            path, bottleneckModel.getModelHash(), numBottleneckFeatures() * FLOAT_BYTES);
+    BottleneckCache previous = bottleneckCache;
+    bottleneckCache = cache;
+    if (previous != null) {
+      previous.close();
+    }
+  }
+
+  private int[] classIndices(String[] classNames) {
+    int[] classIndices = new int[classNames.length];
+    for (int sampleIdx = 0; sampleIdx < classNames.length; sampleIdx++) {
+      classIndices[sampleIdx] = classIndex(classNames[sampleIdx]);
+    }
+    return classIndices;
+  }
+
+  private int classIndex(String className) {
+    Integer classIdx = classes.get(className);
+    if (classIdx == null) {
       throw new IllegalArgumentException(String.format(
           "Class \"%s\" is not one of the classes recognized by the model", className));
     }
+    return classIdx;
+  }
 
-    return executor.submit(() -> {
-      ByteBuffer imageBuffer = allocateBuffer(image.length * FLOAT_BYTES);
-      for (float f : image) {
+  private ByteBuffer imageBatch(float[][] images, int first, int count) {
+    int imageBytes = bottleneckModel.getImageBytes();
+    ByteBuffer imageBuffer = allocateBuffer(count * imageBytes);
+    for (int sampleIdx = first; sampleIdx < first + count; sampleIdx++) {
+      if (images[sampleIdx].length * FLOAT_BYTES != imageBytes) {
+        throw new IllegalArgumentException(String.format(
+            "Image %d has %d values, but the model expects %d",
+            sampleIdx, images[sampleIdx].length, imageBytes / FLOAT_BYTES));
+      }
+      for (float f : images[sampleIdx]) {
         imageBuffer.putFloat(f);
       }
-      imageBuffer.rewind();
+    }
+    imageBuffer.rewind();
+    return imageBuffer;
+  }
 
-      if (Thread.interrupted()) {
-        return null;
+  // Generates bottlenecks for [count] images held in [images] from its start, into [out] from its
+  // start, several images per invocation when the model supports it. Rewinds both buffers.
+  private void generateBottlenecks(ByteBuffer images, int count, ByteBuffer out) {
+    int imageBytes = bottleneckModel.getImageBytes();
+    int bottleneckBytes = numBottleneckFeatures() * FLOAT_BYTES;
+    int done = 0;
+    while (done < count) {
+      int batchSize = batchedBottlenecksSupported ? count - done : 1;
+      images.position(done * imageBytes);
+      out.position(done * bottleneckBytes);
+      try {
+        bottleneckModel.generateBottlenecks(images, batchSize, out);
+      } catch (UnsupportedOperationException e) {
+        if (batchSize == 1) {
+          throw e;
+        }
+        Log.w(TAG, "Bottleneck model needs single images, samples are processed one by one", e);
+        batchedBottlenecksSupported = false;
+        continue;
       }
-      ByteBuffer bottleneck = bottleneckModel.generateBottleneck(imageBuffer, null);
+      done += batchSize;
+    }
+    images.rewind();
+    out.rewind();
+  }
 
-      trainingLock.lockInterruptibly();
+  // Generates bottlenecks for [count] images held in [imageBuffer] from its start, which are
+  // samples [first] to [first + count] of [classIndices] and [cacheKeys].
+  private void addSampleBatch(
+      ByteBuffer imageBuffer,
+      int[] classIndices,
+      String[] cacheKeys,
+      int first,
+      int count,
+      boolean isTraining) {
+    int bottleneckBytes = numBottleneckFeatures() * FLOAT_BYTES;
+
+    if (Thread.interrupted()) {
+      return;
+    }
+    ByteBuffer bottlenecks = allocateBuffer(count * bottleneckBytes);
+    generateBottlenecks(imageBuffer, count, bottlenecks);
+
+    BottleneckCache cache = bottleneckCache;
+    if (cacheKeys != null && cache != null) {
       try {
-        if (isTraining)
-          trainingSamples.add(new TrainingSample(bottleneck, className));
-        else
-          testingSamples.add(new TestingSample(bottleneck, className));
-      } finally {
-        trainingLock.unlock();
+        for (int idx = 0; idx < count; idx++) {
+          bottlenecks.position(idx * bottleneckBytes);
+          cache.put(cacheKeys[first + idx], bottlenecks);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Could not store bottlenecks in the cache", e);
       }
+      bottlenecks.rewind();
+    }
 
-      return null;
-    });
+    SampleStore store = isTraining ? trainingSamples : testingSamples;
+    store.addAll(bottlenecks, Arrays.copyOfRange(classIndices, first, first + count), count);
   }
 
   /**
@@ -271,6 +901,25 @@ public final class TransferLearningModel implements Closeable {
    * @return future that is resolved when training is finished.
    */
   public Future<Void> train(int numEpochs, LossConsumer lossConsumer) {
+    return train(numEpochs, lossConsumer, NO_RUN_ID);
+  }
+
+  /**
+   * Trains the model on the previously added data samples, as a run that can be resumed.
+   *
+   * <p>With {@link #enableResumeCheckpoints}, the progress of the run is saved along with the
+   * parameters and optimizer state. If the checkpoint holds an earlier attempt of the same run,
+   * e.g. one stopped with the process, training restores it and goes on from its last saved
+   * batch; a finished run is not trained again. Loss values are only reported for the epochs
+   * trained by this call.
+   *
+   * @param numEpochs number of epochs to train for.
+   * @param lossConsumer callback to receive loss values, may be null.
+   * @param runId identifies the run, e.g. a federated round. {@link #NO_RUN_ID} never resumes
+   *     nor saves progress.
+   * @return future that is resolved when training is finished.
+   */
+  public Future<Void> train(int numEpochs, LossConsumer lossConsumer, long runId) {
     checkNotTerminating();
 
     Log.e("DDFF", getTrainBatchSize() + "");
@@ -286,72 +935,150 @@ public final class TransferLearningModel implements Closeable {
         () -> {
           trainingLock.lock();
           try {
-            epochLoop:
-            for (int epoch = 0; epoch < numEpochs; epoch++) {
-              float totalLoss = 0;
-              int numBatchesProcessed = 0;
-
-              for (List<TrainingSample> batch : trainingBatches()) {
-                if (Thread.interrupted()) {
-                  break epochLoop;
+            long startNanos = System.nanoTime();
+            File checkpointPath = runId == NO_RUN_ID ? null : resumeCheckpointPath;
+            int checkpointInterval = resumeCheckpointInterval;
+            TrainingProgress progress =
+                new TrainingProgress(
+                    runId,
+                    numEpochs,
+                    trainingSamples.size(),
+                    sampler.getSeed(),
+                    sampler.getMode().ordinal(),
+                    epochsStarted,
+                    0,
+                    0);
+            if (checkpointPath != null) {
+              progress = resumeTraining(checkpointPath, progress);
+            }
+            epochsStarted = progress.firstSamplerEpoch + progress.epoch;
+            batchesToSkip = progress.batch;
+
+            boolean prefetch = prefetchEnabled;
+            BatchPrefetcher prefetcher =
+                new BatchPrefetcher(
+                    trainingBatchSource,
+                    numEpochs - progress.epoch,
+                    prefetch ? prefetchExecutor : null);
+
+            int numSamplesProcessed = 0;
+            int numBatchesTotal = 0;
+            long gradientNanos = 0;
+            long optimizerNanos = 0;
+            // Last position whose parameters are published, and how many batches ago it was saved.
+            TrainingProgress position = progress;
+            int batchesSinceCheckpoint = 0;
+            boolean interrupted = false;
+
+            prefetcher.start();
+            try {
+              epochLoop:
+              for (int epoch = progress.epoch; epoch < numEpochs; epoch++) {
+                float totalLoss = 0;
+                int numBatchesProcessed = 0;
+                // Batches taken from this epoch so far, including those of an earlier attempt.
+                int epochBatch = epoch == progress.epoch ? progress.batch : 0;
+
+                while (true) {
+                  if (Thread.interrupted()) {
+                    interrupted = true;
+                    break epochLoop;
+                  }
+
+                  int slot;
+                  try {
+                    slot = prefetcher.take();
+                  } catch (InterruptedException e) {
+                    interrupted = true;
+                    break epochLoop;
+                  }
+                  int batchSize = prefetcher.batchSize(slot);
+                  if (batchSize == 0) {
+                    prefetcher.release(slot);
+                    break;
+                  }
+                  boolean endsEpoch = trainingBatchEndsEpoch[slot];
+                  epochBatch++;
+
+                  // The step writes into the next set of the ring, once no reader has it pinned.
+                  int parameterSet = parameters.current().setIdx;
+                  int nextParameterSet = parameters.acquireNextSet();
+
+                  long gradientStartNanos = System.nanoTime();
+                  float loss;
+                  try {
+                    try {
+                      loss = computeStep(slot, parameterSet, batchSize);
+                    } catch (UnsupportedOperationException e) {
+                      Log.w(
+                          TAG, "Training model needs full batches, partial batches are padded", e);
+                      partialBatchesSupported = false;
+                      repeatRows(slot, batchSize);
+                      batchSize = getTrainBatchSize();
+                      loss = computeStep(slot, parameterSet, batchSize);
+                    }
+                  } finally {
+                    // The gradient pass has consumed the batch, the producer can refill the slot.
+                    prefetcher.release(slot);
+                  }
+                  long optimizerStartNanos = System.nanoTime();
+                  gradientNanos += optimizerStartNanos - gradientStartNanos;
+                  totalLoss += loss;
+                  numBatchesProcessed++;
+                  numSamplesProcessed += batchSize;
+
+                  if (trainStepModel == null) {
+                    optimizerModel.performStep(parameterSet);
+                    optimizerNanos += System.nanoTime() - optimizerStartNanos;
+                  }
+
+                  parameters.publish(nextParameterSet);
+
+                  // A position at the end of an epoch is saved as the start of the next one,
+                  // so that a resumed run never starts with an epoch that has no batches left.
+                  // The end is the one the sampler set when the epoch started, which still
+                  // holds if samples were added since.
+                  position =
+                      endsEpoch ? progress.at(epoch + 1, 0) : progress.at(epoch, epochBatch);
+                  batchesSinceCheckpoint++;
+                  if (checkpointPath != null && batchesSinceCheckpoint >= checkpointInterval) {
+                    saveTrainingProgress(checkpointPath, position);
+                    batchesSinceCheckpoint = 0;
+                  }
                 }
-
-                trainingBatchClasses.put(zeroBatchClasses);
-                trainingBatchClasses.rewind();
-                zeroBatchClasses.rewind();
-
-                for (int sampleIdx = 0; sampleIdx < batch.size(); sampleIdx++) {
-                  TrainingSample sample = batch.get(sampleIdx);
-                  trainingBatchBottlenecks.put(sample.bottleneck);
-                  sample.bottleneck.rewind();
-
-                  // Fill trainingBatchClasses with one-hot.
-                  int position =
-                      (sampleIdx * classes.size() + classes.get(sample.className)) * FLOAT_BYTES;
-                  trainingBatchClasses.putFloat(position, 1);
+                position = progress.at(epoch + 1, 0);
+                numBatchesTotal += numBatchesProcessed;
+                if (numBatchesProcessed == 0) {
+                  continue;
                 }
-                trainingBatchBottlenecks.rewind();
-
-                float loss =
-                    trainHeadModel.calculateGradients(
-                        trainingBatchBottlenecks,
-                        trainingBatchClasses,
-                        modelParameters,
-                        modelGradients);
-                totalLoss += loss;
-                numBatchesProcessed++;
-
-                optimizerModel.performStep(
-                    modelParameters,
-                    modelGradients,
-                    optimizerState,
-                    nextModelParameters,
-                    nextOptimizerState);
-
-                ByteBuffer[] swapBufferArray;
-
-                // Swap optimizer state with its next version.
-                swapBufferArray = optimizerState;
-                optimizerState = nextOptimizerState;
-                nextOptimizerState = swapBufferArray;
-
-                // Swap model parameters with their next versions.
-                parameterLock.writeLock().lock();
-                try {
-                  swapBufferArray = modelParameters;
-                  modelParameters = nextModelParameters;
-                  nextModelParameters = swapBufferArray;
-                } finally {
-                  parameterLock.writeLock().unlock();
+                float avgLoss = totalLoss / numBatchesProcessed;
+                Log.e("Avg Loss", avgLoss +"");
+                if (lossConsumer != null) {
+                  lossConsumer.onLoss(epoch, avgLoss);
                 }
               }
-              float avgLoss = totalLoss / numBatchesProcessed;
-              Log.e("Avg Loss", avgLoss +"");
-              if (lossConsumer != null) {
-                lossConsumer.onLoss(epoch, avgLoss);
-              }
+            } finally {
+              prefetcher.stop();
             }
 
+            // A finished run is saved too, so that it is not trained again if the process stops
+            // before its results are used.
+            if (checkpointPath != null && (!interrupted || batchesSinceCheckpoint > 0)) {
+              saveTrainingProgress(checkpointPath, position);
+            }
+
+            lastTrainingStats =
+                new TrainingStats(
+                    numSamplesProcessed,
+                    numBatchesTotal,
+                    System.nanoTime() - startNanos,
+                    prefetcher.getAssembleNanos(),
+                    prefetcher.getWaitNanos(),
+                    gradientNanos,
+                    optimizerNanos,
+                    prefetch,
+                    trainStepModel != null);
+            Log.i(TAG, lastTrainingStats.toString());
             return null;
           } finally {
             trainingLock.unlock();
@@ -359,6 +1086,145 @@ public final class TransferLearningModel implements Closeable {
         });
   }
 
+  // Assembles training batches into the slots of the prefetcher. Only used while [trainingLock]
+  // is held, and by a single thread at a time.
+  private final BatchPrefetcher.BatchSource trainingBatchSource =
+      new BatchPrefetcher.BatchSource() {
+        @Override
+        public void startEpoch(int epoch) {
+          sampler.startEpoch(epochsStarted++, trainingSamples.size());
+          sampler.skipBatches(batchesToSkip, getTrainBatchSize());
+          batchesToSkip = 0;
+        }
+
+        @Override
+        public int fillNext(int slot) {
+          if (!sampler.hasNextBatch()) {
+            return 0;
+          }
+          int batchSize = sampler.nextBatch(getTrainBatchSize());
+          trainingBatchEndsEpoch[slot] = !sampler.hasNextBatch();
+
+          ByteBuffer batchBottlenecks = trainingBatchBottlenecks[slot];
+          ByteBuffer batchClasses = trainingBatchClasses[slot];
+          batchClasses.put(zeroBatchClasses);
+          batchClasses.rewind();
+          zeroBatchClasses.rewind();
+
+          int[] order = sampler.order();
+          int batchOffset = sampler.batchOffset();
+          trainingReader.gather(order, batchOffset, batchSize, batchBottlenecks);
+          for (int sampleIdx = 0; sampleIdx < batchSize; sampleIdx++) {
+            putOneHot(batchClasses, sampleIdx, order[batchOffset + sampleIdx]);
+          }
+          if (batchSize < getTrainBatchSize() && !partialBatchesSupported) {
+            // The model only takes full batches: the last one is completed with the first
+            // samples of the epoch.
+            for (int sampleIdx = batchSize; sampleIdx < getTrainBatchSize(); sampleIdx++) {
+              int orderIdx = (sampleIdx - batchSize) % trainingSamples.size();
+              trainingReader.gather(order, orderIdx, 1, batchBottlenecks);
+              putOneHot(batchClasses, sampleIdx, order[orderIdx]);
+            }
+            batchSize = getTrainBatchSize();
+          }
+          batchBottlenecks.rewind();
+          return batchSize;
+        }
+
+        // Fills batchClasses with one-hot.
+        private void putOneHot(ByteBuffer batchClasses, int row, int sample) {
+          int label = trainingSamples.getLabel(sample);
+          int position = (row * classes.size() + label) * FLOAT_BYTES;
+          batchClasses.putFloat(position, 1);
+        }
+      };
+
+  // Runs the gradient pass, and the optimizer too for a fused step, on the batch in [slot].
+  private float computeStep(int slot, int parameterSet, int batchSize) {
+    if (trainStepModel != null) {
+      return trainStepModel.performStep(slot, parameterSet, batchSize);
+    }
+    return trainHeadModel.calculateGradients(slot, parameterSet, batchSize);
+  }
+
+  // Completes the first [batchSize] rows of [slot] to a full batch by repeating them, for a
+  // batch assembled before the model turned out to need full batches.
+  private void repeatRows(int slot, int batchSize) {
+    int bottleneckBytes = numBottleneckFeatures() * FLOAT_BYTES;
+    int classBytes = classes.size() * FLOAT_BYTES;
+    ByteBuffer bottlenecks = trainingBatchBottlenecks[slot].duplicate();
+    ByteBuffer batchClasses = trainingBatchClasses[slot].duplicate();
+    for (int row = batchSize; row < getTrainBatchSize(); row++) {
+      int source = row % batchSize;
+      copyRow(bottlenecks, source, row, bottleneckBytes);
+      copyRow(batchClasses, source, row, classBytes);
+    }
+  }
+
+  private static void copyRow(ByteBuffer buffer, int sourceRow, int targetRow, int rowBytes) {
+    ByteBuffer source = buffer.duplicate();
+    source.limit((sourceRow + 1) * rowBytes).position(sourceRow * rowBytes);
+    buffer.limit((targetRow + 1) * rowBytes).position(targetRow * rowBytes);
+    buffer.put(source);
+  }
+
+  // Restores the resume checkpoint of an earlier attempt of the same run, if there is one, and
+  // returns where training should go on from. Must hold [trainingLock].
+  private TrainingProgress resumeTraining(File path, TrainingProgress fresh) {
+    if (!path.exists()) {
+      return fresh;
+    }
+
+    int setIdx = parameters.acquireNextSet();
+    long[] values = new long[TrainingProgress.NUM_VALUES];
+    try {
+      ParameterCheckpoint.read(
+          path,
+          parameters.getParameters(setIdx),
+          parameterShapes,
+          parameters.getOptimizerState(setIdx),
+          optimizerStateShapes,
+          values);
+    } catch (IOException e) {
+      Log.w(TAG, "Ignoring unreadable resume checkpoint " + path, e);
+      return fresh;
+    }
+
+    TrainingProgress saved = TrainingProgress.fromArray(values);
+    if (!saved.isSameRun(fresh)) {
+      return fresh;
+    }
+    parameters.publish(setIdx);
+    sampler.setSeed(saved.seed);
+    Log.i(TAG, "Resuming training from " + saved);
+    return saved;
+  }
+
+  // Saves the published parameters, optimizer state and training position. Failures are logged
+  // only, as training can go on without checkpoints. Must hold [trainingLock].
+  private void saveTrainingProgress(File path, TrainingProgress position) {
+    // File channels are closed by interrupts, which must not prevent the last checkpoint.
+    boolean interrupted = Thread.interrupted();
+    ParameterSets.Version version = parameters.pin();
+    try {
+      ParameterCheckpoint.write(
+          path,
+          version.number,
+          parameters.getParameters(version.setIdx),
+          parameterShapes,
+          parameters.getOptimizerState(version.setIdx),
+          optimizerStateShapes,
+          position.toArray());
+    } catch (IOException e) {
+      Log.w(TAG, "Could not save training progress to " + path, e);
+    } finally {
+      parameters.unpin(version);
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   public Boolean trainingInProgress(){
 
     if (trainingLock.tryLock()){
@@ -372,68 +1238,152 @@ public final class TransferLearningModel implements Closeable {
 
 
   public Pair<Float, Float> getTestStatistics() {
-    float[] confidences;
-    Prediction[] predictions = new Prediction[classes.size()];
-    parameterLock.readLock().lock();
-    float loss = 0.0f;
-    int correct = 0;
-    try {
-      for (int sampleIdx = 0; sampleIdx < testingSamples.size(); sampleIdx++) {
-        TestingSample sample = testingSamples.get(sampleIdx);
-        confidences = inferenceModel.runInference(sample.bottleneck, modelParameters);
+    EvaluationStats stats = evaluate(1);
+    Log.e("Accuracy", stats.getAccuracy() + "--" + stats.getLoss());
+    return Pair.create(stats.getLoss(), stats.getAccuracy());
+  }
 
-        for (int classIdx = 0; classIdx < classes.size(); classIdx++) {
-          predictions[classIdx] = new Prediction(classesByIdx[classIdx], confidences[classIdx]);
-        }
-        Arrays.sort(predictions, (a, b) -> -Float.compare(a.confidence, b.confidence));
-        if (predictions[0].className.equals(sample.className)) correct++;
-        loss += getLLLoss(predictions, sample.className);
+  /**
+   * Evaluates the model on the testing samples.
+   *
+   * <p>Samples are passed through the inference model in batches, split across several
+   * interpreters that run in parallel.
+   *
+   * @param k number of most likely classes in which a label counts as a top-k hit.
+   * @return loss, accuracy, top-k accuracy and per-class counts.
+   */
+  public EvaluationStats evaluate(int k) {
+    checkNotTerminating();
+    if (k < 1) {
+      throw new IllegalArgumentException(String.format("k must be at least 1, got %d", k));
+    }
+
+    // Samples are only ever appended, so the same count means the same samples.
+    EvaluationStats memo = lastEvaluation;
+    if (memo != null
+        && memo.getParameterVersion() == parameters.current().number
+        && memo.getNumSamples() == testingSamples.size()
+        && memo.getTopK() == k) {
+      return memo;
+    }
+
+    inferenceLock.readLock().lock();
+    try {
+      checkNotTerminating();
+      ParameterSets.Version version = parameters.pin();
+      try {
+        EvaluationStats stats =
+            evaluationEngine.evaluate(
+                testingSamples,
+                parameters.getParameters(version.setIdx),
+                k,
+                version.number,
+                executor);
+        lastEvaluation = stats;
+        return stats;
+      } finally {
+        parameters.unpin(version);
       }
     } finally {
-      parameterLock.readLock().unlock();
+      inferenceLock.readLock().unlock();
     }
+  }
 
-      Log.e("Accuracy", (float) correct/testingSamples.size() + "--" + loss / testingSamples.size() );
-      return Pair.create(loss/testingSamples.size(), (float) correct /testingSamples.size());
+  /**
+   * Version of the parameter values, which changes whenever they do: after every training step,
+   * and on {@link #updateParameters} or {@link #loadParameters} calls that bring new values.
+   */
+  public long getParameterVersion() {
+    return parameters.current().number;
   }
 
-  private float getLLLoss(Prediction[] predictions, String gt){
-    for (int i = 0; i < predictions.length; i++){
-      if (predictions[i].className.equals(gt)){
-        return (float) (-1.0 * Math.log(predictions[i].confidence));
-      }
-    }
-    return 0.0f;
+  /**
+   * Takes a consistent snapshot of the current parameter values, without copying them.
+   *
+   * <p>The values stay unchanged until the snapshot is closed, while training and updates go on
+   * with other buffers; training waits for the snapshot to be closed before reusing its buffers,
+   * so it should be closed as soon as possible.
+   */
+  public ParameterSnapshot snapshotParameters() {
+    return new ParameterSnapshot(parameters, parameters.pin());
+  }
+
+  /**
+   * Returns the buffers that receive new parameter values for {@link #updateParameters}, one per
+   * trainable parameter and sized after it. There is a single binder per model: it should only
+   * be filled by one thread at a time.
+   */
+  public ParameterBinder getParameterBinder() {
+    return parameterBinder;
   }
 
   /**
    * Runs model inference on a given image.
+   *
+   * <p>Safe to call from several threads: up to {@link #getMaxConcurrentPredictions()} calls
+   * run in parallel, each with its own interpreters and buffers.
+   *
    * @param image image RGB data.
    * @return predictions sorted by confidence decreasing. Can be null if model is terminating.
    */
   public Prediction[] predict(float[] image) {
+    return predict(FloatBuffer.wrap(image));
+  }
+
+  /**
+   * Runs model inference on RGB values held in a buffer. The buffer position is left unchanged.
+   *
+   * @param image image RGB data, from the buffer position to its limit.
+   * @return predictions sorted by confidence decreasing. Can be null if model is terminating.
+   */
+  public Prediction[] predict(FloatBuffer image) {
+    checkNotTerminating();
+    return predictStaged(stageImage(image), true);
+  }
+
+  /**
+   * Runs model inference on an image read straight from a buffer, which should be direct and
+   * in native byte order.
+   *
+   * @param image image RGB data as floats, from the buffer position to its limit.
+   * @return predictions sorted by confidence decreasing. Can be null if model is terminating.
+   */
+  public Prediction[] predict(ByteBuffer image) {
     checkNotTerminating();
-    inferenceLock.lock();
+    return predictStaged(imageView(image), false);
+  }
 
+  /**
+   * Runs model inference on 8-bit RGB pixels, which are scaled to [0; 1].
+   *
+   * @param rgb one byte per channel, from the buffer position to its limit.
+   * @return predictions sorted by confidence decreasing. Can be null if model is terminating.
+   */
+  public Prediction[] predictRgb(ByteBuffer rgb) {
+    checkNotTerminating();
+    return predictStaged(stageRgbImage(rgb), true);
+  }
+
+  private Prediction[] predictStaged(ByteBuffer image, boolean staged) {
+    inferenceLock.readLock().lock();
+
+    InferenceSession session = null;
     try {
       if (isTerminating) {
         return null;
       }
 
-      ByteBuffer imageBuffer = allocateBuffer(image.length * FLOAT_BYTES);
-      for (float f : image) {
-        imageBuffer.putFloat(f);
-      }
-      imageBuffer.rewind();
-
-      ByteBuffer bottleneck = bottleneckModel.generateBottleneck(imageBuffer, inferenceBottleneck);
+      session = inferenceSessions.checkout();
+      ByteBuffer bottleneck = bottleneckModel.generateBottleneck(image, session.bottleneck);
 
       float[] confidences;
-      parameterLock.readLock().lock();
+      ParameterSets.Version version = parameters.pin();
       try {
-        confidences = inferenceModel.runInference(bottleneck, modelParameters);
+        confidences =
+            session.inferenceModel.runInference(
+                bottleneck, parameters.getParameters(version.setIdx));
       } finally {
-        parameterLock.readLock().unlock();
+        parameters.unpin(version);
       }
 
       Prediction[] predictions = new Prediction[classes.size()];
@@ -444,34 +1394,294 @@ public final class TransferLearningModel implements Closeable {
       Arrays.sort(predictions, (a, b) -> -Float.compare(a.confidence, b.confidence));
       return predictions;
     } finally {
-      inferenceLock.unlock();
+      if (session != null) {
+        inferenceSessions.release(session);
+      }
+      inferenceLock.readLock().unlock();
+      if (staged) {
+        imageStaging.release(image);
+      }
+    }
+  }
+
+  /**
+   * Runs model inference on a given image and keeps the [k] most likely classes.
+   *
+   * <p>Unlike {@link #predict(float[])}, results are written to caller arrays and classes are
+   * selected without sorting all of them, so the cost stays flat as the number of classes grows.
+   *
+   * @param image image RGB data.
+   * @param k how many classes to keep.
+   * @param outClassIdx where to store the class indices, most likely first.
+   * @param outScores where to store the class confidences.
+   * @return number of classes written, i.e. the smallest of [k] and the number of classes, or 0
+   *     if the model is terminating.
+   */
+  public int predictTopK(float[] image, int k, int[] outClassIdx, float[] outScores) {
+    checkNotTerminating();
+    return predictTopKStaged(stageImage(FloatBuffer.wrap(image)), true, k, outClassIdx, outScores);
+  }
+
+  /**
+   * Runs model inference on an image read straight from a buffer, and keeps the [k] most likely
+   * classes. The buffer should be direct and in native byte order; when it holds exactly one
+   * image from position 0, no allocation is made.
+   *
+   * @param image image RGB data as floats, from the buffer position to its limit.
+   * @param k how many classes to keep.
+   * @param outClassIdx where to store the class indices, most likely first.
+   * @param outScores where to store the class confidences.
+   * @return number of classes written, i.e. the smallest of [k] and the number of classes, or 0
+   *     if the model is terminating.
+   */
+  public int predictTopK(ByteBuffer image, int k, int[] outClassIdx, float[] outScores) {
+    checkNotTerminating();
+    return predictTopKStaged(imageView(image), false, k, outClassIdx, outScores);
+  }
+
+  private int predictTopKStaged(
+      ByteBuffer image, boolean staged, int k, int[] outClassIdx, float[] outScores) {
+    int numResults = checkTopKOutputs(1, k, outClassIdx, outScores);
+    inferenceLock.readLock().lock();
+
+    InferenceSession session = null;
+    try {
+      if (isTerminating) {
+        return 0;
+      }
+
+      session = inferenceSessions.checkout();
+      bottleneckModel.generateBottleneck(image, session.bottleneck);
+      ParameterSets.Version version = parameters.pin();
+      try {
+        session.inferenceModel.runInference(
+            session.bottleneck,
+            1,
+            parameters.getParameters(version.setIdx),
+            session.predictions);
+      } finally {
+        parameters.unpin(version);
+      }
+
+      return TopKSelector.select(
+          session.predictions, 0, classes.size(), numResults, outClassIdx, outScores, 0);
+    } finally {
+      if (session != null) {
+        inferenceSessions.release(session);
+      }
+      inferenceLock.readLock().unlock();
+      if (staged) {
+        imageStaging.release(image);
+      }
     }
   }
 
+  /**
+   * Runs model inference on several images, passing them through the bottleneck and inference
+   * models in as few invocations as the models allow, and keeps the [k] most likely classes of
+   * each image.
+   *
+   * <p>Results of image [i] are stored from index [i * k] of the output arrays. Repeated calls
+   * with the same number of images reuse the batch buffers and interpreter input sizes of the
+   * previous call instead of reallocating them, all the more when [images] holds exactly the
+   * images, from position 0.
+   *
+   * @param images RGB data of the images, one after another, starting at the buffer position.
+   *     The position is left unchanged.
+   * @param numImages number of images in the buffer.
+   * @param k how many classes to keep per image.
+   * @param outClassIdx where to store the class indices, at least [numImages * k] long.
+   * @param outScores where to store the class confidences, at least [numImages * k] long.
+   * @return number of classes written per image, i.e. the smallest of [k] and the number of
+   *     classes, or 0 if the model is terminating.
+   */
+  public int predictBatch(
+      ByteBuffer images, int numImages, int k, int[] outClassIdx, float[] outScores) {
+    checkNotTerminating();
+    int numResults = checkTopKOutputs(numImages, k, outClassIdx, outScores);
+    int imageBytes = bottleneckModel.getImageBytes();
+    if (images.remaining() < numImages * imageBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Buffer holds %d bytes, but %d images need %d",
+          images.remaining(), numImages, numImages * imageBytes));
+    }
+    if (numImages == 0) {
+      return numResults;
+    }
+
+    inferenceLock.readLock().lock();
+    InferenceSession session = null;
+    try {
+      if (isTerminating) {
+        return 0;
+      }
+
+      int bottleneckBytes = numBottleneckFeatures() * FLOAT_BYTES;
+      int predictionBytes = classes.size() * FLOAT_BYTES;
+      session = inferenceSessions.checkout();
+      ByteBuffer batchBottlenecks = session.batchBottlenecks(numImages);
+      ByteBuffer batchPredictions = session.batchPredictions(numImages);
+
+      ByteBuffer imageBatch = images;
+      if (images.position() != 0 || images.capacity() != numImages * imageBytes) {
+        imageBatch = images.duplicate();
+        imageBatch.limit(imageBatch.position() + numImages * imageBytes);
+        imageBatch = imageBatch.slice().order(ByteOrder.nativeOrder());
+      }
+      generateBottlenecks(imageBatch, numImages, batchBottlenecks);
+
+      ParameterSets.Version version = parameters.pin();
+      try {
+        runBatchInference(
+            session,
+            parameters.getParameters(version.setIdx),
+            numImages,
+            bottleneckBytes,
+            predictionBytes);
+      } finally {
+        parameters.unpin(version);
+      }
+
+      for (int imageIdx = 0; imageIdx < numImages; imageIdx++) {
+        TopKSelector.select(
+            batchPredictions, imageIdx * predictionBytes, classes.size(), numResults,
+            outClassIdx, outScores, imageIdx * k);
+      }
+      return numResults;
+    } finally {
+      if (session != null) {
+        inferenceSessions.release(session);
+      }
+      inferenceLock.readLock().unlock();
+    }
+  }
+
+  // Runs the inference model of a session over its batch bottlenecks into its batch
+  // predictions, one sample at a time if the model does not support batches.
+  private void runBatchInference(
+      InferenceSession session,
+      ByteBuffer[] modelParameters,
+      int numImages,
+      int bottleneckBytes,
+      int predictionBytes) {
+    ByteBuffer batchBottlenecks = session.batchBottlenecks(numImages);
+    ByteBuffer batchPredictions = session.batchPredictions(numImages);
+    if (batchedInferenceSupported) {
+      try {
+        session.inferenceModel.runInference(
+            batchBottlenecks, numImages, modelParameters, batchPredictions);
+        return;
+      } catch (UnsupportedOperationException e) {
+        Log.w(TAG, "Inference model needs single samples, samples are processed one by one", e);
+        batchedInferenceSupported = false;
+      }
+    }
+
+    for (int sampleIdx = 0; sampleIdx < numImages; sampleIdx++) {
+      session.inferenceModel.runInference(
+          rowView(batchBottlenecks, sampleIdx, bottleneckBytes),
+          1,
+          modelParameters,
+          rowView(batchPredictions, sampleIdx, predictionBytes));
+    }
+  }
+
+  private static ByteBuffer rowView(ByteBuffer buffer, int rowIdx, int rowBytes) {
+    ByteBuffer row = buffer.duplicate();
+    row.position(rowIdx * rowBytes);
+    row.limit((rowIdx + 1) * rowBytes);
+    return row.slice().order(ByteOrder.nativeOrder());
+  }
+
+  // Checks that the output arrays of a top-k prediction have room for [numImages] results.
+  private int checkTopKOutputs(int numImages, int k, int[] outClassIdx, float[] outScores) {
+    if (k < 1) {
+      throw new IllegalArgumentException(String.format("k must be at least 1, got %d", k));
+    }
+    if (outClassIdx.length < numImages * k || outScores.length < numImages * k) {
+      throw new IllegalArgumentException(String.format(
+          "Output arrays must hold %d results, got %d class indices and %d scores",
+          numImages * k, outClassIdx.length, outScores.length));
+    }
+    return Math.min(k, classes.size());
+  }
+
+  // Copies float RGB values into a staging buffer.
+  private ByteBuffer stageImage(FloatBuffer image) {
+    int imageBytes = bottleneckModel.getImageBytes();
+    if (image.remaining() * FLOAT_BYTES != imageBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Image has %d values, but the model expects %d",
+          image.remaining(), imageBytes / FLOAT_BYTES));
+    }
+    ByteBuffer staged = imageStaging.acquire();
+    staged.asFloatBuffer().put(image.duplicate());
+    return staged;
+  }
+
+  // Scales 8-bit RGB values to [0; 1] into a staging buffer.
+  private ByteBuffer stageRgbImage(ByteBuffer rgb) {
+    int numValues = bottleneckModel.getImageBytes() / FLOAT_BYTES;
+    if (rgb.remaining() != numValues) {
+      throw new IllegalArgumentException(String.format(
+          "Image has %d bytes, but the model expects %d", rgb.remaining(), numValues));
+    }
+    ByteBuffer staged = imageStaging.acquire();
+    int position = rgb.position();
+    for (int idx = 0; idx < numValues; idx++) {
+      staged.putFloat((rgb.get(position + idx) & 0xFF) * (1 / 255.0f));
+    }
+    staged.rewind();
+    return staged;
+  }
+
+  // View of a caller image buffer that starts at its position, as the interpreter expects.
+  private ByteBuffer imageView(ByteBuffer image) {
+    int imageBytes = bottleneckModel.getImageBytes();
+    if (image.remaining() != imageBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Image has %d bytes, but the model expects %d", image.remaining(), imageBytes));
+    }
+    if (image.position() == 0 && image.capacity() == imageBytes) {
+      return image;
+    }
+    return image.slice().order(ByteOrder.nativeOrder());
+  }
+
   /**
    * Writes the current values of the model parameters to a writable channel.
    *
    * The written values can be restored later using {@link #loadParameters(ScatteringByteChannel)},
    * under condition that the same underlying model is used.
    *
+   * <p>Only the raw values are written; {@link #saveCheckpoint(File)} also keeps the optimizer
+   * state, and checks the values when they are restored.
+   *
    * @param outputChannel where to write the parameters.
    * @throws IOException if an I/O error occurs.
    */
   public void saveParameters(GatheringByteChannel outputChannel) throws IOException {
-    parameterLock.readLock().lock();
-    try {
-      outputChannel.write(modelParameters);
-      for (ByteBuffer buffer : modelParameters) {
-        buffer.rewind();
-      }
-    } finally {
-      parameterLock.readLock().unlock();
+    try (ParameterSnapshot snapshot = snapshotParameters()) {
+      outputChannel.write(snapshot.getBuffers());
     }
   }
 
-
+  /**
+   * Returns a copy of the current parameter values.
+   *
+   * <p>{@link #snapshotParameters()} gives access to the same values without copying them.
+   */
   public ByteBuffer[] getParameters()  {
-      return modelParameters;
+    try (ParameterSnapshot snapshot = snapshotParameters()) {
+      ByteBuffer[] views = snapshot.getBuffers();
+      ByteBuffer[] copies = new ByteBuffer[views.length];
+      for (int paramIdx = 0; paramIdx < views.length; paramIdx++) {
+        copies[paramIdx] = allocateBuffer(views[paramIdx].capacity());
+        copies[paramIdx].put(views[paramIdx]);
+        copies[paramIdx].rewind();
+      }
+      return copies;
+    }
   }
 
   /**
@@ -480,61 +1690,171 @@ public final class TransferLearningModel implements Closeable {
    * The channel should contain values previously written by
    * {@link #saveParameters(GatheringByteChannel)} for the same underlying model.
    *
+   * <p>Waits for training to finish, if it is in progress.
+   *
    * @param inputChannel where to read the parameters from.
    * @throws IOException if an I/O error occurs.
    */
   public void loadParameters(ScatteringByteChannel inputChannel) throws IOException {
-    parameterLock.writeLock().lock();
+    trainingLock.lock();
     try {
-      inputChannel.read(modelParameters);
-      for (ByteBuffer buffer : modelParameters) {
+      int setIdx = parameters.acquireNextSet();
+      ByteBuffer[] target = parameters.getParameters(setIdx);
+      inputChannel.read(target);
+      for (ByteBuffer buffer : target) {
         buffer.rewind();
       }
+      publishParameterSet(setIdx);
+    } finally {
+      trainingLock.unlock();
+    }
+  }
+
+  /**
+   * Writes the current parameters and optimizer state to a checkpoint file.
+   *
+   * <p>The file describes every tensor and holds a checksum of each, so that {@link
+   * #loadCheckpoint(File)} can reject a checkpoint of another model or a corrupted one. It is
+   * written to a temporary file first and then renamed, so an existing checkpoint is only
+   * replaced by a complete one. Training goes on while the checkpoint is written.
+   *
+   * @param path where to write the checkpoint.
+   * @throws IOException if an I/O error occurs.
+   */
+  public void saveCheckpoint(File path) throws IOException {
+    ParameterSets.Version version = parameters.pin();
+    try {
+      ParameterCheckpoint.write(
+          path,
+          version.number,
+          parameters.getParameters(version.setIdx),
+          parameterShapes,
+          parameters.getOptimizerState(version.setIdx),
+          optimizerStateShapes,
+          new long[0]);
     } finally {
-      parameterLock.writeLock().unlock();
+      parameters.unpin(version);
     }
   }
 
+  /**
+   * Restores the parameters and optimizer state from a checkpoint file written by {@link
+   * #saveCheckpoint(File)} for the same underlying model.
+   *
+   * <p>The file is memory-mapped and copied straight into the parameter buffers. Nothing changes
+   * if it cannot be read or does not match the model. Waits for training to finish, if it is in
+   * progress.
+   *
+   * @param path checkpoint to read.
+   * @return parameter version at which the checkpoint was written.
+   * @throws IOException if an I/O error occurs, or if the checkpoint is corrupted or was written
+   *     for another model.
+   */
+  public long loadCheckpoint(File path) throws IOException {
+    trainingLock.lock();
+    try {
+      int setIdx = parameters.acquireNextSet();
+      long checkpointVersion =
+          ParameterCheckpoint.read(
+              path,
+              parameters.getParameters(setIdx),
+              parameterShapes,
+              parameters.getOptimizerState(setIdx),
+              optimizerStateShapes,
+              new long[0]);
+      parameters.publish(setIdx);
+      return checkpointVersion;
+    } finally {
+      trainingLock.unlock();
+    }
+  }
+
+  // Publishes a set whose parameters were just written outside of training, carrying the current
+  // optimizer state over to it. Must hold [trainingLock].
+  private void publishParameterSet(int setIdx) {
+    ByteBuffer[] state = parameters.getOptimizerState(parameters.current().setIdx);
+    ByteBuffer[] nextState = parameters.getOptimizerState(setIdx);
+    for (int elemIdx = 0; elemIdx < state.length; elemIdx++) {
+      nextState[elemIdx].rewind();
+      nextState[elemIdx].put(state[elemIdx].duplicate());
+      nextState[elemIdx].rewind();
+    }
+    parameters.publish(setIdx);
+  }
+
+  /** Number of interpreters that generate bottlenecks in parallel. */
+  public int getBottleneckPoolSize() {
+    return bottleneckModel.getPoolSize();
+  }
+
+  /** Maximum number of predictions that run in parallel; further callers wait for a slot. */
+  public int getMaxConcurrentPredictions() {
+    return inferenceSessions.getMaxSize();
+  }
+
   /** Training model expected batch size. */
   public int getTrainBatchSize() {
     return trainHeadModel.getBatchSize();
   }
 
   /**
-   * Constructs an iterator that iterates over training sample batches.
-   * @return iterator over batches.
+   * Enables or disables assembling the next training batch in the background while the current
+   * one is trained on. Takes effect on the next {@link #train} call.
+   */
+  public void setPrefetchEnabled(boolean enabled) {
+    prefetchEnabled = enabled;
+  }
+
+  /**
+   * Makes runs started with {@link #train(int, LossConsumer, long)} save their progress, so that
+   * they can be resumed after the process stops. Takes effect on the next {@link #train} call.
+   *
+   * @param path checkpoint file, overwritten by every run.
+   * @param batchInterval number of batches between two checkpoints.
    */
-  private Iterable<List<TrainingSample>> trainingBatches() {
-    if (!trainingLock.tryLock()) {
-      throw new RuntimeException("Thread calling trainingBatches() must hold the training lock");
+  public void enableResumeCheckpoints(File path, int batchInterval) {
+    if (batchInterval < 1) {
+      throw new IllegalArgumentException(
+          String.format("Checkpoint interval must be at least 1 batch, got %d", batchInterval));
     }
-    trainingLock.unlock();
+    resumeCheckpointInterval = batchInterval;
+    resumeCheckpointPath = path;
+  }
 
-    Collections.shuffle(trainingSamples);
-    return () ->
-        new Iterator<List<TrainingSample>>() {
-          private int nextIndex = 0;
+  /** Stops saving training progress. Takes effect on the next {@link #train} call. */
+  public void disableResumeCheckpoints() {
+    resumeCheckpointPath = null;
+  }
 
-          @Override
-          public boolean hasNext() {
-            return nextIndex < trainingSamples.size();
-          }
+  /** Throughput and timing of the most recently finished {@link #train} call, or null. */
+  public TrainingStats getLastTrainingStats() {
+    return lastTrainingStats;
+  }
 
-          @Override
-          public List<TrainingSample> next() {
-            int fromIndex = nextIndex;
-            int toIndex = nextIndex + getTrainBatchSize();
-            nextIndex = toIndex;
-            if (toIndex >= trainingSamples.size()) {
-              // To keep batch size consistent, last batch may include some elements from the
-              // next-to-last batch.
-              return trainingSamples.subList(
-                  trainingSamples.size() - getTrainBatchSize(), trainingSamples.size());
-            } else {
-              return trainingSamples.subList(fromIndex, toIndex);
-            }
-          }
-        };
+  /**
+   * Sets how training samples are drawn during an epoch. Waits for active training to finish.
+   */
+  public void setSamplingMode(SamplingMode mode) {
+    trainingLock.lock();
+    try {
+      sampler.setMode(mode);
+    } finally {
+      trainingLock.unlock();
+    }
+  }
+
+  /**
+   * Sets the seed from which the order of training samples is derived, making training
+   * reproducible. Waits for active training to finish.
+   */
+  public void setShuffleSeed(long seed) {
+    trainingLock.lock();
+    try {
+      sampler.setSeed(seed);
+      epochsStarted = 0;
+    } finally {
+      trainingLock.unlock();
+    }
   }
 
   private void checkNotTerminating() {
@@ -553,34 +1873,49 @@ public final class TransferLearningModel implements Closeable {
   }
 
   /**
-   * Terminates all model operation safely. Will block until current inference request is finished
-   * (if any).
+   * Terminates all model operation safely. Will block until current inference requests are
+   * finished (if any).
    *
    * <p>Calling any other method on this object after [close] is not allowed.
    */
   @Override
   public void close() {
     isTerminating = true;
-    executor.shutdownNow();
 
-    // Make sure that all threads doing inference are finished.
-    inferenceLock.lock();
+    // Make sure that all threads doing inference are finished. Evaluations run their shards on
+    // [executor], so it is only shut down once they are.
+    inferenceLock.writeLock().lock();
 
     try {
+      executor.shutdownNow();
+      prefetchExecutor.shutdownNow();
       boolean ok = executor.awaitTermination(5, TimeUnit.SECONDS);
       if (!ok) {
         throw new RuntimeException("Model thread pool failed to terminate");
       }
+      ok = prefetchExecutor.awaitTermination(5, TimeUnit.SECONDS);
+      if (!ok) {
+        throw new RuntimeException("Model prefetch thread failed to terminate");
+      }
 
       initializeModel.close();
       bottleneckModel.close();
       trainHeadModel.close();
-      inferenceModel.close();
+      evaluationEngine.close();
+      inferenceSessions.close();
       optimizerModel.close();
+      if (trainStepModel != null) {
+        trainStepModel.close();
+      }
+      if (bottleneckCache != null) {
+        bottleneckCache.close();
+      }
     } catch (InterruptedException e) {
       // no-op
+    } catch (IOException e) {
+      Log.w(TAG, "Could not close the bottleneck cache", e);
     } finally {
-      inferenceLock.unlock();
+      inferenceLock.writeLock().unlock();
     }
   }
 
@@ -599,12 +1934,54 @@ public final class TransferLearningModel implements Closeable {
   }
 
 
+  /**
+   * Overwrites the current model parameter values with the given ones.
+   *
+   * <p>The values are copied into the buffers bound to the training models, so the caller keeps
+   * ownership of [newParams]. Values identical to the current ones keep the parameter version,
+   * so that results memoized for it stay valid. Waits for training to finish, if it is in
+   * progress.
+   *
+   * @param newParams raw values of every trainable parameter, in model order.
+   */
   public void updateParameters(ByteBuffer[] newParams){
-    parameterLock.writeLock().lock();
+    trainingLock.lock();
     try {
-      modelParameters = newParams;
+      ByteBuffer[] current = parameters.getParameters(parameters.current().setIdx);
+      if (newParams.length != current.length) {
+        throw new IllegalArgumentException(String.format(
+            "Model expected %d parameter tensors, but got %d",
+            current.length, newParams.length));
+      }
+
+      ByteBuffer[] sources = new ByteBuffer[newParams.length];
+      boolean unchanged = true;
+      for (int paramIdx = 0; paramIdx < newParams.length; paramIdx++) {
+        ByteBuffer source = newParams[paramIdx].duplicate();
+        source.rewind();
+        if (source.remaining() != current[paramIdx].capacity()) {
+          throw new IllegalArgumentException(String.format(
+              "Parameter %d expected %d bytes, but got %d",
+              paramIdx, current[paramIdx].capacity(), source.remaining()));
+        }
+        // Byte order does not matter to equals(): it compares bytes.
+        unchanged = unchanged && source.equals(current[paramIdx].duplicate());
+        sources[paramIdx] = source;
+      }
+      if (unchanged) {
+        return;
+      }
+
+      int setIdx = parameters.acquireNextSet();
+      ByteBuffer[] target = parameters.getParameters(setIdx);
+      for (int paramIdx = 0; paramIdx < newParams.length; paramIdx++) {
+        target[paramIdx].rewind();
+        target[paramIdx].put(sources[paramIdx]);
+        target[paramIdx].rewind();
+      }
+      publishParameterSet(setIdx);
     } finally {
-      parameterLock.writeLock().unlock();
+      trainingLock.unlock();
     }
   }
 
@@ -1,12 +1,121 @@
+from logging import INFO
 from typing import Any, Callable, Dict, List, Optional, Tuple
 
 import flwr as fl
+from flwr.common import Parameters
+from flwr.common.logger import log
+import numpy as np
 import tensorflow as tf
 
+# Separates the encoding from the chunk layout in the tensor type of chunked parameters.
+CHUNKS_MARKER = ";chunks="
+# Chunk sizes are multiples of this, so that no encoded value or header is split.
+CHUNK_ALIGNMENT = 8
+
+
+class FedAvgAndroidQuantized(fl.server.strategy.FedAvgAndroid):
+    """FedAvgAndroid that also reads the compact encodings of the Android client.
+
+    Clients only encode their uploads when `fit_config` sets "transport_encoding" to "fp16",
+    "int8", "int8_stochastic" or "topk_delta"; the encoding of every upload is named by its
+    tensor type. Sparse deltas ("topk_delta") are applied to the parameters sent for the round.
+
+    Parameters are also read when split into chunks, see `split_chunks`. With a positive
+    `chunk_bytes`, the parameters sent to clients are split as well.
+    """
+
+    def __init__(self, *args, chunk_bytes: int = 0, **kwargs) -> None:
+        super().__init__(*args, **kwargs)
+        self.round_parameters: Optional[List[np.ndarray]] = None
+        self.chunk_bytes = chunk_bytes
+
+    def configure_fit(self, server_round, parameters, client_manager):
+        self.round_parameters = self.parameters_to_ndarrays(parameters)
+        return super().configure_fit(server_round, parameters, client_manager)
+
+    def aggregate_fit(self, server_round, results, failures):
+        # Upload size of the round, to be read next to the accuracy of its evaluation.
+        raw_bytes = sum(int(res.metrics.get("upload_raw_bytes", 0)) for _, res in results)
+        encoded_bytes = sum(int(res.metrics.get("upload_encoded_bytes", 0)) for _, res in results)
+        if encoded_bytes > 0:
+            log(INFO, "round %s: clients uploaded %s bytes for %s raw (%.1fx smaller)",
+                server_round, encoded_bytes, raw_bytes, raw_bytes / encoded_bytes)
+        return super().aggregate_fit(server_round, results, failures)
+
+    def ndarrays_to_parameters(self, ndarrays):
+        parameters = super().ndarrays_to_parameters(ndarrays)
+        if self.chunk_bytes <= 0:
+            return parameters
+        return split_chunks(parameters, self.chunk_bytes)
+
+    def parameters_to_ndarrays(self, parameters):
+        tensor_type, tensors = join_chunks(parameters)
+        if tensor_type == "SPARSE_DELTA":
+            return [
+                apply_sparse_delta(reference, tensor)
+                for reference, tensor in zip(self.round_parameters, tensors)
+            ]
+        return [decode_tensor(tensor, tensor_type) for tensor in tensors]
+
+
+def split_chunks(parameters: Parameters, chunk_bytes: int) -> Parameters:
+    """Split every tensor into chunks of at most `chunk_bytes`, one per entry of `tensors`.
+
+    The tensor type gets the number of chunks of every tensor appended, as in "ND;chunks=3,1,2".
+    """
+    chunk_bytes = max(CHUNK_ALIGNMENT, chunk_bytes // CHUNK_ALIGNMENT * CHUNK_ALIGNMENT)
+    chunks: List[bytes] = []
+    counts: List[str] = []
+    for tensor in parameters.tensors:
+        # An empty tensor still takes one chunk, so that every tensor can be told apart.
+        starts = range(0, max(len(tensor), 1), chunk_bytes)
+        chunks.extend(tensor[start:start + chunk_bytes] for start in starts)
+        counts.append(str(len(starts)))
+    return Parameters(
+        tensors=chunks, tensor_type=parameters.tensor_type + CHUNKS_MARKER + ",".join(counts)
+    )
+
+
+def join_chunks(parameters: Parameters) -> Tuple[str, List[bytes]]:
+    """Return the encoding and the whole tensors of parameters that may be chunked."""
+    tensor_type, _, layout = parameters.tensor_type.partition(CHUNKS_MARKER)
+    if not layout:
+        return tensor_type, list(parameters.tensors)
+    tensors, start = [], 0
+    for count in map(int, layout.split(",")):
+        tensors.append(b"".join(parameters.tensors[start:start + count]))
+        start += count
+    assert start == len(parameters.tensors), f"{parameters.tensor_type} does not fit the chunks"
+    return tensor_type, tensors
+
+
+def apply_sparse_delta(reference: np.ndarray, tensor: bytes) -> np.ndarray:
+    """Add a sparse delta, as little-endian int32 size, count, indices then float32 values."""
+    size, count = np.frombuffer(tensor, dtype="<i4", count=2)
+    indices = np.frombuffer(tensor, dtype="<i4", count=count, offset=8)
+    values = np.frombuffer(tensor, dtype="<f4", count=count, offset=8 + 4 * count)
+    result = np.array(reference, dtype=np.float32).ravel()
+    assert result.size == size, f"delta has {size} values, the parameter has {result.size}"
+    result[indices] += values
+    return result
+
+
+def decode_tensor(tensor: bytes, tensor_type: str) -> np.ndarray:
+    """Decode one tensor sent by the Android client into float32 values."""
+    if tensor_type == "ND_FP16":
+        return np.frombuffer(tensor, dtype="<f2").astype(np.float32)
+    if tensor_type in ("ND_INT8", "ND_INT8_SR"):
+        # Little-endian float32 scale and int32 zero point, then one int8 per value.
+        scale = np.frombuffer(tensor, dtype="<f4", count=1)[0]
+        zero_point = np.frombuffer(tensor, dtype="<i4", count=1, offset=4)[0]
+        values = np.frombuffer(tensor, dtype=np.int8, offset=8).astype(np.float32)
+        return (values - zero_point) * scale
+    return np.frombuffer(tensor, dtype=np.float32)
+
 
 def main() -> None:
     # Create strategy
-    strategy = fl.server.strategy.FedAvgAndroid(
+    strategy = FedAvgAndroidQuantized(
         fraction_fit=1.0,
         fraction_evaluate=1.0,
         min_fit_clients=4,